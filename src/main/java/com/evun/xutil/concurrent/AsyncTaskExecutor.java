@@ -3,21 +3,45 @@ package com.evun.xutil.concurrent;
 import cn.evun.gap.base.context.UserContext;
 import cn.evun.gap.common.model.UserContextDO;
 import cn.evun.gap.common.utils.Assert;
-import cn.evun.gap.common.utils.ReflectionUtils;
 import cn.evun.gap.core.RR;
 import cn.evun.gap.core.context.NamedThreadLocalContext;
 import cn.evun.gap.core.exception.GapRuntimeException;
 import cn.evun.gap.core.spring.SpringContext;
+import com.evun.xutil.metrics.JmxUtils;
+import com.evun.xutil.trace.Span;
+import com.evun.xutil.trace.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.transaction.support.TransactionSynchronizationAdapter;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * 异步执行工具类, 本类能够保证所有异步执行的任务也能处在和提交者线程相同的用户上下文中
@@ -25,30 +49,68 @@ import java.util.concurrent.Future;
 public abstract class AsyncTaskExecutor {
     private static final Logger LOG = LoggerFactory.getLogger(AsyncTaskExecutor.class);
 
-    //使用云彩家公共的线程池
-    private static final ThreadPoolTaskExecutor executorService = SpringContext.getBean(ThreadPoolTaskExecutor.class);
+    //本地线程池的线程数, 只在没有公共线程池时使用, 如: -Dxutil.async.localThreads=16
+    private static final String LOCAL_THREADS_PROPERTY = "xutil.async.localThreads";
+    //使用云彩家公共的线程池, 脱离平台spring容器时(如单元测试, 基准测试)使用本地线程池
+    private static final ThreadPoolTaskExecutor executorService = initExecutorService();
+    //开启虚拟线程模式的系统属性, 如: -Dxutil.async.virtualThreads=true
+    private static final String VIRTUAL_THREADS_PROPERTY = "xutil.async.virtualThreads";
+    //虚拟线程执行器, 没有开启虚拟线程模式或者运行的jdk不支持虚拟线程时为null
+    private static final ExecutorService virtualExecutor = initVirtualExecutor();
+    //任务指标(排队时间, 运行时间, 线程池饱和度), 默认关闭; 虚拟线程模式下统计的是虚拟线程, 而不是公共线程池
+    private static final TaskMetrics METRICS = new TaskMetrics(virtualExecutor == null ? executorService.getThreadPoolExecutor() : null);
+    //实际执行任务的线程池, 开启虚拟线程模式且运行的jdk支持虚拟线程时, 每个任务使用一个新的虚拟线程, 否则使用公共线程池
+    private static final ExecutorService taskExecutor = new TaskExecutorService(virtualExecutor != null ? virtualExecutor : executorService, virtualExecutor != null);
     private static final String LOCALE_CLASS_NAME = Locale.class.getName();
     private static final String DEVICE_NAME = "device";
+    //没有任何用户上下文时(如定时任务)共享的空上下文, 避免每次提交任务都创建新对象, 只在内部使用, 不能暴露给调用者
+    private static final UserContextDO EMPTY_CONTEXT = new UserContextDO(null, null, null, null);
+    //每个线程最近一次捕获的上下文快照, 上下文没有变化时复用, 见captureContext
+    private static final ThreadLocal<UserContextDO> LAST_CAPTURED = new ThreadLocal<UserContextDO>() {
+        @Override
+        protected UserContextDO initialValue() {
+            return EMPTY_CONTEXT;
+        }
+    };
+    //已注册的隔离线程池
+    private static final ConcurrentMap<String, Bulkhead> BULKHEADS = new ConcurrentHashMap<>();
+    //事务提交后的任务最多合并成几个批量任务
+    private static final int AFTER_COMMIT_MAX_PARTITIONS = 4;
+    //invokeAll默认的最大并发度
+    private static final int DEFAULT_PARALLELISM = 8;
+    //事务提交后的任务, 每个批量任务至少包含的任务数(任务总数较少时)
+    private static final int AFTER_COMMIT_MIN_PARTITION_SIZE = 16;
+    //延迟任务和周期任务共用的时间轮, 精度10毫秒, 一圈约5秒
+    private static final HashedWheelTimer TIMER = new HashedWheelTimer("async-task-timer", 10, 512);
+    //合并任务和并行任务的内部任务使用的包装
+    private static final TaskWrapper TASK_WRAPPER = new TaskWrapper() {
+        @Override
+        public Runnable wrap(Runnable task, UserContextDO context, Long deadline) {
+            return newTaskWrapper(task, context, deadline);
+        }
+    };
+    //按key合并的任务
+    private static final KeyedCoalescer COALESCER = new KeyedCoalescer(TIMER, taskExecutor, TASK_WRAPPER);
+
+    static {
+        JmxUtils.register("AsyncTaskExecutor", null, METRICS);
+    }
 
     /**
      * 执行任务, 有一个额外参数async控制任务是否异步执行
      *
      * @param runnable 需要执行的任务
      * @param context  执行的用户上下文
-     * @param async    任务是否异步执行, 若为false, 任务将在当前线程中同步执行
+     * @param async    任务是否异步执行, 若为false, 任务将在当前线程中同步执行(执行期间临时切换到指定的用户上下文, 结束后恢复),
+     *                 任务抛出的异常直接抛给调用者
      */
     public static void execute(Runnable runnable, UserContextDO context, boolean async) {
         checkTask(runnable);
-        Runnable asyncTask = newTaskWrapper(runnable, context);
         if (async) {
-            executorService.submit(asyncTask);
+            taskExecutor.submit(newTaskWrapper(runnable, context));
         } else {
-            try {
-                //为了防止影响当前线程上下文, 故依旧采用线程池
-                executorService.submit(asyncTask).get();
-            } catch (Exception e) {
-                throw new GapRuntimeException(e);
-            }
+            //在当前线程中执行, 没有线程切换的延迟, 也不会因为线程池已满而死锁
+            runWithContextSwap(runnable, context);
         }
     }
 
@@ -59,7 +121,7 @@ public abstract class AsyncTaskExecutor {
      * @param async    任务是否异步执行, 若为false, 任务将在当前线程中同步执行
      */
     public static void execute(Runnable runnable, boolean async) {
-        execute(runnable, getCurrentUserContext(), async);
+        execute(runnable, captureContext(), async);
     }
 
     /**
@@ -68,32 +130,464 @@ public abstract class AsyncTaskExecutor {
      * @param runnable
      */
     public static void execute(Runnable runnable) {
-        execute(runnable, getCurrentUserContext(), true);
+        execute(runnable, captureContext(), true);
     }
 
     public static <T> Future<T> submit(Callable<T> callable, UserContextDO context) {
         Callable<T> asyncTask = newTaskWrapper(callable, context);
-        return executorService.submit(asyncTask);
+        return taskExecutor.submit(asyncTask);
     }
 
     public static <T> Future<T> submit(Callable<T> callable) {
-        return submit(callable, getCurrentUserContext());
+        return submit(callable, captureContext());
+    }
+
+    /**
+     * 在当前线程的用户上下文中, 按优先级提交任务
+     * 带优先级的任务在独立的优先级线程池中执行(线程数和队列容量见PriorityHolder), 高优先级的任务先执行,
+     * 低优先级任务等待一段时间后会排到前面, 不会一直得不到执行; 队列已满时抛出RejectedExecutionException
+     *
+     * @param callable 需要执行的任务
+     * @param priority 优先级
+     * @return 任务的Future
+     */
+    public static <T> Future<T> submit(Callable<T> callable, TaskPriority priority) {
+        return submit(callable, captureContext(), priority);
+    }
+
+    /**
+     * 在指定用户上下文中, 按优先级提交任务, 见submit(Callable, TaskPriority)
+     *
+     * @param callable 需要执行的任务
+     * @param context  执行的用户上下文
+     * @param priority 优先级
+     * @return 任务的Future
+     */
+    public static <T> Future<T> submit(Callable<T> callable, UserContextDO context, TaskPriority priority) {
+        Assert.notNull(priority, "优先级不能为空!");
+        return PriorityHolder.EXECUTOR.submit(newTaskWrapper(callable, context), priority);
+    }
+
+    /**
+     * 在当前线程的用户上下文中, 按优先级异步执行任务, 见submit(Callable, TaskPriority)
+     *
+     * @param runnable 需要执行的任务
+     * @param priority 优先级
+     */
+    public static void execute(Runnable runnable, TaskPriority priority) {
+        Assert.notNull(priority, "优先级不能为空!");
+        checkTask(runnable);
+        PriorityHolder.EXECUTOR.submit(Executors.callable(newTaskWrapper(runnable, captureContext())), priority);
+    }
+
+    /**
+     * 在当前线程的用户上下文中, 提交带超时时间的任务
+     * 截止时间(不会晚于当前线程已有的截止时间)随任务传递, 任务中可以通过Deadline获取剩余时间;
+     * 任务中嵌套提交的任务默认不继承截止时间, 需要继承时使用带超时的方法或者submitWithinDeadline;
+     * 到截止时间还没有开始的任务不再执行(记录日志, Future中为TimeoutException), 正在执行的任务会被打断(Future被取消)
+     *
+     * @param callable 需要执行的任务
+     * @param timeout  超时时间
+     * @param unit     时间单位
+     * @return 任务的Future, 超时后isCancelled为true
+     */
+    public static <T> Future<T> submit(Callable<T> callable, long timeout, TimeUnit unit) {
+        return submit(callable, captureContext(), timeout, unit);
+    }
+
+    /**
+     * 在指定用户上下文中, 提交带超时时间的任务, 见submit(Callable, long, TimeUnit)
+     *
+     * @param callable 需要执行的任务
+     * @param context  执行的用户上下文
+     * @param timeout  超时时间
+     * @param unit     时间单位
+     * @return 任务的Future, 超时后isCancelled为true
+     */
+    public static <T> Future<T> submit(Callable<T> callable, UserContextDO context, long timeout, TimeUnit unit) {
+        checkTask(callable);
+        Assert.isTrue(timeout > 0, "超时时间必须大于0!");
+        long deadline = Deadline.after(timeout, unit);
+        UserContextCallable<T> task = new UserContextCallable<>(callable, context, deadline);
+        Future<T> future = taskExecutor.submit(task);
+        cancelAtDeadline(future, deadline);
+        return future;
+    }
+
+    /**
+     * 在当前线程的用户上下文中, 提交继承当前线程截止时间的任务, 超时处理见submit(Callable, long, TimeUnit);
+     * 当前线程没有截止时间时与submit(Callable)相同
+     * 其他不带超时的提交方法都不继承截止时间, 避免提交者超时后, 释放锁, 事务提交后的通知等后续任务被丢弃
+     *
+     * @param callable 需要执行的任务
+     * @return 任务的Future, 超时后isCancelled为true
+     */
+    public static <T> Future<T> submitWithinDeadline(Callable<T> callable) {
+        checkTask(callable);
+        Long deadline = Deadline.current();
+        if (deadline == null) {
+            return submit(callable);
+        }
+        Future<T> future = taskExecutor.submit(new UserContextCallable<>(callable, captureContext(), deadline));
+        cancelAtDeadline(future, deadline);
+        return future;
+    }
+
+    /**
+     * 在当前线程的用户上下文中, 异步执行带超时时间的任务, 超时处理见submit(Callable, long, TimeUnit)
+     *
+     * @param runnable 需要执行的任务
+     * @param timeout  超时时间
+     * @param unit     时间单位
+     */
+    public static void execute(Runnable runnable, long timeout, TimeUnit unit) {
+        checkTask(runnable);
+        Assert.isTrue(timeout > 0, "超时时间必须大于0!");
+        long deadline = Deadline.after(timeout, unit);
+        Future<?> future = taskExecutor.submit(new UserContextRunnable(runnable, captureContext(), deadline));
+        cancelAtDeadline(future, deadline);
+    }
+
+    /**
+     * 并行执行所有任务, 并按任务顺序返回结果, 最多DEFAULT_PARALLELISM个任务同时执行
+     * 任何一个任务失败或者超时, 其他任务都会被取消(正在执行的任务会被打断), 所有任务都在当前线程的用户上下文中执行
+     *
+     * @param tasks   需要执行的任务
+     * @param timeout 所有任务的总超时时间
+     * @param unit    时间单位
+     * @return 按任务顺序排列的结果
+     * @throws GapRuntimeException 任务异常(cause为任务抛出的异常), 超时(cause为TimeoutException)
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, long timeout, TimeUnit unit) {
+        return invokeAll(tasks, timeout, unit, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * 并行执行所有任务, 并按任务顺序返回结果, 见invokeAll(List, long, TimeUnit)
+     *
+     * @param tasks       需要执行的任务
+     * @param timeout     所有任务的总超时时间
+     * @param unit        时间单位
+     * @param parallelism 最大并发度(含当前线程)
+     * @return 按任务顺序排列的结果
+     */
+    public static <T> List<T> invokeAll(final List<? extends Callable<T>> tasks, long timeout, TimeUnit unit, int parallelism) {
+        Assert.notNull(tasks, "任务不能为空!");
+        Assert.isTrue(timeout > 0, "超时时间必须大于0!");
+        Assert.isTrue(parallelism > 0, "并发度必须大于0!");
+        final Object[] results = new Object[tasks.size()];
+        ParallelRunner.run(taskExecutor, TASK_WRAPPER, TIMER, captureContext(), tasks.size(), parallelism, 1, timeoutWithinDeadline(unit.toNanos(timeout)),
+                new ParallelRunner.IndexedTask() {
+                    @Override
+                    public void run(int index) throws Exception {
+                        results[index] = tasks.get(index).call();
+                    }
+                });
+        return toList(results);
+    }
+
+    /**
+     * 并行地对列表中每个元素执行转换, 并按原顺序返回结果, 所有转换都在当前线程的用户上下文中执行
+     * 任何一个转换失败, 其他转换都会被取消
+     *
+     * @param list        需要转换的元素
+     * @param fn          转换函数
+     * @param parallelism 最大并发度(含当前线程)
+     * @return 按原顺序排列的转换结果
+     * @throws GapRuntimeException 转换异常(cause为转换函数抛出的异常)
+     */
+    public static <T, R> List<R> parallelMap(final List<T> list, final Function<? super T, ? extends R> fn, int parallelism) {
+        Assert.notNull(list, "列表不能为空!");
+        Assert.notNull(fn, "转换函数不能为空!");
+        Assert.isTrue(parallelism > 0, "并发度必须大于0!");
+        final Object[] results = new Object[list.size()];
+        //每个工作线程大约领取4次, 兼顾负载均衡和领取开销
+        int chunkSize = Math.max(1, list.size() / (parallelism * 4));
+        ParallelRunner.run(taskExecutor, TASK_WRAPPER, TIMER, captureContext(), list.size(), parallelism, chunkSize, timeoutWithinDeadline(0),
+                new ParallelRunner.IndexedTask() {
+                    @Override
+                    public void run(int index) {
+                        results[index] = fn.apply(list.get(index));
+                    }
+                });
+        return toList(results);
+    }
+
+    /**
+     * 将列表按chunkSize分块, 并行地对每个元素执行操作, 所有操作都在当前线程的用户上下文中执行
+     * 任何一个操作失败, 其他操作都会被取消
+     *
+     * @param list        需要处理的元素
+     * @param action      对每个元素执行的操作
+     * @param parallelism 最大并发度(含当前线程)
+     * @param chunkSize   每个工作线程每次领取的元素数量
+     * @throws GapRuntimeException 操作异常(cause为操作抛出的异常)
+     */
+    public static <T> void parallelForEach(final List<T> list, final Consumer<? super T> action, int parallelism, int chunkSize) {
+        Assert.notNull(list, "列表不能为空!");
+        Assert.notNull(action, "操作不能为空!");
+        Assert.isTrue(parallelism > 0, "并发度必须大于0!");
+        Assert.isTrue(chunkSize > 0, "分块大小必须大于0!");
+        ParallelRunner.run(taskExecutor, TASK_WRAPPER, TIMER, captureContext(), list.size(), parallelism, chunkSize, timeoutWithinDeadline(0),
+                new ParallelRunner.IndexedTask() {
+                    @Override
+                    public void run(int index) {
+                        action.accept(list.get(index));
+                    }
+                });
+    }
+
+    /**
+     * 与CompletableFuture.supplyAsync类似, 但supplier及其后续的非Async阶段都在指定的用户上下文中执行
+     * 后续的Async阶段请使用contextExecutor()作为执行器, 例如:
+     * <p>
+     * AsyncTaskExecutor.supplyAsync(supplier)
+     * .thenApplyAsync(fn, AsyncTaskExecutor.contextExecutor())
+     * .thenAccept(consumer);
+     *
+     * @param supplier 需要执行的任务
+     * @param context  执行的用户上下文
+     * @return
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier, UserContextDO context) {
+        Assert.notNull(supplier, "任务不能为空!");
+        return CompletableFuture.supplyAsync(supplier, contextExecutor(taskExecutor, context));
+    }
+
+    /**
+     * 使用当前线程的用户上下文, 异步执行有返回值的任务, 见supplyAsync(Supplier, UserContextDO)
+     *
+     * @param supplier 需要执行的任务
+     * @return
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        return supplyAsync(supplier, captureContext());
+    }
+
+    /**
+     * 与CompletableFuture.runAsync类似, 但任务及其后续的非Async阶段都在指定的用户上下文中执行
+     *
+     * @param runnable 需要执行的任务
+     * @param context  执行的用户上下文
+     * @return
+     */
+    public static CompletableFuture<Void> runAsync(Runnable runnable, UserContextDO context) {
+        checkTask(runnable);
+        return CompletableFuture.runAsync(runnable, contextExecutor(taskExecutor, context));
+    }
+
+    /**
+     * 使用当前线程的用户上下文, 异步执行任务, 见runAsync(Runnable, UserContextDO)
+     *
+     * @param runnable 需要执行的任务
+     * @return
+     */
+    public static CompletableFuture<Void> runAsync(Runnable runnable) {
+        return runAsync(runnable, captureContext());
+    }
+
+    /**
+     * 获取在公共线程池中执行任务的执行器, 所有任务都在调用本方法时线程的用户上下文中执行
+     * 用作CompletableFuture的xxxAsync方法的执行器参数, 使整个调用链都处在相同的用户上下文中
+     *
+     * @return
+     */
+    public static Executor contextExecutor() {
+        return contextExecutor(taskExecutor, captureContext());
+    }
+
+    /**
+     * 将其他执行器(如其他线程池)包装成在当前线程的用户上下文中执行任务的执行器
+     *
+     * @param delegate 实际执行任务的执行器
+     * @return
+     */
+    public static Executor contextExecutor(Executor delegate) {
+        return contextExecutor(delegate, captureContext());
+    }
+
+    /**
+     * 将其他执行器包装成在指定用户上下文中执行任务的执行器
+     *
+     * @param delegate 实际执行任务的执行器
+     * @param context  执行的用户上下文
+     * @return
+     */
+    public static Executor contextExecutor(Executor delegate, UserContextDO context) {
+        Assert.notNull(delegate, "执行器不能为空!");
+        return new ContextExecutor(delegate, context);
+    }
+
+    /**
+     * 在当前线程的用户上下文中, 延迟执行任务
+     * 等待期间不占用任何线程, 到期后提交到线程池执行, 定时精度约为10毫秒;
+     * 到期时线程池已满(任务被拒绝)时, 每隔1秒重试一次, 直到提交成功或者被取消, 期间isDone返回false
+     *
+     * @param task  需要执行的任务
+     * @param delay 延迟时间
+     * @param unit  时间单位
+     * @return 用于取消任务的句柄
+     */
+    public static ScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+        return schedule(task, captureContext(), delay, unit);
+    }
+
+    /**
+     * 在指定用户上下文中, 延迟执行任务, 见schedule(Runnable, long, TimeUnit)
+     *
+     * @param task    需要执行的任务
+     * @param context 执行的用户上下文
+     * @param delay   延迟时间
+     * @param unit    时间单位
+     * @return 用于取消任务的句柄
+     */
+    public static ScheduledTask schedule(Runnable task, UserContextDO context, long delay, TimeUnit unit) {
+        checkTask(task);
+        Assert.notNull(unit, "时间单位不能为空!");
+        TimerTask timerTask = new TimerTask(task, context, 0, false);
+        timerTask.scheduleAt(System.nanoTime() + unit.toNanos(delay));
+        return timerTask;
+    }
+
+    /**
+     * 在当前线程的用户上下文中, 按固定频率周期执行任务
+     * 上一次执行没有结束时不会开始下一次执行, 执行时间超过周期时, 下一次执行会推迟(不会并发执行);
+     * 任务抛出的异常会记录日志, 不影响后续的执行
+     *
+     * @param task         需要执行的任务
+     * @param initialDelay 第一次执行的延迟时间
+     * @param period       两次执行开始时间的间隔
+     * @param unit         时间单位
+     * @return 用于取消任务的句柄
+     */
+    public static ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        return schedulePeriodic(task, captureContext(), initialDelay, period, unit, true);
+    }
+
+    /**
+     * 在指定用户上下文中, 按固定频率周期执行任务, 见scheduleAtFixedRate(Runnable, long, long, TimeUnit)
+     */
+    public static ScheduledTask scheduleAtFixedRate(Runnable task, UserContextDO context, long initialDelay, long period, TimeUnit unit) {
+        return schedulePeriodic(task, context, initialDelay, period, unit, true);
+    }
+
+    /**
+     * 在当前线程的用户上下文中, 按固定间隔周期执行任务, 上一次执行结束后等待delay再开始下一次执行;
+     * 任务抛出的异常会记录日志, 不影响后续的执行
+     *
+     * @param task         需要执行的任务
+     * @param initialDelay 第一次执行的延迟时间
+     * @param delay        上一次执行结束到下一次执行开始的间隔
+     * @param unit         时间单位
+     * @return 用于取消任务的句柄
+     */
+    public static ScheduledTask scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        return schedulePeriodic(task, captureContext(), initialDelay, delay, unit, false);
+    }
+
+    /**
+     * 在指定用户上下文中, 按固定间隔周期执行任务, 见scheduleWithFixedDelay(Runnable, long, long, TimeUnit)
+     */
+    public static ScheduledTask scheduleWithFixedDelay(Runnable task, UserContextDO context, long initialDelay, long delay, TimeUnit unit) {
+        return schedulePeriodic(task, context, initialDelay, delay, unit, false);
+    }
+
+    /**
+     * 在当前线程的用户上下文中, 按key合并(防抖)执行任务
+     * 同一个key在安静期(delayMillis)内的多次提交只执行最后一次提交的任务(使用最后一次提交的用户上下文),
+     * 如 "重新计算物料X的库存" 在每次编辑明细行后提交, 最终只计算一次;
+     * 任务执行期间的新提交在本次执行结束后再合并执行一次, 同一个key的任务不会并发执行;
+     * 连续不断地提交时, 最多推迟安静期的10倍时间就会执行一次
+     *
+     * @param key         合并的key, 需要正确实现equals和hashCode
+     * @param delayMillis 安静期(毫秒)
+     * @param task        需要执行的任务
+     */
+    public static void executeCoalesced(Object key, long delayMillis, Runnable task) {
+        executeCoalesced(key, delayMillis, task, captureContext());
+    }
+
+    /**
+     * 在指定用户上下文中, 按key合并(防抖)执行任务, 见executeCoalesced(Object, long, Runnable)
+     *
+     * @param key         合并的key
+     * @param delayMillis 安静期(毫秒)
+     * @param task        需要执行的任务
+     * @param context     执行的用户上下文
+     */
+    public static void executeCoalesced(Object key, long delayMillis, Runnable task, UserContextDO context) {
+        Assert.notNull(key, "合并的key不能为空!");
+        Assert.isTrue(delayMillis >= 0, "安静期不能小于0!");
+        checkTask(task);
+        COALESCER.submit(key, TimeUnit.MILLISECONDS.toNanos(delayMillis), task, context);
+    }
+
+    /**
+     * 注册命名的隔离线程池, 一般在应用启动时调用, 同名线程池只能注册一次
+     *
+     * @param name          线程池名称
+     * @param threads       线程数
+     * @param queueCapacity 队列容量
+     * @param rejectPolicy  队列已满时的拒绝策略
+     * @return 注册的隔离线程池
+     */
+    public static Bulkhead registerBulkhead(String name, int threads, int queueCapacity, Bulkhead.RejectPolicy rejectPolicy) {
+        Bulkhead bulkhead = new Bulkhead(name, threads, queueCapacity, rejectPolicy);
+        Bulkhead existing = BULKHEADS.putIfAbsent(name, bulkhead);
+        if (existing != null) {
+            bulkhead.shutdown();
+            throw new IllegalStateException("隔离线程池: " + name + " 已经注册!");
+        }
+        //名称注册成功之后再注册JMX, 重复注册时不会覆盖正在使用的线程池的MBean
+        JmxUtils.register("AsyncBulkhead", name, bulkhead);
+        return bulkhead;
+    }
+
+    /**
+     * 获取已注册的隔离线程池, 如: AsyncTaskExecutor.on("notify").execute(task)
+     *
+     * @param name 线程池名称
+     * @return
+     */
+    public static Bulkhead on(String name) {
+        Bulkhead bulkhead = BULKHEADS.get(name);
+        Assert.notNull(bulkhead, "隔离线程池: " + name + " 没有注册!");
+        return bulkhead;
     }
 
     /**
      * 在当前事务成功提交后, 执行任务, 有一个额外参数async控制任务是否异步执行, 该参数一般为异步
+     * 同一个事务中提交的所有任务只注册一个事务同步器, 事务提交后按提交顺序处理: 连续的异步任务合并成一个或几个批量任务提交到线程池,
+     * 同步任务在当前线程中执行. 一个批量任务中的多个任务依次执行, 某个任务异常不影响其他任务
      *
      * @param runnable
      * @param context
      * @param async
      */
     public static void executeAfterTxCommit(final Runnable runnable, final UserContextDO context, final boolean async) {
-        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
-            @Override
-            public void afterCommit() {
-                execute(runnable, context, async);
-            }
-        });
+        executeAfterTxCommit(null, runnable, context, async);
+    }
+
+    /**
+     * 在当前事务成功提交后, 执行任务, 同一个事务中相同dedupKey的任务只执行最后提交的一个
+     * 用于同一个事务中多次提交相同的后续操作(如多次修改同一个物料后重新计算库存)
+     *
+     * @param dedupKey 去重的key, 为null时不去重
+     * @param runnable 需要执行的任务
+     * @param context  执行的用户上下文
+     * @param async    任务是否异步执行
+     */
+    public static void executeAfterTxCommit(Object dedupKey, Runnable runnable, UserContextDO context, boolean async) {
+        checkTask(runnable);
+        //事务挂起(如REQUIRES_NEW)时, 同步器的suspend会解除绑定, 因此这里取到的一定是当前事务的批量任务
+        AfterCommitBatch batch = (AfterCommitBatch) TransactionSynchronizationManager.getResource(AfterCommitBatch.class);
+        if (batch == null) {
+            batch = new AfterCommitBatch();
+            //没有事务时抛出IllegalStateException, 与之前的行为一致
+            TransactionSynchronizationManager.registerSynchronization(batch);
+            TransactionSynchronizationManager.bindResource(AfterCommitBatch.class, batch);
+        }
+        batch.add(dedupKey, runnable, context, async);
     }
 
     /**
@@ -103,7 +597,7 @@ public abstract class AsyncTaskExecutor {
      * @param async    任务是否异步执行, 若为false, 任务将在当前线程中同步执行
      */
     public static void executeAfterTxCommit(final Runnable runnable, final boolean async) {
-        executeAfterTxCommit(runnable, AsyncTaskExecutor.getCurrentUserContext(), async);
+        executeAfterTxCommit(runnable, captureContext(), async);
     }
 
     /**
@@ -128,7 +622,7 @@ public abstract class AsyncTaskExecutor {
      * @return
      */
     public static <T> Callable<T> newTaskWrapper(final Callable<T> task) {
-        return newTaskWrapper(task, getCurrentUserContext());
+        return newTaskWrapper(task, captureContext());
     }
 
 
@@ -145,6 +639,19 @@ public abstract class AsyncTaskExecutor {
                 task : new UserContextRunnable(task, context);
     }
 
+    /**
+     * 使用指定的用户上下文和截止时间, 将任务包装成可以安全异步执行的任务
+     *
+     * @param task
+     * @param context
+     * @param deadline 截止时间(System.nanoTime), 为null表示没有截止时间
+     * @return
+     */
+    static Runnable newTaskWrapper(final Runnable task, UserContextDO context, Long deadline) {
+        checkTask(task);
+        return new UserContextRunnable(task, context, deadline);
+    }
+
     /**
      * 使用当前线程的用户上下文, 将任务包装成可以安全异步执行的任务
      *
@@ -152,20 +659,84 @@ public abstract class AsyncTaskExecutor {
      * @return
      */
     public static Runnable newTaskWrapper(final Runnable task) {
-        return newTaskWrapper(task, getCurrentUserContext());
+        return newTaskWrapper(task, captureContext());
+    }
+
+    /**
+     * 为任务指定名称, 开启任务指标统计时按该名称分组, 没有名称的任务按任务类名分组(匿名类和lambda的类名没有可读性)
+     *
+     * @param name 任务名称
+     * @param task 任务
+     * @return 带名称的任务
+     */
+    public static Runnable named(final String name, final Runnable task) {
+        checkTask(task);
+        return new NamedRunnable(name, task);
     }
 
     /**
-     * 获取当前线程的用户上下文信息, 如果没有，则返回空的上下文，避免没有没有上下文的任务执行报错
+     * 为任务指定名称, 见named(String, Runnable)
+     *
+     * @param name 任务名称
+     * @param task 任务
+     * @return 带名称的任务
+     */
+    public static <T> Callable<T> named(final String name, final Callable<T> task) {
+        checkTask(task);
+        return new NamedCallable<>(name, task);
+    }
+
+    /**
+     * @return 任务指标, 也可以通过JMX(com.evun.xutil:type=AsyncTaskExecutor)查看和开关
+     */
+    public static TaskMetricsMXBean getTaskMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * @return 是否正在使用虚拟线程执行任务
+     */
+    public static boolean isVirtualThreadMode() {
+        return virtualExecutor != null;
+    }
+
+    /**
+     * 获取当前线程的用户上下文信息(快照), 如果没有，则返回空的上下文，避免没有没有上下文的任务执行报错
+     * 每次返回新的对象, 调用者可以修改
      *
      * @return
      */
     public static UserContextDO getCurrentUserContext() {
+        UserContextDO context = captureContext();
+        //快照在任务之间共享, 返回给调用者的必须是副本, 防止被修改
+        UserContextDO copy = new UserContextDO(context.getTicket(), context.getDevice(), null, context.getUser());
+        copy.setAttachment(context.getAttachment());
+        return copy;
+    }
+
+    /**
+     * 提交任务时使用的上下文快照, 快照只读, 可以在任务之间共享:
+     * 当前线程没有任何上下文时, 返回共享的空上下文; 上下文与本线程上一次的快照相同(同一个对象)时, 直接返回上一次的快照,
+     * 同一个请求中多次提交任务时不创建新对象, 也只调用一次UserContext.getUser
+     *
+     * @return
+     */
+    static UserContextDO captureContext() {
         try {
             Object ticket = NamedThreadLocalContext.getResource(RR.Context.AUTH_TICKET);
             Object device = NamedThreadLocalContext.getResource(DEVICE_NAME);
             Object attachment = NamedThreadLocalContext.getResource(UserContextDO.ATTACHMENT_KEY);
+            UserContextDO last = LAST_CAPTURED.get();
+            //其他字段都相同时才取用户, 一般只调用一次getUser
+            if (last.getTicket() == ticket && last.getDevice() == device && last.getAttachment() == attachment
+                    && last.getUser() == UserContext.getUser()) {
+                return last;
+            }
             UserContextDO userContextDO = new UserContextDO(ticket, device, null, UserContext.getUser());
+            if (ticket == null && device == null && attachment == null && userContextDO.getUser() == null) {
+                LAST_CAPTURED.set(EMPTY_CONTEXT);
+                return EMPTY_CONTEXT;
+            }
             if (attachment != null) {
                 if (attachment instanceof Serializable) {
                     userContextDO.setAttachment(((Serializable) attachment));
@@ -173,6 +744,7 @@ public abstract class AsyncTaskExecutor {
                     LOG.error("附件类型为{},没有实现Serializeable", attachment.getClass());
                 }
             }
+            LAST_CAPTURED.set(userContextDO);
             return userContextDO;
         } catch (Exception e) {
             LOG.error(null, e);
@@ -183,35 +755,164 @@ public abstract class AsyncTaskExecutor {
 
     //**** 私有方法 *****//
 
+    private static ScheduledTask schedulePeriodic(Runnable task, UserContextDO context, long initialDelay, long period,
+                                                  TimeUnit unit, boolean fixedRate) {
+        checkTask(task);
+        Assert.notNull(unit, "时间单位不能为空!");
+        Assert.isTrue(period > 0, "周期必须大于0!");
+        TimerTask timerTask = new TimerTask(task, context, unit.toNanos(period), fixedRate);
+        timerTask.scheduleAt(System.nanoTime() + unit.toNanos(initialDelay));
+        return timerTask;
+    }
+
+    //到截止时间时取消任务, 还没有开始的任务不再执行, 正在执行的任务被打断
+    //任务提前结束时同时取消时间轮中的定时任务, 见DeadlineFutureTask
+    private static void cancelAtDeadline(Future<?> future, long deadline) {
+        if (future.isDone()) {
+            return;
+        }
+        //taskExecutor创建的Future都是DeadlineFutureTask
+        ((DeadlineFutureTask<?>) future).cancelAt(deadline);
+    }
+
+    //结合当前线程的截止时间计算超时时间(纳秒), 0表示不超时
+    private static long timeoutWithinDeadline(long timeoutNanos) {
+        long remaining = Deadline.remainingNanos();
+        if (remaining == Long.MAX_VALUE) {
+            return timeoutNanos;
+        }
+        //已经超时时也不能返回0(表示不超时)
+        remaining = Math.max(1, remaining);
+        return timeoutNanos > 0 ? Math.min(timeoutNanos, remaining) : remaining;
+    }
+
     /**
-     * 将任务包装成可以安全异步执行的任务
+     * 创建虚拟线程执行器, 不使用虚拟线程时返回null, 由公共线程池执行任务
+     * 虚拟线程适合大量阻塞在io(redis, http, 数据库)上的任务, 为了兼容java8, 通过反射创建虚拟线程执行器,
+     * 运行在不支持虚拟线程的jdk上时, 自动回退到公共线程池.
+     * 用户上下文保存在ThreadLocal中, 每个任务都有自己的虚拟线程, 上下文的绑定和清除不涉及synchronized, 不会导致载体线程被钉住;
+     * 但任务本身在synchronized块中阻塞时依然会钉住载体线程(jdk24之前)
      *
-     * @param task
      * @return
      */
+    private static ThreadPoolTaskExecutor initExecutorService() {
+        ThreadPoolTaskExecutor shared = null;
+        try {
+            shared = SpringContext.getBean(ThreadPoolTaskExecutor.class);
+        } catch (Exception e) {
+            LOG.warn("从spring容器中获取公共线程池发生异常: {}", e.toString());
+        }
+        if (shared != null) {
+            return shared;
+        }
+        int threads = Integer.getInteger(LOCAL_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors() * 2);
+        LOG.warn("没有找到公共线程池, AsyncTaskExecutor使用{}个线程的本地线程池执行任务", threads);
+        ThreadPoolTaskExecutor local = new ThreadPoolTaskExecutor();
+        local.setCorePoolSize(threads);
+        local.setMaxPoolSize(threads);
+        local.setQueueCapacity(10000);
+        local.setThreadNamePrefix("xutil-async-");
+        local.setDaemon(true);
+        local.initialize();
+        return local;
+    }
+
+    private static ExecutorService initVirtualExecutor() {
+        if (Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ExecutorService virtualExecutor = (ExecutorService) factory.invoke(null);
+                LOG.info("AsyncTaskExecutor使用虚拟线程执行任务");
+                return virtualExecutor;
+            } catch (NoSuchMethodException e) {
+                LOG.warn("当前jdk: {} 不支持虚拟线程, 使用公共线程池执行任务", System.getProperty("java.version"));
+            } catch (Exception e) {
+                LOG.error("创建虚拟线程执行器发生异常, 使用公共线程池执行任务", e);
+            }
+        }
+        return null;
+    }
+
+    //开启任务指标时返回当前时间作为提交时间, 否则返回0表示不统计
+    private static long enqueueNanos() {
+        return METRICS.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * 任务开始前绑定截止时间
+     *
+     * @param deadline 截止时间, 为null时不绑定
+     * @param task     原始任务, 用于记录日志
+     * @return 已经超过截止时间返回false, 任务不再执行
+     */
+    private static boolean bindDeadline(Long deadline, Object task) {
+        if (deadline == null) {
+            return true;
+        }
+        if (deadline - System.nanoTime() <= 0) {
+            LOG.warn("任务: {} 在开始执行前已经超过截止时间, 不再执行!", TaskMetrics.getTaskName(task));
+            return false;
+        }
+        NamedThreadLocalContext.bindResource(Deadline.CONTEXT_KEY, deadline);
+        return true;
+    }
+
+    //提交者在跟踪中时, 异步任务作为提交者当前span的子span
+    private static Span startTaskSpan(Span parentSpan, Object task) {
+        return parentSpan == null ? null : Tracer.startSpan(parentSpan, "async " + TaskMetrics.getTaskName(task));
+    }
+
+    private static void finishTaskSpan(Span span, boolean success) {
+        if (span != null) {
+            if (!success) {
+                span.markError();
+            }
+            span.finish();
+        }
+    }
+
     private static class UserContextRunnable implements Runnable {
         private final Runnable task;
         private final UserContextDO context;
+        private final long enqueueNanos;
+        //截止时间(System.nanoTime), 为null表示没有截止时间
+        private final Long deadline;
+        //提交者线程的当前span, 不在跟踪中时为null
+        private final Span parentSpan;
 
         UserContextRunnable(final Runnable task, final UserContextDO context) {
+            //默认不继承提交者线程的截止时间
+            this(task, context, null);
+        }
+
+        UserContextRunnable(final Runnable task, final UserContextDO context, final Long deadline) {
             this.task = task;
             this.context = context;
+            this.deadline = deadline;
+            this.parentSpan = Tracer.currentSpan();
+            this.enqueueNanos = enqueueNanos();
         }
 
         @Override
         public void run() {
+            long startNanos = enqueueNanos == 0 ? 0 : System.nanoTime();
+            boolean success = false;
+            Span span = null;
             try {
-                NamedThreadLocalContext.unBindAll();
-                NamedThreadLocalContext.bindResource(RR.Context.AUTH_TICKET, context.getTicket());
-                NamedThreadLocalContext.bindResource(DEVICE_NAME, context.getDevice());
-                NamedThreadLocalContext.bindResource(LOCALE_CLASS_NAME, context.getLocale());
-                NamedThreadLocalContext.bindResource(UserContextDO.ATTACHMENT_KEY, context.getAttachment());
-                //确保用户用户对象存在在当前上下文中
-                tryEnsureUserContext(context);
-                //使用反射方式调用, 防止sonar报错
-                ReflectionUtils.invokeMethodByName(task, "run", new Object[0]);
+                restoreContext(context);
+                if (!bindDeadline(deadline, task)) {
+                    return;
+                }
+                span = startTaskSpan(parentSpan, task);
+                //直接调用, 避免每个任务都做一次反射查找
+                task.run(); //NOSONAR
+                success = true;
             } finally {
+                finishTaskSpan(span, success);
                 NamedThreadLocalContext.unBindAll();
+                if (startNanos != 0) {
+                    METRICS.record(task, enqueueNanos, startNanos, System.nanoTime(), success);
+                }
             }
         }
     }
@@ -219,29 +920,506 @@ public abstract class AsyncTaskExecutor {
     private static class UserContextCallable<T> implements Callable<T> {
         private final Callable<T> task;
         private final UserContextDO context;
+        private final long enqueueNanos;
+        //截止时间(System.nanoTime), 为null表示没有截止时间
+        private final Long deadline;
+        //提交者线程的当前span, 不在跟踪中时为null
+        private final Span parentSpan;
 
         UserContextCallable(final Callable<T> task, final UserContextDO context) {
+            //默认不继承提交者线程的截止时间
+            this(task, context, null);
+        }
+
+        UserContextCallable(final Callable<T> task, final UserContextDO context, final Long deadline) {
             this.task = task;
             this.context = context;
+            this.deadline = deadline;
+            this.parentSpan = Tracer.currentSpan();
+            this.enqueueNanos = enqueueNanos();
         }
 
         @Override
         public T call() throws Exception {
+            long startNanos = enqueueNanos == 0 ? 0 : System.nanoTime();
+            boolean success = false;
+            Span span = null;
             try {
-                NamedThreadLocalContext.unBindAll();
-                NamedThreadLocalContext.bindResource(RR.Context.AUTH_TICKET, context.getTicket());
-                NamedThreadLocalContext.bindResource(DEVICE_NAME, context.getDevice());
-                NamedThreadLocalContext.bindResource(Locale.class.getName(), context.getLocale());
-                NamedThreadLocalContext.bindResource(UserContextDO.ATTACHMENT_KEY, context.getAttachment());
-                tryEnsureUserContext(context);
-                //使用反射方式调用, 防止sonar报错
-                return (T) ReflectionUtils.invokeMethodByName(task, "call", new Object[0]);
+                restoreContext(context);
+                if (!bindDeadline(deadline, task)) {
+                    throw new TimeoutException("任务在开始执行前已经超过截止时间!");
+                }
+                span = startTaskSpan(parentSpan, task);
+                T result = task.call();
+                success = true;
+                return result;
             } finally {
+                finishTaskSpan(span, success);
                 NamedThreadLocalContext.unBindAll();
+                if (startNanos != 0) {
+                    METRICS.record(task, enqueueNanos, startNanos, System.nanoTime(), success);
+                }
             }
         }
     }
 
+    private static class NamedRunnable implements Runnable, NamedTask {
+        private final String name;
+        private final Runnable task;
+
+        NamedRunnable(String name, Runnable task) {
+            this.name = name;
+            this.task = task;
+        }
+
+        @Override
+        public String getTaskName() {
+            return name;
+        }
+
+        @Override
+        public void run() {
+            task.run(); //NOSONAR
+        }
+    }
+
+    private static class NamedCallable<T> implements Callable<T>, NamedTask {
+        private final String name;
+        private final Callable<T> task;
+
+        NamedCallable(String name, Callable<T> task) {
+            this.name = name;
+            this.task = task;
+        }
+
+        @Override
+        public String getTaskName() {
+            return name;
+        }
+
+        @Override
+        public T call() throws Exception {
+            return task.call();
+        }
+    }
+
+    /**
+     * 在当前(线程池)线程中恢复提交者的用户上下文, 先清除线程中残留的上下文(公共线程池也被平台其他代码使用),
+     * 只绑定非空的值, 空上下文不做任何绑定
+     *
+     * @param context 提交者的用户上下文
+     */
+    private static void restoreContext(UserContextDO context) {
+        NamedThreadLocalContext.unBindAll();
+        if (context == EMPTY_CONTEXT) {
+            return;
+        }
+        bindIfPresent(RR.Context.AUTH_TICKET, context.getTicket());
+        bindIfPresent(DEVICE_NAME, context.getDevice());
+        bindIfPresent(LOCALE_CLASS_NAME, context.getLocale());
+        bindIfPresent(UserContextDO.ATTACHMENT_KEY, context.getAttachment());
+        //确保用户用户对象存在在当前上下文中
+        tryEnsureUserContext(context);
+    }
+
+    /**
+     * 在当前线程中, 使用指定的用户上下文同步执行任务:
+     * 先保存当前线程的上下文绑定, 再绑定指定的上下文, 执行任务, 最后恢复原来的绑定.
+     * 只替换用户上下文相关的绑定, 不调用unBindAll, 因此当前线程中的其他绑定不受影响
+     *
+     * @param task    需要执行的任务(未包装)
+     * @param context 执行的用户上下文
+     */
+    static void runWithContextSwap(Runnable task, UserContextDO context) {
+        Object oldTicket = NamedThreadLocalContext.getResource(RR.Context.AUTH_TICKET);
+        Object oldDevice = NamedThreadLocalContext.getResource(DEVICE_NAME);
+        Object oldLocale = NamedThreadLocalContext.getResource(LOCALE_CLASS_NAME);
+        Object oldAttachment = NamedThreadLocalContext.getResource(UserContextDO.ATTACHMENT_KEY);
+        UserContextDO callerContext = new UserContextDO(oldTicket, oldDevice, null, UserContext.getUser());
+        //指定的上下文没有用户时(如定时任务), 保留当前线程的用户
+        boolean swapUser = context.getUser() != null && context.getUser() != callerContext.getUser();
+        try {
+            NamedThreadLocalContext.bindResource(RR.Context.AUTH_TICKET, context.getTicket());
+            NamedThreadLocalContext.bindResource(DEVICE_NAME, context.getDevice());
+            NamedThreadLocalContext.bindResource(LOCALE_CLASS_NAME, context.getLocale());
+            NamedThreadLocalContext.bindResource(UserContextDO.ATTACHMENT_KEY, context.getAttachment());
+            if (swapUser) {
+                UserContext.setUser(context.getUser());
+            }
+            task.run(); //NOSONAR
+        } finally {
+            NamedThreadLocalContext.bindResource(RR.Context.AUTH_TICKET, oldTicket);
+            NamedThreadLocalContext.bindResource(DEVICE_NAME, oldDevice);
+            NamedThreadLocalContext.bindResource(LOCALE_CLASS_NAME, oldLocale);
+            NamedThreadLocalContext.bindResource(UserContextDO.ATTACHMENT_KEY, oldAttachment);
+            if (swapUser) {
+                UserContext.setUser(callerContext.getUser());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> toList(Object[] results) {
+        List<T> list = new ArrayList<>(results.length);
+        for (Object result : results) {
+            list.add((T) result);
+        }
+        return list;
+    }
+
+    private static void bindIfPresent(String key, Object value) {
+        if (value != null) {
+            NamedThreadLocalContext.bindResource(key, value);
+        }
+    }
+
+    /**
+     * 一个事务中所有事务提交后执行的任务, 作为一个事务同步器注册, 同时以AfterCommitBatch.class为key绑定到事务资源, 方便查找
+     */
+    private static class AfterCommitBatch extends TransactionSynchronizationAdapter {
+        //key为去重key, 不需要去重的任务使用任务对象本身作为key
+        private final Map<Object, AfterCommitTask> tasks = new LinkedHashMap<>();
+
+        void add(Object dedupKey, Runnable runnable, UserContextDO context, boolean async) {
+            AfterCommitTask task = new AfterCommitTask(runnable, context, async);
+            Object key = dedupKey == null ? task : dedupKey;
+            //LinkedHashMap替换值时保留原来的顺序
+            tasks.put(key, task);
+        }
+
+        @Override
+        public void suspend() {
+            TransactionSynchronizationManager.unbindResourceIfPossible(AfterCommitBatch.class);
+        }
+
+        @Override
+        public void resume() {
+            TransactionSynchronizationManager.bindResource(AfterCommitBatch.class, this);
+        }
+
+        @Override
+        public void afterCommit() {
+            //执行期间再提交的任务不能加入正在遍历的批量任务
+            TransactionSynchronizationManager.unbindResourceIfPossible(AfterCommitBatch.class);
+            List<Runnable> asyncTasks = new ArrayList<>();
+            for (AfterCommitTask task : tasks.values()) {
+                if (task.async) {
+                    asyncTasks.add(newTaskWrapper(task.runnable, task.context));
+                } else {
+                    //保持提交顺序: 之前提交的异步任务先提交到线程池, 之后提交的异步任务在同步任务执行结束后才提交
+                    submitPartitioned(asyncTasks);
+                    asyncTasks = new ArrayList<>();
+                    runWithContextSwap(task.runnable, task.context);
+                }
+            }
+            submitPartitioned(asyncTasks);
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(AfterCommitBatch.class);
+            tasks.clear();
+        }
+
+        //任务较少时合并成一个批量任务, 较多时拆分成最多AFTER_COMMIT_MAX_PARTITIONS个批量任务并行执行
+        private static void submitPartitioned(List<Runnable> asyncTasks) {
+            int size = asyncTasks.size();
+            if (size == 0) {
+                return;
+            }
+            if (size == 1) {
+                taskExecutor.submit(asyncTasks.get(0));
+                return;
+            }
+            int partitions = Math.min(AFTER_COMMIT_MAX_PARTITIONS,
+                    (size + AFTER_COMMIT_MIN_PARTITION_SIZE - 1) / AFTER_COMMIT_MIN_PARTITION_SIZE);
+            int partitionSize = (size + partitions - 1) / partitions;
+            for (int from = 0; from < size; from += partitionSize) {
+                final List<Runnable> partition = asyncTasks.subList(from, Math.min(size, from + partitionSize));
+                taskExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Runnable task : partition) {
+                            try {
+                                //每个任务都是包装过的, 会各自绑定和清除用户上下文
+                                task.run(); //NOSONAR
+                            } catch (Exception e) {
+                                LOG.error("执行事务提交后的任务发生异常！", e);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static class AfterCommitTask {
+        private final Runnable runnable;
+        private final UserContextDO context;
+        private final boolean async;
+
+        AfterCommitTask(Runnable runnable, UserContextDO context, boolean async) {
+            this.runnable = runnable;
+            this.context = context;
+            this.async = async;
+        }
+    }
+
+    /**
+     * 优先级线程池, 第一次使用时才创建
+     * 线程数: -Dxutil.async.priorityThreads, 默认为公共线程池核心线程数的1/4(至少1个)
+     * 优先级线程池是公共线程池之外额外的线程, 只需要保证用户等待的任务不被后台任务堵住, 线程数与公共线程池相同会让应用的线程数翻倍;
+     * 交互任务较多时再通过参数调大
+     * 队列容量: -Dxutil.async.priorityQueueCapacity, 默认10000
+     * 队列已满时的拒绝与公共线程池一样计入任务指标的拒绝数
+     */
+    private static class PriorityHolder {
+        private static final PriorityTaskExecutor EXECUTOR = new PriorityTaskExecutor(
+                Integer.getInteger("xutil.async.priorityThreads", Math.max(1, executorService.getCorePoolSize() / 4)),
+                Integer.getInteger("xutil.async.priorityQueueCapacity", 10000), METRICS);
+    }
+
+    /**
+     * 延迟任务和周期任务, 在时间轮中等待, 到期后提交到线程池, 在线程池中执行结束后再放回时间轮(周期任务)
+     * 同一时刻只有一个线程在调度或者执行同一个任务, 因此nextRunNanos不需要同步
+     */
+    private static class TimerTask implements ScheduledTask, NamedTask, Runnable {
+        //一次性任务被线程池拒绝后重试的间隔
+        private static final long REJECTED_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final Runnable task;
+        private final UserContextDO context;
+        //周期(纳秒), 0表示只执行一次
+        private final long periodNanos;
+        private final boolean fixedRate;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final Runnable dispatcher = new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        };
+        private long nextRunNanos;
+        private volatile boolean done;
+        private volatile HashedWheelTimer.Timeout timeout;
+        private volatile Future<?> running;
+
+        TimerTask(Runnable task, UserContextDO context, long periodNanos, boolean fixedRate) {
+            this.task = task;
+            this.context = context;
+            this.periodNanos = periodNanos;
+            this.fixedRate = fixedRate;
+        }
+
+        void scheduleAt(long timeNanos) {
+            nextRunNanos = timeNanos;
+            timeout = TIMER.newTimeout(dispatcher, timeNanos - System.nanoTime());
+            //与cancel并发时, cancel可能取消的是上一个timeout
+            if (cancelled.get()) {
+                timeout.cancel();
+            }
+        }
+
+        //在tick线程中执行, 只提交任务, 不能阻塞
+        private void dispatch() {
+            if (cancelled.get()) {
+                return;
+            }
+            try {
+                //每次执行都创建新的包装, 排队时间从到期时开始计算
+                running = taskExecutor.submit(new UserContextRunnable(this, context, null));
+            } catch (RejectedExecutionException e) {
+                if (periodNanos == 0) {
+                    //一次性任务不能丢失, 稍后重试
+                    LOG.warn("定时任务: {} 被线程池拒绝, {}毫秒后重试!", getTaskName(), TimeUnit.NANOSECONDS.toMillis(REJECTED_RETRY_NANOS));
+                    scheduleAt(System.nanoTime() + REJECTED_RETRY_NANOS);
+                } else {
+                    //周期任务跳过本次执行
+                    LOG.error("定时任务: " + getTaskName() + " 被线程池拒绝, 跳过本次执行!", e);
+                    afterRun();
+                }
+            }
+        }
+
+        //在线程池中执行, 此时已经处于用户上下文中
+        @Override
+        public void run() {
+            if (cancelled.get()) {
+                return;
+            }
+            try {
+                task.run(); //NOSONAR
+            } catch (RuntimeException | Error e) {
+                LOG.error("执行定时任务: " + getTaskName() + " 发生异常！", e);
+                throw e;
+            } finally {
+                afterRun();
+            }
+        }
+
+        private void afterRun() {
+            if (periodNanos == 0) {
+                done = true;
+            } else if (!cancelled.get()) {
+                scheduleAt(fixedRate ? nextRunNanos + periodNanos : System.nanoTime() + periodNanos);
+            }
+        }
+
+        @Override
+        public String getTaskName() {
+            if (task instanceof NamedTask) {
+                return ((NamedTask) task).getTaskName();
+            }
+            return task.getClass().getName();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (done || !cancelled.compareAndSet(false, true)) {
+                return false;
+            }
+            HashedWheelTimer.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+            Future<?> future = running;
+            if (future != null) {
+                future.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled.get();
+        }
+    }
+
+    /**
+     * 向公共线程池或者虚拟线程执行器提交任务, 拒绝时统一抛出spring的TaskRejectedException, 与直接使用公共线程池时一致
+     * 不能关闭: 公共线程池由spring管理, 虚拟线程执行器与应用的生命周期相同
+     */
+    private static class TaskExecutorService extends AbstractExecutorService {
+        private final Executor delegate;
+        private final boolean virtual;
+
+        TaskExecutorService(Executor delegate, boolean virtual) {
+            this.delegate = delegate;
+            this.virtual = virtual;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            //虚拟线程没有线程池可以查询, 由任务指标自己统计正在运行的虚拟线程
+            Runnable task = virtual ? METRICS.trackVirtualThread(command) : command;
+            try {
+                delegate.execute(task);
+            } catch (TaskRejectedException e) {
+                METRICS.recordRejected();
+                throw e;
+            } catch (RejectedExecutionException e) {
+                METRICS.recordRejected();
+                throw new TaskRejectedException("执行器: " + delegate + " 拒绝了任务: " + command, e);
+            }
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            return new DeadlineFutureTask<>(runnable, value);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new DeadlineFutureTask<>(callable);
+        }
+
+        @Override
+        public void shutdown() {
+            throw new UnsupportedOperationException("AsyncTaskExecutor的执行器不能关闭!");
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            throw new UnsupportedOperationException("AsyncTaskExecutor的执行器不能关闭!");
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+
+    /**
+     * taskExecutor提交的任务的Future, 带截止时间时在时间轮中安排取消;
+     * 任务提前结束(完成, 异常或者被取消)时取消时间轮中的定时任务, 不用等到截止时间才从时间轮中移除
+     */
+    private static class DeadlineFutureTask<T> extends FutureTask<T> {
+        private volatile HashedWheelTimer.Timeout deadlineTimeout;
+
+        DeadlineFutureTask(Callable<T> callable) {
+            super(callable);
+        }
+
+        DeadlineFutureTask(Runnable runnable, T value) {
+            super(runnable, value);
+        }
+
+        void cancelAt(long deadline) {
+            HashedWheelTimer.Timeout timeout = TIMER.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    cancel(true);
+                }
+            }, deadline - System.nanoTime());
+            deadlineTimeout = timeout;
+            //任务可能在设置deadlineTimeout之前已经结束, done()没有看到定时任务
+            if (isDone()) {
+                timeout.cancel();
+            }
+        }
+
+        @Override
+        protected void done() {
+            HashedWheelTimer.Timeout timeout = deadlineTimeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * 在指定用户上下文中执行所有任务的执行器
+     */
+    private static class ContextExecutor implements Executor {
+        private final Executor delegate;
+        private final UserContextDO context;
+
+        ContextExecutor(Executor delegate, UserContextDO context) {
+            this.delegate = delegate;
+            this.context = context;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(newTaskWrapper(command, context));
+        }
+    }
+
     private static void tryEnsureUserContext(UserContextDO context) {
         //在当前线程没有用户上下文时，尝试设置上下文，由于有可能有定时任务（定时任务没有用户上下文）也使用此类，
         // 为了保证定时任务顺利执行，在没法获取用户上下文时，不抛出异常
@@ -0,0 +1,219 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.common.model.UserContextDO;
+import cn.evun.gap.common.utils.Assert;
+import cn.evun.gap.common.utils.StringUtils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 命名的隔离线程池, 每个隔离线程池有独立的线程, 有界队列和拒绝策略, 不同类型的任务互不影响
+ * (如大量慢速的报表任务不会占满事务提交后的通知任务所用的线程)
+ * 通过 AsyncTaskExecutor.registerBulkhead 注册, 通过 AsyncTaskExecutor.on(name) 获取, 用户上下文的传递方式与AsyncTaskExecutor完全相同:
+ * <p>
+ * AsyncTaskExecutor.registerBulkhead("notify", 4, 1000, Bulkhead.RejectPolicy.CALLER_RUNS);
+ * AsyncTaskExecutor.on("notify").execute(task);
+ */
+public final class Bulkhead implements BulkheadMXBean {
+    private final String name;
+    private final int threads;
+    private final int queueCapacity;
+    private final RejectPolicy rejectPolicy;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    Bulkhead(final String name, int threads, int queueCapacity, RejectPolicy rejectPolicy) {
+        Assert.isTrue(StringUtils.isNotEmpty(name), "线程池名称不能为空!");
+        Assert.isTrue(threads > 0, "线程数必须大于0!");
+        Assert.isTrue(queueCapacity > 0, "队列容量必须大于0!");
+        Assert.notNull(rejectPolicy, "拒绝策略不能为空!");
+        this.name = name;
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        this.rejectPolicy = rejectPolicy;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger index = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "bulkhead-" + name + "-" + index.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new CountingRejectionHandler());
+        //空闲的线程也可以被回收
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 使用当前线程的用户上下文异步执行任务
+     *
+     * @param runnable 需要执行的任务
+     */
+    public void execute(Runnable runnable) {
+        execute(runnable, AsyncTaskExecutor.captureContext());
+    }
+
+    /**
+     * 使用指定的用户上下文异步执行任务
+     *
+     * @param runnable 需要执行的任务
+     * @param context  执行的用户上下文
+     */
+    public void execute(Runnable runnable, UserContextDO context) {
+        Runnable task = AsyncTaskExecutor.newTaskWrapper(runnable, context);
+        submitted.increment();
+        try {
+            executor.execute(task);
+        } catch (CallerRunsSignal e) {
+            AsyncTaskExecutor.runWithContextSwap(runnable, context);
+        }
+    }
+
+    /**
+     * 使用当前线程的用户上下文异步执行有返回值的任务
+     *
+     * @param callable 需要执行的任务
+     * @return
+     */
+    public <T> Future<T> submit(Callable<T> callable) {
+        return submit(callable, AsyncTaskExecutor.captureContext());
+    }
+
+    /**
+     * 使用指定的用户上下文异步执行有返回值的任务
+     *
+     * @param callable 需要执行的任务
+     * @param context  执行的用户上下文
+     * @return
+     */
+    public <T> Future<T> submit(Callable<T> callable, UserContextDO context) {
+        Callable<T> task = AsyncTaskExecutor.newTaskWrapper(callable, context);
+        submitted.increment();
+        try {
+            return executor.submit(task);
+        } catch (CallerRunsSignal e) {
+            FutureTask<T> future = new FutureTask<>(callable);
+            AsyncTaskExecutor.runWithContextSwap(future, context);
+            return future;
+        }
+    }
+
+    /**
+     * 关闭线程池, 已经提交的任务会继续执行
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getRejectPolicy() {
+        return rejectPolicy.name();
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * 队列已满时的拒绝策略
+     */
+    public enum RejectPolicy {
+        /**
+         * 在提交者线程中同步执行, 执行期间只替换用户上下文相关的绑定, 提交者线程中的其他绑定(截止时间, 调用链等)不受影响
+         */
+        CALLER_RUNS,
+        /**
+         * 丢弃队列中最早的任务(被丢弃任务的Future会被取消), 再尝试放入新任务
+         */
+        DISCARD_OLDEST,
+        /**
+         * 抛出RejectedExecutionException
+         */
+        FAIL
+    }
+
+    //队列已满且拒绝策略为CALLER_RUNS, 只用于通知execute/submit, 不会抛给调用者
+    private static class CallerRunsSignal extends RejectedExecutionException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private class CountingRejectionHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+            rejected.increment();
+            if (pool.isShutdown()) {
+                throw new RejectedExecutionException("线程池: " + name + " 已经关闭, 任务被拒绝!");
+            }
+            switch (rejectPolicy) {
+                case CALLER_RUNS:
+                    //r是已经包装过的任务, 直接运行会清除提交者线程的所有绑定, 由execute/submit使用原始任务在提交者线程中执行
+                    throw new CallerRunsSignal();
+                case DISCARD_OLDEST:
+                    Runnable oldest = pool.getQueue().poll();
+                    if (oldest instanceof Future) {
+                        ((Future<?>) oldest).cancel(false);
+                    }
+                    pool.execute(r);
+                    break;
+                default:
+                    throw new RejectedExecutionException("线程池: " + name + " 已满, 任务被拒绝!");
+            }
+        }
+    }
+}
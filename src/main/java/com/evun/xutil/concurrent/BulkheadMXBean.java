@@ -0,0 +1,25 @@
+package com.evun.xutil.concurrent;
+
+/**
+ * 隔离线程池指标的JMX接口, 注册名为 com.evun.xutil:type=AsyncBulkhead,name=线程池名称
+ */
+public interface BulkheadMXBean {
+
+    String getName();
+
+    String getRejectPolicy();
+
+    int getThreads();
+
+    int getQueueCapacity();
+
+    int getActiveCount();
+
+    int getQueueSize();
+
+    long getSubmittedCount();
+
+    long getCompletedCount();
+
+    long getRejectedCount();
+}
@@ -0,0 +1,219 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.common.utils.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 线程安全的本地缓存, 有总权重上限(如条数, 估算的字节数)和过期时间, 读取不加锁
+ * 近似LRU: 读取只记录访问时间; 总权重超过上限时, 由一个写入线程按访问时间批量淘汰最久没有访问的元素,
+ * 直到总权重不超过上限的EVICT_TO_RATIO, 淘汰期间其他线程不等待, 因此总权重可能短暂地超过上限
+ * 过期的元素在读取时删除, 没有再被读取的过期元素随淘汰删除
+ *
+ * @param <K>
+ * @param <V>
+ */
+public final class ConcurrentLruCache<K, V> {
+    //批量淘汰后的总权重比例, 避免每次写入都触发淘汰
+    private static final double EVICT_TO_RATIO = 0.9;
+    //nanoTime可能溢出, 比较差值
+    private static final Comparator<Candidate<?, ?>> OLDEST_FIRST = new Comparator<Candidate<?, ?>>() {
+        @Override
+        public int compare(Candidate<?, ?> o1, Candidate<?, ?> o2) {
+            return Long.compare(o1.accessNanos - o2.accessNanos, 0);
+        }
+    };
+
+    private final ConcurrentHashMap<K, Node<V>> map = new ConcurrentHashMap<>();
+    private final long maxWeight;
+    private final long ttlNanos;
+    private final AtomicLong weight = new AtomicLong();
+    private final LongAdder evictions = new LongAdder();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * @param maxWeight 总权重上限
+     * @param ttl       过期时间
+     * @param unit      时间单位
+     */
+    public ConcurrentLruCache(long maxWeight, long ttl, TimeUnit unit) {
+        Assert.isTrue(maxWeight > 0, "缓存容量必须大于0!");
+        Assert.isTrue(ttl > 0, "缓存过期时间必须大于0!");
+        this.maxWeight = maxWeight;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * @param key 缓存key
+     * @return 缓存值, 不存在或者已经过期时返回null
+     */
+    public V get(K key) {
+        Node<V> node = map.get(key);
+        if (node == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (now - node.expireAt >= 0) {
+            removeNode(key, node);
+            return null;
+        }
+        node.accessNanos = now;
+        return node.value;
+    }
+
+    /**
+     * 写入权重为1的元素
+     *
+     * @param key   缓存key
+     * @param value 缓存值
+     */
+    public void put(K key, V value) {
+        put(key, value, 1);
+    }
+
+    /**
+     * @param key         缓存key
+     * @param value       缓存值
+     * @param entryWeight 元素的权重
+     */
+    public void put(K key, V value, long entryWeight) {
+        long now = System.nanoTime();
+        Node<V> node = new Node<>(value, entryWeight, now + ttlNanos, now);
+        Node<V> old = map.put(key, node);
+        //每个元素进入map时加一次权重, 离开map(被替换或者删除)时减一次
+        weight.addAndGet(old == null ? entryWeight : entryWeight - old.weight);
+        if (weight.get() > maxWeight) {
+            evict();
+        }
+    }
+
+    /**
+     * @param key 缓存key
+     * @return 删除的缓存值, 不存在时返回null
+     */
+    public V remove(K key) {
+        Node<V> node = map.remove(key);
+        if (node == null) {
+            return null;
+        }
+        weight.addAndGet(-node.weight);
+        return node.value;
+    }
+
+    /**
+     * 只有当前的缓存值是value(同一个对象)时才删除
+     *
+     * @param key   缓存key
+     * @param value 缓存值
+     * @return 是否删除
+     */
+    public boolean remove(K key, V value) {
+        Node<V> node = map.get(key);
+        return node != null && node.value == value && removeNode(key, node);
+    }
+
+    public void clear() {
+        for (Map.Entry<K, Node<V>> entry : map.entrySet()) {
+            removeNode(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return 当前的元素数量(含已经过期但还没有删除的元素)
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * @return 当前的总权重
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return 因为超过上限被淘汰的元素数量
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private boolean removeNode(K key, Node<V> node) {
+        if (map.remove(key, node)) {
+            weight.addAndGet(-node.weight);
+            return true;
+        }
+        return false;
+    }
+
+    //按访问时间从旧到新淘汰, 已经有线程在淘汰时直接返回
+    @SuppressWarnings("unchecked")
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            if (weight.get() <= maxWeight) {
+                return;
+            }
+            //先固定访问时间再排序, 排序期间访问时间的变化不影响比较结果
+            List<Candidate<K, V>> candidates = new ArrayList<>(map.size());
+            for (Map.Entry<K, Node<V>> entry : map.entrySet()) {
+                candidates.add(new Candidate<>(entry.getKey(), entry.getValue()));
+            }
+            Candidate<K, V>[] sorted = candidates.toArray(new Candidate[candidates.size()]);
+            Arrays.sort(sorted, OLDEST_FIRST);
+            long target = (long) (maxWeight * EVICT_TO_RATIO);
+            for (Candidate<K, V> candidate : sorted) {
+                if (weight.get() <= target) {
+                    break;
+                }
+                if (removeNode(candidate.key, candidate.node)) {
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static class Node<V> {
+        private final V value;
+        private final long weight;
+        private final long expireAt;
+        private volatile long accessNanos;
+
+        Node(V value, long weight, long expireAt, long accessNanos) {
+            this.value = value;
+            this.weight = weight;
+            this.expireAt = expireAt;
+            this.accessNanos = accessNanos;
+        }
+    }
+
+    private static class Candidate<K, V> {
+        private final K key;
+        private final Node<V> node;
+        private final long accessNanos;
+
+        Candidate(K key, Node<V> node) {
+            this.key = key;
+            this.node = node;
+            this.accessNanos = node.accessNanos;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.core.context.NamedThreadLocalContext;
+import cn.evun.gap.core.exception.GapRuntimeException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 当前线程的截止时间(剩余时间预算), 保存在NamedThreadLocalContext中, 随AsyncTaskExecutor的任务一起传递到异步线程
+ * 使用带超时的AsyncTaskExecutor.submit/execute, 以及AsyncTaskExecutor.submitWithinDeadline提交的任务, 会在执行期间绑定截止时间;
+ * 其他方式提交的任务默认不继承提交者的截止时间; redis, http等调用可以通过remainingMillis()获取剩余时间, 设置自己的超时时间
+ * 使用示例:
+ * <p>
+ * int readTimeout = (int) Math.min(DEFAULT_READ_TIMEOUT_MILLIS, Deadline.remainingMillis());
+ */
+public abstract class Deadline {
+    //在NamedThreadLocalContext中保存截止时间(System.nanoTime)的key
+    public static final String CONTEXT_KEY = Deadline.class.getName();
+
+    /**
+     * @return 当前线程的截止时间(System.nanoTime), 没有截止时间时返回null
+     */
+    public static Long current() {
+        return (Long) NamedThreadLocalContext.getResource(CONTEXT_KEY);
+    }
+
+    /**
+     * @return 当前线程是否有截止时间
+     */
+    public static boolean hasDeadline() {
+        return current() != null;
+    }
+
+    /**
+     * @return 剩余时间(纳秒), 已经超时返回0, 没有截止时间返回Long.MAX_VALUE
+     */
+    public static long remainingNanos() {
+        Long deadline = current();
+        return deadline == null ? Long.MAX_VALUE : Math.max(0, deadline - System.nanoTime());
+    }
+
+    /**
+     * @return 剩余时间(毫秒), 已经超时返回0, 没有截止时间返回Long.MAX_VALUE
+     */
+    public static long remainingMillis() {
+        long remaining = remainingNanos();
+        return remaining == Long.MAX_VALUE ? remaining : TimeUnit.NANOSECONDS.toMillis(remaining);
+    }
+
+    /**
+     * @return 当前线程的截止时间是否已经过去, 没有截止时间返回false
+     */
+    public static boolean isExpired() {
+        return remainingNanos() == 0;
+    }
+
+    /**
+     * 当前线程的截止时间已经过去时抛出异常, 用于在耗时操作之前提前结束
+     *
+     * @throws GapRuntimeException cause为TimeoutException
+     */
+    public static void checkNotExpired() {
+        if (isExpired()) {
+            throw new GapRuntimeException(new TimeoutException("已经超过截止时间!"));
+        }
+    }
+
+    /**
+     * 在当前线程中设置截止时间并执行任务, 结束后恢复原来的截止时间; 已经有更早的截止时间时使用更早的截止时间
+     * 不会打断当前线程, 任务需要自己检查剩余时间
+     *
+     * @param timeout 超时时间
+     * @param unit    时间单位
+     * @param task    需要执行的任务
+     * @return 任务结果
+     */
+    public static <T> T callWithin(long timeout, TimeUnit unit, Callable<T> task) throws Exception {
+        Long old = current();
+        NamedThreadLocalContext.bindResource(CONTEXT_KEY, earliest(old, System.nanoTime() + unit.toNanos(timeout)));
+        try {
+            return task.call();
+        } finally {
+            NamedThreadLocalContext.bindResource(CONTEXT_KEY, old);
+        }
+    }
+
+    /**
+     * 计算新的截止时间, 不能晚于当前线程已有的截止时间
+     *
+     * @param timeout 超时时间
+     * @param unit    时间单位
+     * @return 截止时间(System.nanoTime)
+     */
+    static long after(long timeout, TimeUnit unit) {
+        return earliest(current(), System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    private static long earliest(Long current, long deadline) {
+        return current != null && current - deadline < 0 ? current : deadline;
+    }
+}
@@ -0,0 +1,260 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.common.utils.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 时间轮定时器, 适合大量(成千上万个)对精度要求不高(tick级别)的定时任务
+ * 特性:
+ * 1. 只使用一个后台守护线程, 第一次添加定时任务时才启动; 添加和取消都是无锁操作, 复杂度O(1)
+ * 2. 添加的定时任务先放入无锁队列, 由tick线程转移到对应的槽中, 槽只由tick线程访问, 不需要同步
+ * 3. 取消的定时任务在tick线程下一次扫描到所在的槽时删除(最迟一圈之后)
+ * 4. 到期的动作在tick线程中执行, 必须非常快(如只向线程池提交任务), 不能阻塞
+ */
+final class HashedWheelTimer {
+    private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    //每次tick最多从队列中转移的定时任务数, 防止大量添加时tick线程长时间不能处理到期的定时任务
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final String name;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingTimeouts = new AtomicLong();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CountDownLatch startedLatch = new CountDownLatch(1);
+    private volatile boolean stopped;
+    //tick线程启动的时间, 所有定时任务的到期时间都相对于该时间计算
+    private volatile long startNanos;
+    //只由tick线程访问
+    private long tick;
+
+    /**
+     * @param name       tick线程名称
+     * @param tickMillis 每个tick的时长(毫秒), 即定时精度
+     * @param wheelSize  时间轮的槽数, 会向上取整为2的幂
+     */
+    HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+        Assert.isTrue(tickMillis > 0, "tick时长必须大于0!");
+        Assert.isTrue(wheelSize > 0 && wheelSize <= (1 << 30), "时间轮槽数必须在1到2^30之间!");
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * 添加定时任务
+     *
+     * @param action     到期时在tick线程中执行的动作, 不能阻塞
+     * @param delayNanos 延迟时间(纳秒), 小于等于0时在下一个tick执行
+     * @return 可以取消的定时任务
+     */
+    Timeout newTimeout(Runnable action, long delayNanos) {
+        Assert.notNull(action, "定时任务不能为空!");
+        Assert.isTrue(!stopped, "定时器已经停止!");
+        start();
+        Timeout timeout = new Timeout(action, System.nanoTime() - startNanos + Math.max(delayNanos, 0));
+        pendingTimeouts.incrementAndGet();
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return 还没有到期也没有取消的定时任务数
+     */
+    long getPendingTimeouts() {
+        return pendingTimeouts.get();
+    }
+
+    /**
+     * 停止tick线程, 还没有到期的定时任务不再执行; 用于单元测试等独立创建的定时器, AsyncTaskExecutor的公共时间轮随jvm退出
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    private void start() {
+        if (started.compareAndSet(false, true)) {
+            Thread thread = new Thread(new Worker(), name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        boolean interrupted = false;
+        while (startNanos == 0) {
+            try {
+                startedLatch.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            //0用于表示还没有启动
+            startNanos = now == 0 ? 1 : now;
+            startedLatch.countDown();
+            while (!stopped) {
+                waitForNextTick();
+                transferPending();
+                wheel[(int) (tick & mask)].expireTimeouts();
+                tick++;
+            }
+        }
+
+        private void waitForNextTick() {
+            long deadline = tickNanos * (tick + 1);
+            while (true) {
+                long sleepNanos = deadline - (System.nanoTime() - startNanos);
+                if (sleepNanos <= 0) {
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    //tick线程不响应中断, 一直运行到jvm退出
+                }
+            }
+        }
+
+        private void transferPending() {
+            for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+                Timeout timeout = pending.poll();
+                if (timeout == null) {
+                    return;
+                }
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                long calculated = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+                //已经过期的定时任务放入当前槽, 本次tick就会执行
+                long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+    }
+
+    /**
+     * 时间轮中的一个槽, 单向链表, 只由tick线程访问
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void expireTimeouts() {
+            Timeout prev = null;
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                boolean remove = true;
+                if (timeout.isCancelled()) {
+                    //已经取消, 直接删除
+                } else if (timeout.remainingRounds <= 0) {
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                    remove = false;
+                }
+                if (remove) {
+                    if (prev == null) {
+                        head = next;
+                    } else {
+                        prev.next = next;
+                    }
+                    if (tail == timeout) {
+                        tail = prev;
+                    }
+                    timeout.next = null;
+                } else {
+                    prev = timeout;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * 定时任务
+     */
+    final class Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private final Runnable action;
+        //相对于startNanos的到期时间
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+        //以下两个字段只由tick线程访问
+        private long remainingRounds;
+        private Timeout next;
+
+        Timeout(Runnable action, long deadline) {
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消定时任务
+         *
+         * @return 取消成功返回true, 已经到期或者已经取消返回false
+         */
+        boolean cancel() {
+            if (state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                pendingTimeouts.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            pendingTimeouts.decrementAndGet();
+            try {
+                action.run();
+            } catch (Throwable e) {
+                LOG.error("执行定时任务发生异常！", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.common.model.UserContextDO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 按key合并(防抖)任务, AsyncTaskExecutor.executeCoalesced的实现
+ * 同一个key在安静期(delay)内的多次提交只执行最后一次提交的任务; 任务执行期间的提交在本次执行结束后再合并执行一次,
+ * 同一个key的任务不会并发执行
+ * 每个key对应一个槽, 槽的状态转换都是CAS操作, 没有锁:
+ * IDLE -> SCHEDULED(在时间轮中等待安静期) -> RUNNING(在线程池中执行) -> RUNNING_DIRTY(执行期间有新的提交) -> SCHEDULED ...
+ * 执行结束且没有新的提交时, 槽进入DEAD状态并从map中删除, 之后的提交会创建新的槽
+ */
+final class KeyedCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyedCoalescer.class);
+
+    //连续不断地提交时, 最多推迟 delay * MAX_DELAY_FACTOR 就一定执行一次, 防止任务一直不能执行
+    private static final int MAX_DELAY_FACTOR = 10;
+    //线程池拒绝时, 至少等待该时间后重试
+    private static final long REJECTED_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int RUNNING = 2;
+    private static final int RUNNING_DIRTY = 3;
+    private static final int DEAD = 4;
+
+    private final HashedWheelTimer timer;
+    private final ExecutorService executor;
+    private final TaskWrapper taskWrapper;
+    private final ConcurrentMap<Object, Slot> slots = new ConcurrentHashMap<>();
+
+    KeyedCoalescer(HashedWheelTimer timer, ExecutorService executor, TaskWrapper taskWrapper) {
+        this.timer = timer;
+        this.executor = executor;
+        this.taskWrapper = taskWrapper;
+    }
+
+    /**
+     * 提交任务, 见AsyncTaskExecutor.executeCoalesced
+     *
+     * @param key        合并的key
+     * @param delayNanos 安静期(纳秒)
+     * @param task       任务
+     * @param context    执行的用户上下文
+     */
+    void submit(Object key, long delayNanos, Runnable task, UserContextDO context) {
+        Pending pending = new Pending(task, context, delayNanos);
+        while (true) {
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                Slot created = new Slot(key);
+                slot = slots.putIfAbsent(key, created);
+                if (slot == null) {
+                    slot = created;
+                }
+            }
+            if (slot.offer(pending)) {
+                return;
+            }
+            //槽已经结束, 帮助删除后重试
+            slots.remove(key, slot);
+        }
+    }
+
+    /**
+     * @return 当前正在等待或者执行的key的数量
+     */
+    int size() {
+        return slots.size();
+    }
+
+    private static class Pending {
+        private final Runnable task;
+        private final UserContextDO context;
+        private final long delayNanos;
+        private final long submitNanos = System.nanoTime();
+
+        Pending(Runnable task, UserContextDO context, long delayNanos) {
+            this.task = task;
+            this.context = context;
+            this.delayNanos = delayNanos;
+        }
+    }
+
+    private class Slot implements Runnable {
+        private final Object key;
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        //最后一次提交, 还没有被执行
+        private final AtomicReference<Pending> latest = new AtomicReference<>();
+        //本轮等待的开始时间, 用于限制最长推迟时间
+        private volatile long firstSubmitNanos;
+
+        Slot(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * @return 槽已经结束(DEAD)时返回false, 调用者需要使用新的槽
+         */
+        boolean offer(Pending pending) {
+            latest.set(pending);
+            while (true) {
+                int current = state.get();
+                switch (current) {
+                    case IDLE:
+                        if (state.compareAndSet(IDLE, SCHEDULED)) {
+                            firstSubmitNanos = pending.submitNanos;
+                            timer.newTimeout(this, pending.delayNanos);
+                            return true;
+                        }
+                        break;
+                    case RUNNING:
+                        if (state.compareAndSet(RUNNING, RUNNING_DIRTY)) {
+                            return true;
+                        }
+                        break;
+                    case DEAD:
+                        return false;
+                    default:
+                        //SCHEDULED, RUNNING_DIRTY: 已经放入latest, 到期时会执行
+                        return true;
+                }
+            }
+        }
+
+        //时间轮到期时在tick线程中执行, 只有SCHEDULED状态的槽在时间轮中
+        @Override
+        public void run() {
+            Pending pending = latest.get();
+            long now = System.nanoTime();
+            long quietNanos = pending.delayNanos - (now - pending.submitNanos);
+            long maxWaitNanos = pending.delayNanos * MAX_DELAY_FACTOR - (now - firstSubmitNanos);
+            if (quietNanos > 0 && maxWaitNanos > 0) {
+                //安静期内又有新的提交, 继续等待
+                timer.newTimeout(this, Math.min(quietNanos, maxWaitNanos));
+                return;
+            }
+            //必须先取出任务再进入RUNNING: 进入RUNNING之后的提交只设置latest并标记RUNNING_DIRTY, 由afterRun执行;
+            //如果顺序相反, 这期间的提交会被这里取走, afterRun会看到RUNNING_DIRTY但latest为空, 一直自旋
+            final Pending current = latest.getAndSet(null);
+            state.set(RUNNING);
+            try {
+                executor.submit(taskWrapper.wrap(new CoalescedRun(this, current.task), current.context, null));
+            } catch (RejectedExecutionException e) {
+                LOG.error("合并任务: " + key + " 被线程池拒绝, 稍后重试!", e);
+                //期间如果有新的提交, 执行新的任务
+                latest.compareAndSet(null, current);
+                state.set(SCHEDULED);
+                timer.newTimeout(this, Math.max(current.delayNanos, REJECTED_RETRY_NANOS));
+            }
+        }
+
+        //执行结束后, 有新的提交则重新等待安静期, 否则结束
+        void afterRun() {
+            while (true) {
+                Pending pending = latest.get();
+                if (pending == null) {
+                    if (state.compareAndSet(RUNNING, DEAD)) {
+                        slots.remove(key, this);
+                        return;
+                    }
+                    //状态为RUNNING_DIRTY, 说明latest已经被重新设置(标记之前一定先设置了latest), 重新读取
+                    continue;
+                }
+                int current = state.get();
+                if (state.compareAndSet(current, SCHEDULED)) {
+                    firstSubmitNanos = pending.submitNanos;
+                    timer.newTimeout(this, pending.delayNanos - (System.nanoTime() - pending.submitNanos));
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class CoalescedRun implements Runnable, NamedTask {
+        private final Slot slot;
+        private final Runnable task;
+
+        CoalescedRun(Slot slot, Runnable task) {
+            this.slot = slot;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run(); //NOSONAR
+            } catch (RuntimeException | Error e) {
+                LOG.error("执行合并任务: " + slot.key + " 发生异常！", e);
+                throw e;
+            } finally {
+                slot.afterRun();
+            }
+        }
+
+        @Override
+        public String getTaskName() {
+            if (task instanceof NamedTask) {
+                return ((NamedTask) task).getTaskName();
+            }
+            return task.getClass().getName();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.evun.xutil.concurrent;
+
+/**
+ * 带名称的任务, 开启任务指标统计时, 按任务名称分组统计; 没有实现本接口的任务按任务类名统计
+ * 可以通过 AsyncTaskExecutor.named(name, task) 为任意任务指定名称
+ */
+public interface NamedTask {
+
+    /**
+     * @return 任务名称, 用于分组统计, 同一类任务应当返回相同的名称
+     */
+    String getTaskName();
+}
@@ -0,0 +1,228 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.common.model.UserContextDO;
+import cn.evun.gap.core.exception.GapRuntimeException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 有界并发度的并行执行引擎, AsyncTaskExecutor中invokeAll, parallelMap, parallelForEach的实现
+ * 特性:
+ * 1. 最多向线程池提交 parallelism - 1 个工作任务, 调用者线程自己也作为一个工作线程, 不会无限制地向公共线程池提交任务
+ * 2. 工作线程按块(chunkSize)从共享的下标中领取工作, 快的线程自动多做, 不需要预先平均分配
+ * 3. 任何一个子任务失败或者超时, 其他工作线程不再领取新工作, 正在运行的子任务会被打断(包括调用者线程中正在运行的子任务),
+ * 超时由时间轮触发, 不依赖子任务结束; 不响应中断的子任务无法被打断, 调用者要等它结束才能返回
+ * 4. 调用者结束时, 还在队列中没有开始的工作任务直接作废, 因此即使在线程池已满或者在线程池线程中调用, 也不会死锁
+ */
+final class ParallelRunner {
+
+    /**
+     * 按下标执行的子任务
+     */
+    interface IndexedTask {
+        void run(int index) throws Exception;
+    }
+
+    private final int taskCount;
+    private final int chunkSize;
+    private final IndexedTask body;
+    private final long deadlineNanos;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final List<Future<?>> futures = new CopyOnWriteArrayList<>();
+    //调用者线程正在运行子任务时不为null, 失败或者超时时被打断
+    private final Object callerLock = new Object();
+    private Thread callerThread;
+    private boolean callerInterrupted;
+
+    private ParallelRunner(int taskCount, int chunkSize, IndexedTask body, long deadlineNanos) {
+        this.taskCount = taskCount;
+        this.chunkSize = chunkSize;
+        this.body = body;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * 并行执行 taskCount 个子任务, 全部成功后返回
+     *
+     * @param executor    执行工作任务的线程池
+     * @param taskWrapper 包装工作任务, 传递用户上下文和截止时间
+     * @param timer       超时使用的时间轮
+     * @param context     工作任务的用户上下文
+     * @param taskCount   子任务数量
+     * @param parallelism 最大并发度(含调用者线程)
+     * @param chunkSize   每次领取的子任务数量
+     * @param timeoutNanos 超时时间(纳秒), 小于等于0表示不超时
+     * @param body        子任务
+     * @throws GapRuntimeException 子任务异常(cause为子任务抛出的异常), 超时(cause为TimeoutException)或者被打断
+     */
+    static void run(ExecutorService executor, TaskWrapper taskWrapper, HashedWheelTimer timer, UserContextDO context, int taskCount,
+                    int parallelism, int chunkSize, long timeoutNanos, IndexedTask body) {
+        if (taskCount == 0) {
+            return;
+        }
+        long deadlineNanos = timeoutNanos > 0 ? System.nanoTime() + timeoutNanos : 0;
+        ParallelRunner runner = new ParallelRunner(taskCount, chunkSize, body, deadlineNanos);
+        int workerCount = Math.min(parallelism, (taskCount + chunkSize - 1) / chunkSize);
+        HashedWheelTimer.Timeout timeout = null;
+        if (deadlineNanos != 0) {
+            timeout = timer.newTimeout(runner.new TimeoutAction(), timeoutNanos);
+        }
+        try {
+            runner.execute(executor, taskWrapper, context, workerCount);
+        } finally {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+
+    private void execute(ExecutorService executor, TaskWrapper taskWrapper, UserContextDO context, int workerCount) {
+        //调用者自己承担一个工作任务
+        int forkCount = workerCount - 1;
+        CountDownLatch latch = new CountDownLatch(forkCount);
+        List<Worker> workers = new ArrayList<>(forkCount);
+        for (int i = 0; i < forkCount; i++) {
+            Worker worker = new Worker(latch);
+            workers.add(worker);
+            try {
+                //工作任务中可以通过Deadline获取剩余时间
+                futures.add(executor.submit(taskWrapper.wrap(worker, context, deadlineNanos == 0 ? null : deadlineNanos)));
+            } catch (RejectedExecutionException e) {
+                //线程池拒绝时, 由调用者和其他工作任务完成全部工作, 被拒绝的工作任务在调用者结束时作废
+            }
+        }
+        //提交期间已经有子任务失败, 补充取消后提交的工作任务
+        if (failure.get() != null) {
+            cancelWorkers();
+        }
+
+        try {
+            workInCaller();
+            //作废还没有开始的工作任务, 所有下标都已经被领取, 它们已经没有工作可做
+            for (Worker worker : workers) {
+                if (worker.started.compareAndSet(false, true)) {
+                    latch.countDown();
+                }
+            }
+            if (failure.get() != null) {
+                //已经失败, 工作任务都已经被打断, 不再等待
+            } else if (deadlineNanos == 0) {
+                latch.await();
+            } else if (!latch.await(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                fail(new TimeoutException("并行任务执行超时!"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+        }
+
+        Throwable cause = failure.get();
+        if (cause != null) {
+            throw new GapRuntimeException(cause);
+        }
+    }
+
+    //记录第一个失败, 并打断所有正在运行的工作任务和调用者线程中正在运行的子任务
+    private void fail(Throwable cause) {
+        if (failure.compareAndSet(null, cause)) {
+            cancelWorkers();
+            interruptCaller();
+        }
+    }
+
+    //调用者线程作为一个工作线程, 结束时清除由本类设置的中断标记, 不影响调用者之后的代码
+    private void workInCaller() {
+        synchronized (callerLock) {
+            callerThread = Thread.currentThread();
+        }
+        try {
+            work();
+        } finally {
+            synchronized (callerLock) {
+                callerThread = null;
+                if (callerInterrupted) {
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    private void interruptCaller() {
+        synchronized (callerLock) {
+            if (callerThread != null && callerThread != Thread.currentThread()) {
+                callerInterrupted = true;
+                callerThread.interrupt();
+            }
+        }
+    }
+
+    private void cancelWorkers() {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    //领取并执行子任务, 直到没有剩余工作, 或者有子任务失败, 或者超时
+    private void work() {
+        while (failure.get() == null) {
+            if (deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0) {
+                fail(new TimeoutException("并行任务执行超时!"));
+                return;
+            }
+            int from = nextIndex.getAndAdd(chunkSize);
+            if (from >= taskCount) {
+                return;
+            }
+            int to = Math.min(taskCount, from + chunkSize);
+            for (int i = from; i < to && failure.get() == null; i++) {
+                try {
+                    body.run(i);
+                } catch (Throwable e) {
+                    fail(e);
+                }
+            }
+        }
+    }
+
+    //到达超时时间时在时间轮线程中执行, 只记录失败和发出中断, 不会阻塞
+    private class TimeoutAction implements Runnable {
+        @Override
+        public void run() {
+            fail(new TimeoutException("并行任务执行超时!"));
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CountDownLatch latch;
+
+        Worker(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            //已经被调用者作废
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                work();
+            } finally {
+                latch.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.common.utils.Assert;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按优先级执行任务的线程池, AsyncTaskExecutor中带TaskPriority参数的submit/execute的实现
+ * 公共线程池只有一个先进先出的队列, 大批量后台任务会让用户正在等待的任务排在后面; 本线程池使用优先级队列,
+ * 排序的依据是 提交时间 + 优先级的推迟时间(TaskPriority.agingNanos), 相同时按提交顺序
+ * PriorityBlockingQueue是无界队列, 通过计数限制排队的任务数, 超过容量时抛出RejectedExecutionException, 并计入任务指标的拒绝数
+ */
+final class PriorityTaskExecutor {
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+    private final TaskMetrics metrics;
+    //排队中(还没有开始执行)的任务数
+    private final AtomicInteger queued = new AtomicInteger();
+    //相同排序时间的任务按提交顺序执行
+    private final AtomicLong sequence = new AtomicLong();
+
+    PriorityTaskExecutor(int threads, int queueCapacity, TaskMetrics metrics) {
+        Assert.isTrue(threads > 0, "线程数必须大于0!");
+        Assert.isTrue(queueCapacity > 0, "队列容量必须大于0!");
+        Assert.notNull(metrics, "任务指标不能为空!");
+        this.queueCapacity = queueCapacity;
+        this.metrics = metrics;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger index = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "async-priority-" + index.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                queued.decrementAndGet();
+            }
+        };
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 提交已经包装过的任务
+     *
+     * @param task     已经包装过的任务
+     * @param priority 优先级
+     * @return 任务的Future
+     */
+    <T> Future<T> submit(Callable<T> task, TaskPriority priority) {
+        PrioritizedFutureTask<T> futureTask = new PrioritizedFutureTask<>(task,
+                System.nanoTime() + priority.getAgingNanos(), sequence.incrementAndGet());
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            metrics.recordRejected();
+            throw new RejectedExecutionException("优先级线程池队列已满(" + queueCapacity + ")!");
+        }
+        try {
+            executor.execute(futureTask);
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            metrics.recordRejected();
+            throw e;
+        }
+        return futureTask;
+    }
+
+    int getQueueSize() {
+        return queued.get();
+    }
+
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * 按排序时间比较的FutureTask, 只有这种任务会放入优先级队列
+     *
+     * @param <T>
+     */
+    private static class PrioritizedFutureTask<T> extends FutureTask<T> implements Comparable<PrioritizedFutureTask<?>> {
+        //System.nanoTime + 优先级的推迟时间
+        private final long sortNanos;
+        private final long seq;
+
+        PrioritizedFutureTask(Callable<T> callable, long sortNanos, long seq) {
+            super(callable);
+            this.sortNanos = sortNanos;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(PrioritizedFutureTask<?> other) {
+            //nanoTime可能溢出, 只能比较差值
+            long diff = sortNanos - other.sortNanos;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.evun.xutil.concurrent;
+
+/**
+ * AsyncTaskExecutor中延迟任务和周期任务的句柄, 用于取消任务
+ */
+public interface ScheduledTask {
+
+    /**
+     * 取消任务, 还没有开始的执行不再执行, 周期任务不再继续调度
+     *
+     * @param mayInterruptIfRunning 是否打断正在执行的任务
+     * @return 本次调用取消了任务返回true; 任务已经结束或者已经被取消返回false
+     */
+    boolean cancel(boolean mayInterruptIfRunning);
+
+    /**
+     * @return 任务是否已经被取消
+     */
+    boolean isCancelled();
+
+    /**
+     * @return 任务是否已经结束: 延迟任务已经执行完成, 或者任务已经被取消
+     */
+    boolean isDone();
+}
@@ -0,0 +1,232 @@
+package com.evun.xutil.concurrent;
+
+import com.evun.xutil.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AsyncTaskExecutor的任务指标: 按任务名称统计排队时间(提交到开始运行), 运行时间和运行结果, 以及公共线程池的饱和度
+ * 虚拟线程模式下不使用公共线程池, 线程池指标改为统计正在运行的虚拟线程
+ * 用于区分 "任务在队列中等待太久" 和 "任务本身运行太慢" 两种情况
+ * 默认关闭, 通过系统属性 -Dxutil.async.metrics=true 或者JMX开启, 关闭时包装任务只多一次volatile读
+ */
+public final class TaskMetrics implements TaskMetricsMXBean {
+    //开启任务统计的系统属性
+    private static final String METRICS_PROPERTY = "xutil.async.metrics";
+    //最多统计的任务名称数量, 防止匿名类等导致内存无限增长
+    private static final int MAX_TASK_NAMES = 512;
+    private static final String OTHER_TASK_NAME = "<other>";
+
+    //虚拟线程模式下为null
+    private final ThreadPoolExecutor pool;
+    //虚拟线程模式下正在运行的任务数
+    private final AtomicInteger virtualActive = new AtomicInteger();
+    private final ConcurrentMap<String, TaskStats> statsMap = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    private volatile boolean enabled = Boolean.getBoolean(METRICS_PROPERTY);
+
+    /**
+     * @param pool 执行任务的公共线程池, 虚拟线程模式下为null
+     */
+    TaskMetrics(ThreadPoolExecutor pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 记录一次通过AsyncTaskExecutor提交时被拒绝的任务, 不修改公共线程池的拒绝策略
+     */
+    void recordRejected() {
+        rejected.increment();
+    }
+
+    /**
+     * 虚拟线程模式下包装提交的任务, 统计正在运行的虚拟线程数
+     *
+     * @param task
+     * @return
+     */
+    Runnable trackVirtualThread(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                virtualActive.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    virtualActive.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * 记录一次任务运行
+     *
+     * @param task        原始任务
+     * @param enqueueNanos 提交时间
+     * @param startNanos  开始运行时间
+     * @param endNanos    结束时间
+     * @param success     是否正常结束
+     */
+    void record(Object task, long enqueueNanos, long startNanos, long endNanos, boolean success) {
+        TaskStats stats = getStats(getTaskName(task));
+        stats.queueWait.record(startNanos - enqueueNanos);
+        stats.runTime.record(endNanos - startNanos);
+        if (success) {
+            stats.successes.increment();
+        } else {
+            stats.failures.increment();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public List<TaskStatsView> getTaskStats() {
+        List<TaskStatsView> result = new ArrayList<>(statsMap.size());
+        for (Map.Entry<String, TaskStats> entry : statsMap.entrySet()) {
+            result.add(new TaskStatsView(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public int getPoolActiveCount() {
+        return pool == null ? virtualActive.get() : pool.getActiveCount();
+    }
+
+    @Override
+    public int getPoolSize() {
+        //每个任务一个虚拟线程
+        return pool == null ? virtualActive.get() : pool.getPoolSize();
+    }
+
+    @Override
+    public int getPoolMaxSize() {
+        return pool == null ? Integer.MAX_VALUE : pool.getMaximumPoolSize();
+    }
+
+    @Override
+    public int getPoolQueueSize() {
+        //虚拟线程不排队
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    @Override
+    public long getPoolRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void reset() {
+        statsMap.clear();
+    }
+
+    static String getTaskName(Object task) {
+        if (task instanceof NamedTask) {
+            String name = ((NamedTask) task).getTaskName();
+            if (name != null) {
+                return name;
+            }
+        }
+        return task.getClass().getName();
+    }
+
+    private TaskStats getStats(String taskName) {
+        TaskStats stats = statsMap.get(taskName);
+        if (stats != null) {
+            return stats;
+        }
+        if (statsMap.size() >= MAX_TASK_NAMES) {
+            taskName = OTHER_TASK_NAME;
+        }
+        stats = new TaskStats();
+        TaskStats existing = statsMap.putIfAbsent(taskName, stats);
+        return existing == null ? stats : existing;
+    }
+
+    private static class TaskStats {
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        private final LatencyHistogram runTime = new LatencyHistogram();
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+    }
+
+    /**
+     * 单个任务名称统计指标的快照, JMX中以CompositeData的形式展示
+     */
+    public static class TaskStatsView {
+        private final String taskName;
+        private final long successes;
+        private final long failures;
+        private final double queueWaitP50Millis;
+        private final double queueWaitP99Millis;
+        private final double queueWaitMaxMillis;
+        private final double runP50Millis;
+        private final double runP99Millis;
+        private final double runMaxMillis;
+
+        TaskStatsView(String taskName, TaskStats stats) {
+            this.taskName = taskName;
+            this.successes = stats.successes.sum();
+            this.failures = stats.failures.sum();
+            this.queueWaitP50Millis = stats.queueWait.getPercentileMillis(50);
+            this.queueWaitP99Millis = stats.queueWait.getPercentileMillis(99);
+            this.queueWaitMaxMillis = stats.queueWait.getMaxMillis();
+            this.runP50Millis = stats.runTime.getPercentileMillis(50);
+            this.runP99Millis = stats.runTime.getPercentileMillis(99);
+            this.runMaxMillis = stats.runTime.getMaxMillis();
+        }
+
+        public String getTaskName() {
+            return taskName;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public double getQueueWaitP50Millis() {
+            return queueWaitP50Millis;
+        }
+
+        public double getQueueWaitP99Millis() {
+            return queueWaitP99Millis;
+        }
+
+        public double getQueueWaitMaxMillis() {
+            return queueWaitMaxMillis;
+        }
+
+        public double getRunP50Millis() {
+            return runP50Millis;
+        }
+
+        public double getRunP99Millis() {
+            return runP99Millis;
+        }
+
+        public double getRunMaxMillis() {
+            return runMaxMillis;
+        }
+    }
+}
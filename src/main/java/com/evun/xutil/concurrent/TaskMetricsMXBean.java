@@ -0,0 +1,57 @@
+package com.evun.xutil.concurrent;
+
+import java.util.List;
+
+/**
+ * AsyncTaskExecutor任务指标的JMX接口, 注册名为 com.evun.xutil:type=AsyncTaskExecutor
+ * 虚拟线程模式下, 线程池指标统计的是正在运行的虚拟线程(最大线程数为Integer.MAX_VALUE, 队列始终为0)
+ */
+public interface TaskMetricsMXBean {
+
+    /**
+     * @return 是否正在统计任务的排队时间和运行时间
+     */
+    boolean isEnabled();
+
+    /**
+     * 开启或关闭任务统计, 关闭时几乎没有额外开销
+     *
+     * @param enabled
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return 按任务名称分组的统计指标
+     */
+    List<TaskMetrics.TaskStatsView> getTaskStats();
+
+    /**
+     * @return 公共线程池中正在运行任务的线程数
+     */
+    int getPoolActiveCount();
+
+    /**
+     * @return 公共线程池当前的线程数
+     */
+    int getPoolSize();
+
+    /**
+     * @return 公共线程池的最大线程数
+     */
+    int getPoolMaxSize();
+
+    /**
+     * @return 公共线程池队列中等待的任务数
+     */
+    int getPoolQueueSize();
+
+    /**
+     * @return 通过AsyncTaskExecutor提交时被拒绝(抛出拒绝异常)的任务数, 不含其他代码直接提交到公共线程池的任务
+     */
+    long getPoolRejectedCount();
+
+    /**
+     * 清空按任务名称分组的统计指标
+     */
+    void reset();
+}
@@ -0,0 +1,32 @@
+package com.evun.xutil.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AsyncTaskExecutor中任务的优先级, 优先级高的任务先执行
+ * 排序时每个优先级相当于把提交时间推迟agingMillis, 因此低优先级任务等待超过该时间后, 会排在新提交的高优先级任务之前, 不会一直得不到执行
+ */
+public enum TaskPriority {
+    /**
+     * 用户正在等待结果的任务, 如页面操作触发的后续处理
+     */
+    INTERACTIVE(0),
+    /**
+     * 普通任务
+     */
+    NORMAL(500),
+    /**
+     * 后台批量任务, 如大批量导入, 数据同步
+     */
+    BACKGROUND(5000);
+
+    private final long agingNanos;
+
+    TaskPriority(long agingMillis) {
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+    }
+
+    long getAgingNanos() {
+        return agingNanos;
+    }
+}
@@ -0,0 +1,18 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.common.model.UserContextDO;
+
+/**
+ * 包装KeyedCoalescer, ParallelRunner提交到线程池的内部任务, 在执行期间恢复用户上下文和截止时间
+ * AsyncTaskExecutor使用newTaskWrapper实现; 单元测试中可以直接返回原任务, 不依赖公共线程池
+ */
+interface TaskWrapper {
+
+    /**
+     * @param task     需要包装的任务
+     * @param context  执行的用户上下文
+     * @param deadline 截止时间(System.nanoTime), 为null表示没有截止时间
+     * @return 包装后的任务
+     */
+    Runnable wrap(Runnable task, UserContextDO context, Long deadline);
+}
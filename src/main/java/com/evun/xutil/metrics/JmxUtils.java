@@ -0,0 +1,65 @@
+package com.evun.xutil.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * JMX工具类, 用于将统计指标注册到平台MBeanServer中, 可以通过jconsole/jvisualvm查看
+ */
+public abstract class JmxUtils {
+    private static final Logger LOG = LoggerFactory.getLogger(JmxUtils.class);
+
+    //所有指标ObjectName的域名
+    public static final String DOMAIN = "com.evun.xutil";
+
+    /**
+     * 注册MBean, 如果同名MBean已经存在, 则先注销旧的(如热部署后重新加载类的情况)
+     * 注册失败只记录日志, 不影响业务
+     *
+     * @param type  ObjectName中的type属性
+     * @param name  ObjectName中的name属性, 为空时不设置
+     * @param mbean MBean或MXBean对象
+     */
+    public static void register(String type, String name, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(toObjectName(type, name));
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(mbean, on);
+        } catch (Exception e) {
+            LOG.error("注册JMX指标: " + type + " 发生异常！", e);
+        }
+    }
+
+    /**
+     * 注销MBean, 不存在时忽略, 注销失败只记录日志
+     *
+     * @param type ObjectName中的type属性
+     * @param name ObjectName中的name属性, 为空时不设置
+     */
+    public static void unregister(String type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(toObjectName(type, name));
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+        } catch (Exception e) {
+            LOG.error("注销JMX指标: " + type + " 发生异常！", e);
+        }
+    }
+
+    private static String toObjectName(String type, String name) {
+        String objectName = DOMAIN + ":type=" + type;
+        if (name != null && !name.isEmpty()) {
+            objectName += ",name=" + ObjectName.quote(name);
+        }
+        return objectName;
+    }
+}
@@ -0,0 +1,273 @@
+package com.evun.xutil.mybatis;
+
+import cn.evun.gap.common.utils.Assert;
+import cn.evun.gap.common.utils.StringUtils;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.BatchExecutor;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.keygen.NoKeyGenerator;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.StatementType;
+import org.apache.ibatis.plugin.*;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.apache.ibatis.transaction.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.NoTransactionException;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * mybatis插件, 把事务中连续执行的同一条insert/update/delete语句自动合并为jdbc批量执行, 减少数据库往返次数
+ * 只对配置的语句生效(按MappedStatement的id), 且只在spring事务中生效; 批量由mybatis的BatchExecutor执行,
+ * 与当前Executor共享同一个数据库连接
+ * 插件顺序: BatchExecutor由配置在本插件之前的插件(即本插件内层的插件, 如MybatisStatsInterceptor, MybatisQueryCacheInterceptor)包装,
+ * 合并的语句在加入批量时经过的插件与直接执行时完全相同, 统计, 查询缓存失效, N+1检测和跟踪都不受影响;
+ * 配置在本插件之后的插件(外层)在合并之前就已经看到了语句. 需要看到每一条更新的插件可以配置在本插件的任意一侧
+ * 以下情况会先执行(flush)已经合并的语句:
+ * 1. 执行不同的更新语句, 或者执行查询
+ * 2. 合并的条数达到batchSize
+ * 3. 事务提交(SqlSession.commit), 或者调用SqlSession.flushStatements
+ * 自动执行(1, 2)的结果会保留下来, 下一次调用SqlSession.flushStatements时与当时执行的结果一起返回(含每一行的影响行数);
+ * 事务提交, 回滚或者SqlSession关闭时清除保留的结果, 没有执行的语句直接丢弃
+ * 注意:
+ * 1. 合并的语句返回BatchExecutor.BATCH_UPDATE_RETURN_VALUE, 而不是影响的行数, 需要判断影响行数的语句不能配置;
+ * 真正的影响行数在flush之后才能取得, 执行失败时在flush的时候抛出BatchExecutorException
+ * 2. 使用主键生成器(useGeneratedKeys, selectKey)和二级缓存的语句不合并, 主键要到flush时才能取得
+ * 3. 在同一个事务中绕过mybatis直接使用jdbc连接的代码看不到还没有flush的修改
+ * 4. 嵌套事务(PROPAGATION_NESTED)使用保存点, 回滚到保存点不经过mybatis, 不会丢弃合并的语句. 因此处在@Transactional声明的嵌套事务中时,
+ * 先执行已经合并的语句, 并且不再合并. 进入嵌套事务之前合并的语句会在嵌套事务中执行, 回滚到保存点时被一起回滚,
+ * 所以进入嵌套事务之前需要调用SqlSession.flushStatements; TransactionTemplate开启的嵌套事务无法识别, 不能与本插件一起使用
+ * 配置示例:
+ * <p>
+ * &lt;plugin interceptor="com.evun.xutil.mybatis.MybatisBatchInterceptor"&gt;
+ * &lt;property name="statements" value="cn.evun.xxx.StockMapper.insert,cn.evun.xxx.StockMapper.updateQty"/&gt;
+ * &lt;property name="batchSize" value="500"/&gt;
+ * &lt;/plugin&gt;
+ */
+@Intercepts({
+        @Signature(type = Executor.class, method = "update", args = {MappedStatement.class, Object.class}),
+        @Signature(type = Executor.class, method = "query", args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class}),
+        @Signature(type = Executor.class, method = "query", args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class, CacheKey.class, BoundSql.class}),
+        @Signature(type = Executor.class, method = "queryCursor", args = {MappedStatement.class, Object.class, RowBounds.class}),
+        @Signature(type = Executor.class, method = "flushStatements", args = {}),
+        @Signature(type = Executor.class, method = "commit", args = {boolean.class}),
+        @Signature(type = Executor.class, method = "rollback", args = {boolean.class}),
+        @Signature(type = Executor.class, method = "close", args = {boolean.class})
+})
+public class MybatisBatchInterceptor implements Interceptor {
+    private static final Logger LOG = LoggerFactory.getLogger(MybatisBatchInterceptor.class);
+
+    private volatile int batchSize = 500;
+    //可以合并执行的语句id
+    private final Set<String> statementIds = ConcurrentHashMap.newKeySet();
+    //每个Executor(SqlSession)中正在合并的语句, Executor只在一个线程中使用
+    private final ConcurrentMap<Executor, PendingBatch> pendingBatches = new ConcurrentHashMap<>();
+    //每个Executor中自动执行的批量的结果, 由flushStatements返回
+    private final ConcurrentMap<Executor, List<BatchResult>> flushedResults = new ConcurrentHashMap<>();
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        Executor executor = (Executor) invocation.getTarget();
+        String method = invocation.getMethod().getName();
+        if ("update".equals(method)) {
+            Object[] args = invocation.getArgs();
+            MappedStatement mappedStatement = (MappedStatement) args[0];
+            if (isBatchable(executor, mappedStatement)) {
+                return addBatch(executor, mappedStatement, args[1]);
+            }
+            flush(executor);
+            return invocation.proceed();
+        }
+        if ("flushStatements".equals(method)) {
+            flush(executor);
+            List<BatchResult> results = flushedResults.isEmpty() ? null : flushedResults.remove(executor);
+            @SuppressWarnings("unchecked")
+            List<BatchResult> executorResults = (List<BatchResult>) invocation.proceed();
+            if (results == null) {
+                return executorResults;
+            }
+            results.addAll(executorResults);
+            return results;
+        }
+        if ("rollback".equals(method) || "close".equals(method)) {
+            discard(executor);
+            return invocation.proceed();
+        }
+        if ("commit".equals(method)) {
+            flush(executor);
+            clearResults(executor);
+            return invocation.proceed();
+        }
+        //query, queryCursor
+        flush(executor);
+        return invocation.proceed();
+    }
+
+    private boolean isBatchable(Executor executor, MappedStatement mappedStatement) {
+        return !statementIds.isEmpty() && statementIds.contains(mappedStatement.getId())
+                && mappedStatement.getStatementType() != StatementType.CALLABLE
+                && mappedStatement.getCache() == null
+                && (mappedStatement.getKeyGenerator() == null || mappedStatement.getKeyGenerator() instanceof NoKeyGenerator)
+                && !(executor instanceof BatchExecutor)
+                && TransactionSynchronizationManager.isActualTransactionActive()
+                && !isNestedTransaction();
+    }
+
+    //当前@Transactional声明的事务是否为使用保存点的嵌套事务, 编程式事务无法判断
+    private static boolean isNestedTransaction() {
+        try {
+            return TransactionAspectSupport.currentTransactionStatus().hasSavepoint();
+        } catch (NoTransactionException e) {
+            return false;
+        }
+    }
+
+    private Object addBatch(Executor executor, MappedStatement mappedStatement, Object parameter) throws Exception {
+        PendingBatch batch = pendingBatches.get(executor);
+        if (batch != null && !batch.statementId.equals(mappedStatement.getId())) {
+            flush(executor);
+            batch = null;
+        }
+        if (batch == null) {
+            batch = new PendingBatch(mappedStatement.getId(), newBatchExecutor(mappedStatement.getConfiguration(), executor.getTransaction()));
+            pendingBatches.put(executor, batch);
+        }
+        int result = batch.executor.update(mappedStatement, parameter);
+        //与直接执行更新一样, 清空一级缓存
+        executor.clearLocalCache();
+        if (++batch.count >= batchSize) {
+            flush(executor);
+        }
+        return result;
+    }
+
+    /**
+     * 创建与当前Executor共享事务的BatchExecutor, 并使用本插件内层的插件包装, 与直接执行时经过的插件相同;
+     * 不使用configuration.newExecutor: 它会使用所有插件(含本插件和外层插件)包装, 外层插件会重复看到同一条语句
+     */
+    private Executor newBatchExecutor(Configuration configuration, Transaction transaction) {
+        Executor batchExecutor = new BatchExecutor(configuration, transaction);
+        for (Interceptor interceptor : configuration.getInterceptors()) {
+            if (interceptor == this) {
+                break;
+            }
+            batchExecutor = (Executor) interceptor.plugin(batchExecutor);
+        }
+        return batchExecutor;
+    }
+
+    /**
+     * 执行已经合并的语句, 结果保留到flushStatements返回
+     */
+    private void flush(Executor executor) throws Exception {
+        if (pendingBatches.isEmpty()) {
+            return;
+        }
+        PendingBatch batch = pendingBatches.remove(executor);
+        if (batch == null) {
+            return;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("批量执行语句: {} 共 {} 行", batch.statementId, batch.count);
+        }
+        List<BatchResult> results = batch.executor.flushStatements();
+        List<BatchResult> flushed = flushedResults.get(executor);
+        if (flushed == null) {
+            flushed = new ArrayList<>(results.size());
+            flushedResults.put(executor, flushed);
+        }
+        flushed.addAll(results);
+    }
+
+    private void clearResults(Executor executor) {
+        if (!flushedResults.isEmpty()) {
+            flushedResults.remove(executor);
+        }
+    }
+
+    //丢弃还没有执行的语句, 关闭已经创建的Statement, 不关闭也不回滚共享的连接
+    private void discard(Executor executor) {
+        clearResults(executor);
+        if (pendingBatches.isEmpty()) {
+            return;
+        }
+        PendingBatch batch = pendingBatches.remove(executor);
+        if (batch == null) {
+            return;
+        }
+        try {
+            //BaseExecutor.rollback(false)只丢弃批量并关闭Statement, 不回滚事务
+            batch.executor.rollback(false);
+        } catch (Exception e) {
+            LOG.error("丢弃批量语句: " + batch.statementId + " 发生异常！", e);
+        }
+    }
+
+    @Override
+    public Object plugin(Object target) {
+        if (target instanceof Executor) {
+            return Plugin.wrap(target, this);
+        }
+        return target;
+    }
+
+    /**
+     * 支持在mybatis配置文件中通过property配置statements(逗号分隔的语句id)和batchSize
+     *
+     * @param properties
+     */
+    @Override
+    public void setProperties(Properties properties) {
+        String statements = properties.getProperty("statements");
+        if (statements != null) {
+            for (String statementId : statements.split(",")) {
+                if (StringUtils.isNotEmpty(statementId.trim())) {
+                    addStatement(statementId.trim());
+                }
+            }
+        }
+        String size = properties.getProperty("batchSize");
+        if (size != null) {
+            setBatchSize(Integer.parseInt(size.trim()));
+        }
+    }
+
+    /**
+     * @param statementIds 可以合并执行的语句id(MappedStatement的id)
+     */
+    public void addStatement(String... statementIds) {
+        for (String statementId : statementIds) {
+            Assert.isTrue(StringUtils.isNotEmpty(statementId), "语句id不能为空!");
+            this.statementIds.add(statementId);
+        }
+    }
+
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "批量大小必须大于0!");
+        this.batchSize = batchSize;
+    }
+
+    private static class PendingBatch {
+        private final String statementId;
+        //使用内层插件包装过的BatchExecutor
+        private final Executor executor;
+        private int count;
+
+        PendingBatch(String statementId, Executor executor) {
+            this.statementId = statementId;
+            this.executor = executor;
+        }
+    }
+}
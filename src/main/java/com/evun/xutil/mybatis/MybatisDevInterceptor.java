@@ -24,10 +24,13 @@ import org.slf4j.LoggerFactory;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 /**
  * mybatis插件, 用于打印完整sql和执行时间
  * 参考自: http://www.cnblogs.com/xrq730/p/6972268.html
+ * 慢sql模式: 设置slowSqlThresholdMillis大于0时, 只有执行时间达到阈值的语句才会生成和打印完整sql(WARN级别),
+ * 其他语句只有一次计时的开销, 可以在生产环境中使用
  */
 @Intercepts({
         @Signature(type = Executor.class, method = "query", args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class}),
@@ -42,28 +45,32 @@ public class MybatisDevInterceptor implements Interceptor {
      */
     private boolean enabled = false;
 
+    /**
+     * 慢sql阈值(毫秒), 执行时间达到该值的语句才打印完整sql, 为0时打印所有语句(开发模式)
+     */
+    private long slowSqlThresholdMillis = 0;
+
     @Override
     public Object intercept(Invocation invocation) throws Throwable {
-        MappedStatement mappedStatement = (MappedStatement) invocation.getArgs()[0];
-        Object parameter = null;
-        if (invocation.getArgs().length > 1) {
-            parameter = invocation.getArgs()[1];
-        }
-        BoundSql boundSql = mappedStatement.getBoundSql(parameter);
-        Configuration configuration = mappedStatement.getConfiguration();
-
-        long startTime = System.currentTimeMillis();
+        Object[] args = invocation.getArgs();
+        MappedStatement mappedStatement = (MappedStatement) args[0];
+        long startNanos = System.nanoTime();
         Object result = null;
         try {
             result = invocation.proceed();
         } finally {
-            try {
-                long endTime = System.currentTimeMillis();
-                long sqlCostTime = endTime - startTime;
-                String sql = this.getSql(configuration, boundSql);
-                this.formatSqlLog(mappedStatement.getSqlCommandType(), mappedStatement.getId(), sql, sqlCostTime, result);
-            } catch (Exception e) {
-                LOG.error("MybatisDevInterceptor注入参数异常!", e);
+            long sqlCostTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            //只有需要打印时才生成完整sql
+            if (sqlCostTime >= slowSqlThresholdMillis) {
+                try {
+                    //6个参数的query方法, executor已经生成了BoundSql, 直接使用, 不再重复生成
+                    BoundSql boundSql = args.length == 6 ?
+                            (BoundSql) args[5] : mappedStatement.getBoundSql(args.length > 1 ? args[1] : null);
+                    String sql = this.getSql(mappedStatement.getConfiguration(), boundSql);
+                    this.formatSqlLog(mappedStatement.getSqlCommandType(), mappedStatement.getId(), sql, sqlCostTime, result);
+                } catch (Exception e) {
+                    LOG.error("MybatisDevInterceptor注入参数异常!", e);
+                }
             }
         }
 
@@ -78,12 +85,26 @@ public class MybatisDevInterceptor implements Interceptor {
         return target;
     }
 
+    /**
+     * 支持在mybatis配置文件中通过property配置enabled和slowSqlThresholdMillis
+     *
+     * @param properties
+     */
     @Override
     public void setProperties(Properties properties) {
+        String enabledValue = properties.getProperty("enabled");
+        if (enabledValue != null) {
+            this.enabled = Boolean.parseBoolean(enabledValue.trim());
+        }
+        String thresholdValue = properties.getProperty("slowSqlThresholdMillis");
+        if (thresholdValue != null) {
+            this.slowSqlThresholdMillis = Long.parseLong(thresholdValue.trim());
+        }
     }
 
     /**
-     * 获取完整的sql语句
+     * 获取完整的sql语句, 一次遍历完成空白字符的合并和占位符的替换, 引号(单引号, 双引号, 反引号)中的内容保持不变,
+     * 字符串中的反斜杠转义字符不会结束引号; 引号不匹配时无法确定占位符的位置, 不替换占位符, 直接返回原始sql
      *
      * @param configuration
      * @param boundSql
@@ -96,65 +117,86 @@ public class MybatisDevInterceptor implements Interceptor {
             return "";
         }
 
-        //美化sql
-        sql = this.beautifySql(sql);
-
-        //填充占位符, 目前基本不用mybatis存储过程调用,故此处不做考虑
-        Object parameterObject = boundSql.getParameterObject();
+        //目前基本不用mybatis存储过程调用,故此处不做考虑
         List<ParameterMapping> parameterMappings = boundSql.getParameterMappings();
-        if (!parameterMappings.isEmpty() && parameterObject != null) {
+        Object parameterObject = boundSql.getParameterObject();
+        boolean simpleParameter = false;
+        MetaObject metaObject = null;
+        if (parameterObject != null && !parameterMappings.isEmpty()) {
             TypeHandlerRegistry typeHandlerRegistry = configuration.getTypeHandlerRegistry();
-            if (typeHandlerRegistry.hasTypeHandler(parameterObject.getClass())) {
-                sql = this.replacePlaceholder(sql, parameterObject, "");
-            } else {
-                MetaObject metaObject = configuration.newMetaObject(parameterObject);
-                for (ParameterMapping parameterMapping : parameterMappings) {
-                    String propertyName = parameterMapping.getProperty();
-                    if (metaObject.hasGetter(propertyName)) {
-                        Object obj = metaObject.getValue(propertyName);
-                        sql = this.replacePlaceholder(sql, obj, propertyName);
-                    } else if (boundSql.hasAdditionalParameter(propertyName)) {
-                        Object obj = boundSql.getAdditionalParameter(propertyName);
-                        sql = this.replacePlaceholder(sql, obj, propertyName);
-                    }
-                }
+            simpleParameter = typeHandlerRegistry.hasTypeHandler(parameterObject.getClass());
+            if (!simpleParameter) {
+                metaObject = configuration.newMetaObject(parameterObject);
             }
         }
-        return sql;
-    }
 
-    /**
-     * 美化Sql
-     */
-    private String beautifySql(String sql) {
-        return sql.replaceAll("[\\s\n ]+", " ");
+        StringBuilder result = new StringBuilder(sql.length() + parameterMappings.size() * 16);
+        int parameterIndex = 0;
+        //当前所在引号的字符, 不在引号中时为0
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            //美化sql, 连续的空白字符合并成一个空格
+            if (quote == 0 && Character.isWhitespace(c)) {
+                pendingSpace = result.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                result.append(' ');
+                pendingSpace = false;
+            }
+            if (quote != 0) {
+                if (c == '\\' && quote != '`' && i + 1 < sql.length()) {
+                    //字符串中的转义字符和被转义的字符原样保留(反引号中没有转义)
+                    result.append(c).append(sql.charAt(++i));
+                    continue;
+                }
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '?' && parameterObject != null && parameterIndex < parameterMappings.size()) {
+                //填充占位符
+                ParameterMapping parameterMapping = parameterMappings.get(parameterIndex++);
+                String propertyName = parameterMapping.getProperty();
+                //与mybatis设置参数的顺序一致
+                if (boundSql.hasAdditionalParameter(propertyName)) {
+                    appendParameter(result, boundSql.getAdditionalParameter(propertyName), propertyName);
+                } else if (simpleParameter) {
+                    appendParameter(result, parameterObject, "");
+                } else if (metaObject.hasGetter(propertyName)) {
+                    appendParameter(result, metaObject.getValue(propertyName), propertyName);
+                } else {
+                    result.append(c);
+                }
+                continue;
+            }
+            result.append(c);
+        }
+        if (quote != 0) {
+            return sql;
+        }
+        return result.toString();
     }
 
     /**
      * 填充占位符?
      *
-     * @param sql
+     * @param result
      * @param parameterObject
      * @param propertyName
-     * @return
      */
-    private String replacePlaceholder(String sql, Object parameterObject, String propertyName) {
-        String result;
+    private void appendParameter(StringBuilder result, Object parameterObject, String propertyName) {
+        result.append("/*").append(propertyName).append("*/");
         if (parameterObject instanceof String) {
-            result = "'" + parameterObject.toString() + "'";
+            result.append('\'').append(parameterObject).append('\'');
         } else if (parameterObject instanceof Date) {
-            result = "'" + DateUtils.formatTime((Date) parameterObject) + "'";
+            result.append('\'').append(DateUtils.formatTime((Date) parameterObject)).append('\'');
         } else {
-            result = parameterObject + "";
+            result.append(parameterObject);
         }
-        result = "/*" + propertyName + "*/" + result;
-
-        //替换$符号时候出现的问题，先将$替换成字符串，后替换回来。
-        result = result.replaceAll("\\$", "RDS_CHAR_DOLLAR");// encode replacement;
-        String tempStr = sql.replaceFirst("\\?", result);
-        tempStr = tempStr.replaceAll("RDS_CHAR_DOLLAR", "\\$");
-
-        return tempStr;
     }
 
     /**
@@ -167,16 +209,29 @@ public class MybatisDevInterceptor implements Interceptor {
      * @return
      */
     private void formatSqlLog(SqlCommandType sqlCommandType, String sqlId, String sql, long costTime, Object obj) {
+        boolean slow = slowSqlThresholdMillis > 0;
         if (sqlCommandType == SqlCommandType.UPDATE ||
                 sqlCommandType == SqlCommandType.INSERT ||
                 sqlCommandType == SqlCommandType.DELETE) {
-            LOG.info("Spend Time:  {} ms, Affect Count:  {}, Mapper Method:  {}\n    {}\n", costTime, obj, sqlId, sql);
+            if (slow) {
+                LOG.warn("Slow Sql! Spend Time:  {} ms, Affect Count:  {}, Mapper Method:  {}\n    {}\n", costTime, obj, sqlId, sql);
+            } else {
+                LOG.info("Spend Time:  {} ms, Affect Count:  {}, Mapper Method:  {}\n    {}\n", costTime, obj, sqlId, sql);
+            }
         } else {
-            LOG.info("Spend Time:  {} ms, Mapper Method:  {}\n    {}\n", costTime, sqlId, sql);
+            if (slow) {
+                LOG.warn("Slow Sql! Spend Time:  {} ms, Mapper Method:  {}\n    {}\n", costTime, sqlId, sql);
+            } else {
+                LOG.info("Spend Time:  {} ms, Mapper Method:  {}\n    {}\n", costTime, sqlId, sql);
+            }
         }
     }
 
     public void setEnabled(boolean enabled) {
         this.enabled = enabled;
     }
+
+    public void setSlowSqlThresholdMillis(long slowSqlThresholdMillis) {
+        this.slowSqlThresholdMillis = slowSqlThresholdMillis;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,485 @@
+package com.evun.xutil.mybatis;
+
+import cn.evun.gap.common.utils.Assert;
+import cn.evun.gap.common.utils.StringUtils;
+import com.evun.xutil.concurrent.ConcurrentLruCache;
+import com.evun.xutil.metrics.JmxUtils;
+import com.evun.xutil.redis.RedisInvalidationChannel;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.StatementType;
+import org.apache.ibatis.plugin.*;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * mybatis插件, 在jvm内缓存读多写少的mapper的查询结果
+ * 特性:
+ * 1. 只缓存配置的namespace中的查询, 缓存key为Executor生成的CacheKey(语句id, 参数, RowBounds, sql);
+ * 有ResultHandler, 存储过程, flushCache="true"和useCache="false"(含selectKey)的查询不缓存
+ * 2. 缓存有内存上限(淘汰最久没有访问的结果)和过期时间, 读取不加锁(见ConcurrentLruCache)
+ * 3. namespace中执行insert/update/delete时, 该namespace以及依赖它的namespace的缓存全部失效;
+ * 失效只是增加namespace的版本号, 旧版本的结果在读取或者淘汰时删除
+ * 4. 在事务中执行更新时, 事务结束后再失效一次, 防止其他线程在提交之前把旧数据重新放入缓存;
+ * 已经执行过更新的事务中的查询结果(可能含有未提交的数据)不放入缓存
+ * 5. 配置channel后, 更新提交时通过RedisInvalidationChannel通知其他实例失效
+ * 6. 默认缓存序列化后的结果, 每次命中反序列化出新的对象, 调用者可以修改; 不能序列化的结果不缓存.
+ * 配置readOnly=true时缓存结果对象本身(按ResultSizeEstimator估算内存), 命中时返回新的List, 但是其中的对象与缓存共享, 调用者不能修改
+ * 7. JMX注册名为 com.evun.xutil:type=MybatisQueryCache,name=配置的name(默认为实例的hash), 多个实例需要配置不同的name
+ * 配置示例:
+ * <p>
+ * &lt;plugin interceptor="com.evun.xutil.mybatis.MybatisQueryCacheInterceptor"&gt;
+ * &lt;property name="namespaces" value="cn.evun.xxx.MaterialMapper,cn.evun.xxx.UnitMapper"/&gt;
+ * &lt;property name="dependsOn.cn.evun.xxx.MaterialMapper" value="cn.evun.xxx.UnitMapper"/&gt;
+ * &lt;property name="maxBytes" value="67108864"/&gt;
+ * &lt;property name="ttlSeconds" value="300"/&gt;
+ * &lt;property name="channel" value="mybatis-query-cache"/&gt;
+ * &lt;property name="name" value="basedata"/&gt;
+ * &lt;/plugin&gt;
+ * <p>
+ * 注意: 只能缓存只通过mybatis修改的表
+ */
+@Intercepts({
+        @Signature(type = Executor.class, method = "query", args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class}),
+        @Signature(type = Executor.class, method = "query", args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class, CacheKey.class, BoundSql.class}),
+        @Signature(type = Executor.class, method = "update", args = {MappedStatement.class, Object.class})
+})
+public class MybatisQueryCacheInterceptor implements Interceptor, MybatisQueryCacheMXBean {
+    private static final String DEPENDS_ON_PREFIX = "dependsOn.";
+    //每条缓存除结果之外的开销(CacheKey, 链表节点等)
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private static final String JMX_TYPE = "MybatisQueryCache";
+
+    private volatile long maxBytes = 64L * 1024 * 1024;
+    private volatile long ttlMillis = 60 * 1000L;
+    //为true时缓存结果对象本身, 否则缓存序列化后的结果
+    private volatile boolean readOnly = false;
+    private volatile String name = Integer.toHexString(System.identityHashCode(this));
+    //缓存的namespace及其版本号
+    private final ConcurrentMap<String, AtomicLong> namespaceVersions = new ConcurrentHashMap<>();
+    //namespace更新时需要失效的namespace(自己和依赖它的namespace)
+    private final ConcurrentMap<String, Set<String>> invalidatedBy = new ConcurrentHashMap<>();
+    //修改内存上限或者过期时间时重新创建
+    private volatile ConcurrentLruCache<CacheKey, Entry> cache = newCache();
+    private volatile RedisInvalidationChannel channel;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public MybatisQueryCacheInterceptor() {
+        JmxUtils.register(JMX_TYPE, name, this);
+    }
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        Object[] args = invocation.getArgs();
+        MappedStatement mappedStatement = (MappedStatement) args[0];
+        String namespace = getNamespace(mappedStatement);
+        if (args.length == 2) {
+            return update(invocation, namespace);
+        }
+        AtomicLong version = namespaceVersions.get(namespace);
+        if (version == null || args[3] != null || !mappedStatement.isUseCache() || mappedStatement.isFlushCacheRequired()
+                || mappedStatement.getStatementType() == StatementType.CALLABLE) {
+            return invocation.proceed();
+        }
+
+        CacheKey key;
+        if (args.length == 6) {
+            key = (CacheKey) args[4];
+        } else {
+            BoundSql boundSql = mappedStatement.getBoundSql(args[1]);
+            key = ((Executor) invocation.getTarget()).createCacheKey(mappedStatement, args[1], (RowBounds) args[2], boundSql);
+        }
+        long currentVersion = version.get();
+        ConcurrentLruCache<CacheKey, Entry> current = cache;
+        Entry entry = current.get(key);
+        if (entry != null) {
+            List<?> rows = null;
+            if (entry.version == currentVersion) {
+                try {
+                    rows = entry.getRows();
+                } catch (IOException | ClassNotFoundException e) {
+                    //类被重新加载等情况, 当作没有命中
+                }
+            }
+            if (rows != null) {
+                hits.increment();
+                return rows;
+            }
+            //旧版本或者不能读取的结果
+            current.remove(key, entry);
+        }
+        misses.increment();
+
+        Object result = invocation.proceed();
+        //查询期间发生过失效, 或者当前事务已经执行过更新, 结果不放入缓存
+        if (result instanceof List && version.get() == currentVersion
+                && TransactionSynchronizationManager.getResource(this) == null) {
+            put(current, key, (List<?>) result, currentVersion);
+        }
+        return result;
+    }
+
+    private void put(ConcurrentLruCache<CacheKey, Entry> current, CacheKey key, List<?> result, long version) {
+        List<?> rows = new ArrayList<>(result);
+        Entry entry;
+        if (readOnly) {
+            entry = new Entry(rows, null, version, ENTRY_OVERHEAD + ResultSizeEstimator.estimate(rows));
+        } else {
+            byte[] serialized = serialize(rows);
+            if (serialized == null) {
+                return;
+            }
+            entry = new Entry(null, serialized, version, ENTRY_OVERHEAD + serialized.length);
+        }
+        //单个结果不能占用太多的缓存
+        if (entry.bytes <= current.getMaxWeight() / 8) {
+            current.put(key, entry, entry.bytes);
+            puts.increment();
+        }
+    }
+
+    //结果中有不能序列化的对象时返回null
+    private static byte[] serialize(Object value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        } catch (IOException e) {
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    private Object update(Invocation invocation, String namespace) throws Throwable {
+        Set<String> targets = invalidatedBy.get(namespace);
+        if (targets == null) {
+            return invocation.proceed();
+        }
+        try {
+            return invocation.proceed();
+        } finally {
+            invalidate(targets);
+            afterUpdate(namespace);
+        }
+    }
+
+    //在事务中时, 记录更新过的namespace, 事务结束后再次失效并通知其他实例; 否则直接通知其他实例
+    @SuppressWarnings("unchecked")
+    private void afterUpdate(String namespace) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publish(namespace);
+            return;
+        }
+        Set<String> updated = (Set<String>) TransactionSynchronizationManager.getResource(this);
+        if (updated == null) {
+            final Set<String> namespaces = new HashSet<>();
+            TransactionSynchronizationManager.bindResource(this, namespaces);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(MybatisQueryCacheInterceptor.this);
+                    for (String updatedNamespace : namespaces) {
+                        invalidate(invalidatedBy.get(updatedNamespace));
+                        if (status == TransactionSynchronization.STATUS_COMMITTED) {
+                            publish(updatedNamespace);
+                        }
+                    }
+                }
+            });
+            updated = namespaces;
+        }
+        updated.add(namespace);
+    }
+
+    private void invalidate(Set<String> targets) {
+        for (String target : targets) {
+            AtomicLong version = namespaceVersions.get(target);
+            if (version != null) {
+                version.incrementAndGet();
+                invalidations.increment();
+            }
+        }
+    }
+
+    private void publish(String namespace) {
+        RedisInvalidationChannel current = channel;
+        if (current != null) {
+            current.publish(namespace);
+        }
+    }
+
+    /**
+     * 只失效本实例中该namespace以及依赖它的namespace的缓存
+     *
+     * @param namespace mapper的namespace
+     */
+    public void invalidateLocal(String namespace) {
+        Set<String> targets = invalidatedBy.get(namespace);
+        if (targets != null) {
+            invalidate(targets);
+        }
+    }
+
+    private static String getNamespace(MappedStatement mappedStatement) {
+        String id = mappedStatement.getId();
+        int index = id.lastIndexOf('.');
+        return index < 0 ? id : id.substring(0, index);
+    }
+
+    @Override
+    public Object plugin(Object target) {
+        if (target instanceof Executor) {
+            return Plugin.wrap(target, this);
+        }
+        return target;
+    }
+
+    /**
+     * 支持在mybatis配置文件中通过property配置namespaces(逗号分隔), maxBytes, ttlSeconds, channel, readOnly, name,
+     * 以及 dependsOn.namespace(逗号分隔的namespace, 它们更新时该namespace的缓存也失效)
+     *
+     * @param properties
+     */
+    @Override
+    public void setProperties(Properties properties) {
+        for (String name : properties.stringPropertyNames()) {
+            String value = properties.getProperty(name).trim();
+            if ("namespaces".equals(name)) {
+                for (String namespace : split(value)) {
+                    addNamespace(namespace);
+                }
+            } else if ("maxBytes".equals(name)) {
+                setMaxBytes(Long.parseLong(value));
+            } else if ("ttlSeconds".equals(name)) {
+                setTtlSeconds(Integer.parseInt(value));
+            } else if ("channel".equals(name)) {
+                setChannel(value);
+            } else if ("readOnly".equals(name)) {
+                setReadOnly(Boolean.parseBoolean(value));
+            } else if ("name".equals(name)) {
+                setName(value);
+            } else if (name.startsWith(DEPENDS_ON_PREFIX)) {
+                addNamespace(name.substring(DEPENDS_ON_PREFIX.length()), split(value));
+            }
+        }
+    }
+
+    private static String[] split(String value) {
+        List<String> result = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (StringUtils.isNotEmpty(item.trim())) {
+                result.add(item.trim());
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * 缓存namespace中的查询
+     *
+     * @param namespace mapper的namespace
+     * @param dependsOn 该namespace的查询依赖的其他namespace, 它们更新时该namespace的缓存也失效
+     */
+    public void addNamespace(String namespace, String... dependsOn) {
+        Assert.isTrue(StringUtils.isNotEmpty(namespace), "namespace不能为空!");
+        if (namespaceVersions.putIfAbsent(namespace, new AtomicLong()) == null) {
+            addInvalidation(namespace, namespace);
+        }
+        for (String dependency : dependsOn) {
+            addInvalidation(dependency, namespace);
+        }
+    }
+
+    private void addInvalidation(String updatedNamespace, String cachedNamespace) {
+        Set<String> targets = invalidatedBy.get(updatedNamespace);
+        if (targets == null) {
+            Set<String> created = ConcurrentHashMap.newKeySet();
+            targets = invalidatedBy.putIfAbsent(updatedNamespace, created);
+            if (targets == null) {
+                targets = created;
+            }
+        }
+        targets.add(cachedNamespace);
+    }
+
+    /**
+     * 修改后清空缓存
+     *
+     * @param maxBytes 缓存内存上限
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        Assert.isTrue(maxBytes > 0, "缓存内存上限必须大于0!");
+        this.maxBytes = maxBytes;
+        this.cache = newCache();
+    }
+
+    /**
+     * 修改后清空缓存
+     *
+     * @param ttlSeconds 缓存过期时间
+     */
+    public synchronized void setTtlSeconds(int ttlSeconds) {
+        Assert.isTrue(ttlSeconds > 0, "缓存过期时间必须大于0秒!");
+        this.ttlMillis = ttlSeconds * 1000L;
+        this.cache = newCache();
+    }
+
+    /**
+     * 修改后清空缓存
+     *
+     * @param readOnly 为true时缓存结果对象本身, 命中时返回的对象与缓存共享, 调用者不能修改; 默认false, 每次命中反序列化出新的对象
+     */
+    public synchronized void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        this.cache = newCache();
+    }
+
+    /**
+     * @param name JMX注册名中的name, 同一个应用中的多个实例需要使用不同的名称
+     */
+    public synchronized void setName(String name) {
+        Assert.isTrue(StringUtils.isNotEmpty(name), "名称不能为空!");
+        JmxUtils.unregister(JMX_TYPE, this.name);
+        this.name = name;
+        JmxUtils.register(JMX_TYPE, name, this);
+    }
+
+    private ConcurrentLruCache<CacheKey, Entry> newCache() {
+        return new ConcurrentLruCache<>(maxBytes, ttlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 通过redis频道在多个实例之间广播失效消息
+     *
+     * @param channelName 频道名称, 同一个应用的所有实例使用相同的名称
+     */
+    public synchronized void setChannel(String channelName) {
+        if (channel != null) {
+            channel.close();
+        }
+        channel = new RedisInvalidationChannel(channelName, new RedisInvalidationChannel.Listener() {
+            @Override
+            public void onMessage(String namespace) {
+                invalidateLocal(namespace);
+            }
+        });
+    }
+
+    /**
+     * 停止接收失效消息, 清空缓存并注销JMX
+     */
+    public synchronized void close() {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        cache.clear();
+        JmxUtils.unregister(JMX_TYPE, name);
+    }
+
+    /****** 以下为统计指标 *****/
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hitCount = getHits();
+        long total = hitCount + getMisses();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public long getPuts() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public int getSize() {
+        return cache.size();
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return cache.getWeight();
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void clear() {
+        cache.clear();
+    }
+
+    private static class Entry {
+        //readOnly时为结果本身, 否则为null
+        private final List<?> rows;
+        //非readOnly时为序列化后的结果, 否则为null
+        private final byte[] serialized;
+        private final long version;
+        private final long bytes;
+
+        Entry(List<?> rows, byte[] serialized, long version, long bytes) {
+            this.rows = rows;
+            this.serialized = serialized;
+            this.version = version;
+            this.bytes = bytes;
+        }
+
+        //每次返回新的List
+        List<?> getRows() throws IOException, ClassNotFoundException {
+            return serialized == null ? new ArrayList<>(rows) : (List<?>) deserialize(serialized);
+        }
+    }
+}
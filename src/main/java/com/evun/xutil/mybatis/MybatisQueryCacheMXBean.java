@@ -0,0 +1,45 @@
+package com.evun.xutil.mybatis;
+
+/**
+ * mybatis查询缓存的JMX接口, 注册名为 com.evun.xutil:type=MybatisQueryCache,name=配置的name
+ */
+public interface MybatisQueryCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    /**
+     * @return 命中次数 / 总查询次数, 没有查询时返回0
+     */
+    double getHitRatio();
+
+    long getPuts();
+
+    /**
+     * @return 因为超过内存上限被淘汰的条数
+     */
+    long getEvictions();
+
+    /**
+     * @return namespace失效的次数(含依赖的namespace和其他实例广播的失效)
+     */
+    long getInvalidations();
+
+    /**
+     * @return 当前缓存的条数(含已经失效但还没有删除的条数)
+     */
+    int getSize();
+
+    /**
+     * @return 当前缓存估算占用的字节数(非readOnly时为序列化后的字节数)
+     */
+    long getEstimatedBytes();
+
+    long getMaxBytes();
+
+    /**
+     * 清空本实例的缓存
+     */
+    void clear();
+}
@@ -0,0 +1,258 @@
+package com.evun.xutil.mybatis;
+
+import com.evun.xutil.metrics.JmxUtils;
+import com.evun.xutil.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按MappedStatement的id统计的sql语句指标: 调用次数, 错误次数, 影响/返回的行数, 耗时分布(总耗时, 最大值, p50/p95/p99),
+ * 以及单次查询返回的最大行数和估算的最大内存占用
+ * 由MybatisStatsInterceptor记录, 通过JMX(com.evun.xutil:type=MybatisStatementStats)随时查看最慢和最热的语句
+ * 所有计数都是无锁的(LongAdder和LatencyHistogram), 超过MAX_STATEMENTS个语句之后的统计合并到OTHER_STATEMENT中
+ */
+public final class MybatisStatementStats implements MybatisStatementStatsMXBean {
+    //最多统计的语句数量
+    private static final int MAX_STATEMENTS = 2048;
+    private static final String OTHER_STATEMENT = "<other>";
+    private static final MybatisStatementStats INSTANCE = new MybatisStatementStats();
+
+    private static final Comparator<StatementStatsView> BY_TOTAL_TIME = new Comparator<StatementStatsView>() {
+        @Override
+        public int compare(StatementStatsView o1, StatementStatsView o2) {
+            return Double.compare(o2.getTotalMillis(), o1.getTotalMillis());
+        }
+    };
+    private static final Comparator<StatementStatsView> BY_P99 = new Comparator<StatementStatsView>() {
+        @Override
+        public int compare(StatementStatsView o1, StatementStatsView o2) {
+            return Double.compare(o2.getP99Millis(), o1.getP99Millis());
+        }
+    };
+    private static final Comparator<StatementStatsView> BY_CALLS = new Comparator<StatementStatsView>() {
+        @Override
+        public int compare(StatementStatsView o1, StatementStatsView o2) {
+            return Long.compare(o2.getCalls(), o1.getCalls());
+        }
+    };
+    private static final Comparator<StatementStatsView> BY_MAX_ROWS = new Comparator<StatementStatsView>() {
+        @Override
+        public int compare(StatementStatsView o1, StatementStatsView o2) {
+            return Long.compare(o2.getMaxRows(), o1.getMaxRows());
+        }
+    };
+
+    private volatile ConcurrentMap<String, StatementStats> statsMap = new ConcurrentHashMap<>();
+
+    static {
+        JmxUtils.register("MybatisStatementStats", null, INSTANCE);
+    }
+
+    public static MybatisStatementStats getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 记录一次语句执行
+     *
+     * @param statementId  MappedStatement的id
+     * @param elapsedNanos 耗时(纳秒)
+     * @param rows         影响或者返回的行数, 未知时为-1
+     * @param success      是否执行成功
+     */
+    static void record(String statementId, long elapsedNanos, long rows, boolean success) {
+        StatementStats stats = INSTANCE.getStats(statementId);
+        stats.calls.increment();
+        stats.latency.record(elapsedNanos);
+        if (!success) {
+            stats.errors.increment();
+        }
+        if (rows > 0) {
+            stats.rows.add(rows);
+        }
+    }
+
+    /**
+     * 记录一次查询返回的行数和估算的内存占用
+     *
+     * @param statementId    MappedStatement的id
+     * @param rows           返回的行数
+     * @param estimatedBytes 估算的字节数, 没有估算时为-1
+     */
+    static void recordResultSize(String statementId, long rows, long estimatedBytes) {
+        StatementStats stats = INSTANCE.getStats(statementId);
+        updateMax(stats.maxRows, rows);
+        updateMax(stats.maxEstimatedBytes, estimatedBytes);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    @Override
+    public List<StatementStatsView> getStatementStats() {
+        return toViews(statsMap);
+    }
+
+    @Override
+    public List<StatementStatsView> getTopByTotalTime(int n) {
+        return top(BY_TOTAL_TIME, n);
+    }
+
+    @Override
+    public List<StatementStatsView> getTopByP99(int n) {
+        return top(BY_P99, n);
+    }
+
+    @Override
+    public List<StatementStatsView> getTopByCalls(int n) {
+        return top(BY_CALLS, n);
+    }
+
+    @Override
+    public List<StatementStatsView> getTopByMaxRows(int n) {
+        return top(BY_MAX_ROWS, n);
+    }
+
+    @Override
+    public List<StatementStatsView> snapshotAndReset() {
+        //替换整个map, 之后的记录进入新的map, 不会丢失也不会重复计数(替换瞬间正在记录的少量数据除外)
+        ConcurrentMap<String, StatementStats> old = statsMap;
+        statsMap = new ConcurrentHashMap<>();
+        return toViews(old);
+    }
+
+    @Override
+    public void reset() {
+        statsMap = new ConcurrentHashMap<>();
+    }
+
+    private List<StatementStatsView> top(Comparator<StatementStatsView> comparator, int n) {
+        List<StatementStatsView> views = toViews(statsMap);
+        Collections.sort(views, comparator);
+        return views.size() > n ? new ArrayList<>(views.subList(0, Math.max(0, n))) : views;
+    }
+
+    private static List<StatementStatsView> toViews(Map<String, StatementStats> map) {
+        List<StatementStatsView> result = new ArrayList<>(map.size());
+        for (Map.Entry<String, StatementStats> entry : map.entrySet()) {
+            result.add(new StatementStatsView(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    private StatementStats getStats(String statementId) {
+        ConcurrentMap<String, StatementStats> map = statsMap;
+        StatementStats stats = map.get(statementId);
+        if (stats != null) {
+            return stats;
+        }
+        if (map.size() >= MAX_STATEMENTS) {
+            statementId = OTHER_STATEMENT;
+        }
+        stats = new StatementStats();
+        StatementStats existing = map.putIfAbsent(statementId, stats);
+        return existing == null ? stats : existing;
+    }
+
+    private static class StatementStats {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong maxRows = new AtomicLong();
+        private final AtomicLong maxEstimatedBytes = new AtomicLong();
+    }
+
+    /**
+     * 单个语句统计指标的快照, JMX中以CompositeData的形式展示
+     */
+    public static class StatementStatsView {
+        private final String statementId;
+        private final long calls;
+        private final long errors;
+        private final long rows;
+        private final double totalMillis;
+        private final double meanMillis;
+        private final double maxMillis;
+        private final double p50Millis;
+        private final double p95Millis;
+        private final double p99Millis;
+        private final long maxRows;
+        private final long maxEstimatedBytes;
+
+        StatementStatsView(String statementId, StatementStats stats) {
+            this.statementId = statementId;
+            this.calls = stats.calls.sum();
+            this.errors = stats.errors.sum();
+            this.rows = stats.rows.sum();
+            this.totalMillis = stats.latency.getTotalMillis();
+            this.meanMillis = stats.latency.getMeanMillis();
+            this.maxMillis = stats.latency.getMaxMillis();
+            this.p50Millis = stats.latency.getPercentileMillis(50);
+            this.p95Millis = stats.latency.getPercentileMillis(95);
+            this.p99Millis = stats.latency.getPercentileMillis(99);
+            this.maxRows = stats.maxRows.get();
+            this.maxEstimatedBytes = stats.maxEstimatedBytes.get();
+        }
+
+        public String getStatementId() {
+            return statementId;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public double getTotalMillis() {
+            return totalMillis;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP95Millis() {
+            return p95Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public long getMaxRows() {
+            return maxRows;
+        }
+
+        public long getMaxEstimatedBytes() {
+            return maxEstimatedBytes;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.evun.xutil.mybatis;
+
+import java.util.List;
+
+/**
+ * mybatis语句统计指标的JMX接口, 注册名为 com.evun.xutil:type=MybatisStatementStats
+ */
+public interface MybatisStatementStatsMXBean {
+
+    /**
+     * @return 所有语句的统计指标
+     */
+    List<MybatisStatementStats.StatementStatsView> getStatementStats();
+
+    /**
+     * @param n 数量
+     * @return 总耗时最多的n条语句(最值得优化的语句)
+     */
+    List<MybatisStatementStats.StatementStatsView> getTopByTotalTime(int n);
+
+    /**
+     * @param n 数量
+     * @return p99耗时最长的n条语句(最慢的语句)
+     */
+    List<MybatisStatementStats.StatementStatsView> getTopByP99(int n);
+
+    /**
+     * @param n 数量
+     * @return 调用次数最多的n条语句(最热的语句)
+     */
+    List<MybatisStatementStats.StatementStatsView> getTopByCalls(int n);
+
+    /**
+     * @param n 数量
+     * @return 单次查询返回行数最多的n条语句(最可能导致内存溢出的语句)
+     */
+    List<MybatisStatementStats.StatementStatsView> getTopByMaxRows(int n);
+
+    /**
+     * 获取所有语句的统计指标并清空, 定期调用可以得到每个周期内的统计
+     *
+     * @return 清空前的统计指标
+     */
+    List<MybatisStatementStats.StatementStatsView> snapshotAndReset();
+
+    /**
+     * 清空所有统计指标
+     */
+    void reset();
+}
@@ -0,0 +1,192 @@
+package com.evun.xutil.mybatis;
+
+import com.evun.xutil.trace.Span;
+import com.evun.xutil.trace.Tracer;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.ExecutorException;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.plugin.*;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * mybatis插件, 按语句(MappedStatement的id)统计调用次数, 耗时分布, 行数和错误次数, 统计结果见MybatisStatementStats
+ * 每次执行只有一次计时和几次无锁计数的开销, 不生成sql, 可以在生产环境中一直开启
+ * 同时为NPlusOneDetector记录每个请求或者事务中语句的执行次数, 在跟踪中(见Tracer)时为每条语句记录一个子span
+ * 大结果集保护: 查询返回的行数达到warnRows时输出警告(含估算的内存占用); 超过failRows时抛出异常,
+ * 没有分页的查询只会多取一行(RowBounds(0, failRows + 1)), 不会把所有行都加载到内存中再失败;
+ * 使用嵌套结果映射(resultMap中的collection/association)的查询不改写RowBounds: 开启safeRowBoundsEnabled时mybatis会拒绝执行,
+ * 而且按行截断会拆散嵌套的对象, 这类查询在全部加载后再检查行数;
+ * 两个限制都可以按语句单独配置, 如 property name="failRows.cn.evun.xxx.MaterialMapper.selectAll" value="200000"
+ */
+@Intercepts({
+        @Signature(type = Executor.class, method = "query", args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class}),
+        @Signature(type = Executor.class, method = "query", args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class, CacheKey.class, BoundSql.class}),
+        @Signature(type = Executor.class, method = "update", args = {MappedStatement.class, Object.class})
+})
+public class MybatisStatsInterceptor implements Interceptor {
+    private static final Logger LOG = LoggerFactory.getLogger(MybatisStatsInterceptor.class);
+    private static final String WARN_ROWS_PREFIX = "warnRows.";
+    private static final String FAIL_ROWS_PREFIX = "failRows.";
+
+    /**
+     * 查询返回的行数达到该值时输出警告, 0表示不警告
+     */
+    private int warnRows = 10000;
+    /**
+     * 查询返回的行数超过该值时抛出异常, 0表示不限制
+     */
+    private int failRows = 0;
+    /**
+     * 查询返回的行数达到该值时才估算内存占用
+     */
+    private int estimateMinRows = 1000;
+    //按语句单独配置的限制, key为MappedStatement的id
+    private final Map<String, Integer> statementWarnRows = new HashMap<>();
+    private final Map<String, Integer> statementFailRows = new HashMap<>();
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        Object[] args = invocation.getArgs();
+        MappedStatement mappedStatement = (MappedStatement) args[0];
+        String statementId = mappedStatement.getId();
+        NPlusOneDetector.record(statementId);
+        int failLimit = getLimit(statementFailRows, statementId, failRows);
+        //没有分页也没有ResultHandler的查询, 只多取一行, 超过上限时尽快失败
+        if (failLimit > 0 && failLimit < Integer.MAX_VALUE && args.length == 4
+                && args[2] == RowBounds.DEFAULT && args[3] == null && !hasNestedResultMaps(mappedStatement)) {
+            args[2] = new RowBounds(0, failLimit + 1);
+        }
+        long startNanos = System.nanoTime();
+        //不在跟踪中时不拼接span名称
+        Span span = Tracer.currentSpan() == null ? Span.NOOP : Tracer.startSpan("sql " + statementId);
+        boolean success = false;
+        Object result = null;
+        try {
+            result = invocation.proceed();
+            if (args.length >= 4 && result instanceof List) {
+                checkResultSize(statementId, (List<?>) result, failLimit);
+            }
+            success = true;
+            return result;
+        } finally {
+            if (!success) {
+                span.markError();
+            }
+            span.finish();
+            MybatisStatementStats.record(statementId, System.nanoTime() - startNanos, getRows(result), success);
+        }
+    }
+
+    private void checkResultSize(String statementId, List<?> rows, int failLimit) {
+        int size = rows.size();
+        if (failLimit > 0 && size > failLimit) {
+            MybatisStatementStats.recordResultSize(statementId, size, -1);
+            throw new ExecutorException("查询: " + statementId + " 返回的结果超过了" + failLimit + "行, 请增加查询条件或者分页查询!");
+        }
+        long estimatedBytes = size >= estimateMinRows ? ResultSizeEstimator.estimate(rows) : -1;
+        MybatisStatementStats.recordResultSize(statementId, size, estimatedBytes);
+        int warnLimit = getLimit(statementWarnRows, statementId, warnRows);
+        if (warnLimit > 0 && size >= warnLimit) {
+            LOG.warn("大结果集! 查询: {} 返回了 {} 行, 估算占用内存: {} KB", statementId, size,
+                    estimatedBytes < 0 ? "?" : String.valueOf(estimatedBytes / 1024));
+        }
+    }
+
+    private static boolean hasNestedResultMaps(MappedStatement mappedStatement) {
+        for (ResultMap resultMap : mappedStatement.getResultMaps()) {
+            if (resultMap.hasNestedResultMaps()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getLimit(Map<String, Integer> statementLimits, String statementId, int defaultLimit) {
+        if (statementLimits.isEmpty()) {
+            return defaultLimit;
+        }
+        Integer limit = statementLimits.get(statementId);
+        return limit == null ? defaultLimit : limit;
+    }
+
+    @Override
+    public Object plugin(Object target) {
+        if (target instanceof Executor) {
+            return Plugin.wrap(target, this);
+        }
+        return target;
+    }
+
+    /**
+     * 支持在mybatis配置文件中通过property配置warnRows, failRows, estimateMinRows,
+     * 以及按语句配置的 warnRows.语句id, failRows.语句id
+     *
+     * @param properties
+     */
+    @Override
+    public void setProperties(Properties properties) {
+        for (String name : properties.stringPropertyNames()) {
+            int value = Integer.parseInt(properties.getProperty(name).trim());
+            if ("warnRows".equals(name)) {
+                warnRows = value;
+            } else if ("failRows".equals(name)) {
+                failRows = value;
+            } else if ("estimateMinRows".equals(name)) {
+                estimateMinRows = value;
+            } else if (name.startsWith(WARN_ROWS_PREFIX)) {
+                statementWarnRows.put(name.substring(WARN_ROWS_PREFIX.length()), value);
+            } else if (name.startsWith(FAIL_ROWS_PREFIX)) {
+                statementFailRows.put(name.substring(FAIL_ROWS_PREFIX.length()), value);
+            }
+        }
+    }
+
+    public void setWarnRows(int warnRows) {
+        this.warnRows = warnRows;
+    }
+
+    public void setFailRows(int failRows) {
+        this.failRows = failRows;
+    }
+
+    public void setEstimateMinRows(int estimateMinRows) {
+        this.estimateMinRows = estimateMinRows;
+    }
+
+    /**
+     * @param statementWarnRows 按语句配置的警告行数, key为MappedStatement的id
+     */
+    public void setStatementWarnRows(Map<String, Integer> statementWarnRows) {
+        this.statementWarnRows.putAll(statementWarnRows);
+    }
+
+    /**
+     * @param statementFailRows 按语句配置的最大行数, key为MappedStatement的id
+     */
+    public void setStatementFailRows(Map<String, Integer> statementFailRows) {
+        this.statementFailRows.putAll(statementFailRows);
+    }
+
+    //查询返回的行数或者更新影响的行数, 未知时返回-1
+    private static long getRows(Object result) {
+        if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+        if (result instanceof Number) {
+            return ((Number) result).longValue();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,146 @@
+package com.evun.xutil.mybatis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * N+1查询检测: 在一个请求或者一个事务的范围内, 按语句(MappedStatement的id)统计执行次数,
+ * 范围结束时, 执行次数达到阈值的语句以WARN级别输出执行次数和调用位置, 用于发现可以改为批量加载的代码
+ * 1. 请求范围: 由TraceHandlerInterceptor之类的请求拦截器调用begin/end, 见springmvc包中的NPlusOneHandlerInterceptor
+ * 2. 事务范围: 没有请求范围时, 在事务中的第一次执行会注册事务同步器, 事务结束时结束范围
+ * 3. 既没有请求也没有事务时不统计, 因此线程池中的线程不会累积数据
+ * 执行次数由MybatisStatsInterceptor记录, 阈值通过 -Dxutil.mybatis.nPlusOneThreshold 设置, 默认20
+ */
+public abstract class NPlusOneDetector {
+    private static final Logger LOG = LoggerFactory.getLogger(NPlusOneDetector.class);
+
+    //获取调用位置时跳过的框架代码
+    private static final String[] FRAMEWORK_PREFIXES = {
+            "org.apache.ibatis.", "org.mybatis.", "org.springframework.", "com.sun.proxy.", "sun.reflect.",
+            "java.lang.reflect.", "jdk.internal.", "com.evun.xutil.mybatis.", "java.lang.Thread"
+    };
+
+    private static final ThreadLocal<Scope> SCOPE = new ThreadLocal<>();
+    private static volatile int threshold = Integer.getInteger("xutil.mybatis.nPlusOneThreshold", 20);
+
+    /**
+     * 开始一个请求范围, 可以嵌套, 必须在finally中调用end
+     *
+     * @param name 范围名称, 如请求的url
+     */
+    public static void begin(String name) {
+        Scope scope = SCOPE.get();
+        if (scope == null) {
+            SCOPE.set(new Scope(name));
+        } else {
+            scope.depth++;
+        }
+    }
+
+    /**
+     * 结束请求范围, 最外层结束时输出超过阈值的语句并清除线程中的数据
+     */
+    public static void end() {
+        Scope scope = SCOPE.get();
+        if (scope == null) {
+            return;
+        }
+        if (scope.depth > 0) {
+            scope.depth--;
+            return;
+        }
+        SCOPE.remove();
+        scope.report();
+    }
+
+    /**
+     * 记录一次语句执行, 由MybatisStatsInterceptor调用
+     *
+     * @param statementId MappedStatement的id
+     */
+    static void record(String statementId) {
+        Scope scope = SCOPE.get();
+        if (scope == null) {
+            if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+                return;
+            }
+            scope = new Scope(TransactionSynchronizationManager.getCurrentTransactionName());
+            SCOPE.set(scope);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    end();
+                }
+            });
+        }
+        StatementCount count = scope.counts.get(statementId);
+        if (count == null) {
+            count = new StatementCount();
+            scope.counts.put(statementId, count);
+        }
+        //达到阈值时记录一次调用位置, 之后不再获取调用栈
+        if (++count.count == threshold) {
+            count.callSite = findCallSite();
+        }
+    }
+
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    public static void setThreshold(int threshold) {
+        NPlusOneDetector.threshold = threshold;
+    }
+
+    private static String findCallSite() {
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            if (!isFrameworkClass(className) && !className.contains("$$")) {
+                return element.toString();
+            }
+        }
+        return "unknown";
+    }
+
+    private static boolean isFrameworkClass(String className) {
+        for (String prefix : FRAMEWORK_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 一个请求或者事务范围内的统计, 只由当前线程访问
+     */
+    private static class Scope {
+        private final String name;
+        private final Map<String, StatementCount> counts = new HashMap<>();
+        private int depth;
+
+        Scope(String name) {
+            this.name = name;
+        }
+
+        void report() {
+            for (Map.Entry<String, StatementCount> entry : counts.entrySet()) {
+                StatementCount count = entry.getValue();
+                if (count.count >= threshold) {
+                    LOG.warn("可能的N+1查询! 范围: {}, 语句: {} 执行了 {} 次, 调用位置: {}",
+                            name, entry.getKey(), count.count, count.callSite);
+                }
+            }
+        }
+    }
+
+    private static class StatementCount {
+        private int count;
+        private String callSite;
+    }
+}
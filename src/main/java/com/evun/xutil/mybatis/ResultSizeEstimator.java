@@ -0,0 +1,144 @@
+package com.evun.xutil.mybatis;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 粗略估算查询结果占用的堆内存, 用于发现返回大量数据的语句
+ * 只抽样少量行, 按行平均大小乘以行数估算; 每行按对象图估算到有限的深度, 不处理共享引用, 结果只用于比较数量级
+ */
+final class ResultSizeEstimator {
+    //抽样的行数
+    private static final int SAMPLE_ROWS = 8;
+    //对象图的最大估算深度
+    private static final int MAX_DEPTH = 3;
+    //64位jvm(压缩指针)下的对象头和引用大小
+    private static final int OBJECT_HEADER = 16;
+    private static final int REFERENCE = 4;
+    //集合中每个元素的额外开销(如HashMap.Node)
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final ConcurrentMap<Class<?>, Field[]> FIELDS_CACHE = new ConcurrentHashMap<>();
+
+    private ResultSizeEstimator() {
+    }
+
+    /**
+     * @param rows 查询结果
+     * @return 估算的字节数
+     */
+    static long estimate(List<?> rows) {
+        int size = rows.size();
+        if (size == 0) {
+            return 0;
+        }
+        int samples = Math.min(SAMPLE_ROWS, size);
+        int step = size / samples;
+        long sampledBytes = 0;
+        for (int i = 0; i < samples; i++) {
+            sampledBytes += estimateObject(rows.get(i * step), 0);
+        }
+        //ArrayList中的引用 + 每行的平均大小
+        return (long) size * REFERENCE + sampledBytes * size / samples;
+    }
+
+    private static long estimateObject(Object value, int depth) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            //String对象 + char数组
+            return OBJECT_HEADER + 8 + OBJECT_HEADER + 2L * ((String) value).length();
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof Boolean || value instanceof Character || value instanceof Float) {
+            return OBJECT_HEADER;
+        }
+        if (value instanceof Long || value instanceof Double || value instanceof Date) {
+            return OBJECT_HEADER + 8;
+        }
+        if (value instanceof BigDecimal || value instanceof BigInteger) {
+            return 64;
+        }
+        if (value instanceof byte[]) {
+            return OBJECT_HEADER + ((byte[]) value).length;
+        }
+        if (depth >= MAX_DEPTH) {
+            return OBJECT_HEADER;
+        }
+        if (value instanceof Map) {
+            long bytes = OBJECT_HEADER + 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                bytes += ENTRY_OVERHEAD + estimateObject(entry.getKey(), depth + 1) + estimateObject(entry.getValue(), depth + 1);
+            }
+            return bytes;
+        }
+        if (value instanceof Collection) {
+            long bytes = OBJECT_HEADER + 24;
+            for (Object element : (Collection<?>) value) {
+                bytes += REFERENCE + estimateObject(element, depth + 1);
+            }
+            return bytes;
+        }
+        long bytes = OBJECT_HEADER;
+        for (Field field : getFields(value.getClass())) {
+            if (field.getType().isPrimitive()) {
+                bytes += primitiveSize(field.getType());
+            } else {
+                bytes += REFERENCE;
+                try {
+                    bytes += estimateObject(field.get(value), depth + 1);
+                } catch (IllegalAccessException e) {
+                    //无法访问的字段只计算引用
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static Field[] getFields(Class<?> clazz) {
+        Field[] fields = FIELDS_CACHE.get(clazz);
+        if (fields != null) {
+            return fields;
+        }
+        List<Field> result = new ArrayList<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    result.add(field);
+                } catch (RuntimeException e) {
+                    //无法访问的字段不估算
+                }
+            }
+        }
+        fields = result.toArray(new Field[result.size()]);
+        FIELDS_CACHE.putIfAbsent(clazz, fields);
+        return fields;
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+}
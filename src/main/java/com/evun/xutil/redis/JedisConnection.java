@@ -0,0 +1,95 @@
+package com.evun.xutil.redis;
+
+import cn.evun.gap.common.utils.Assert;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.List;
+
+/**
+ * 使用Jedis实现的RedisConnection, 由JedisPoolClientProvider, SpringJedisClientProvider创建
+ */
+public class JedisConnection implements RedisConnection {
+    private final Jedis jedis;
+    //正在进行的订阅, 没有订阅时为null
+    private volatile JedisPubSub pubSub;
+
+    public JedisConnection(Jedis jedis) {
+        Assert.notNull(jedis, "jedis连接不能为空!");
+        this.jedis = jedis;
+    }
+
+    @Override
+    public Object eval(String script, List<String> keys, List<String> args) {
+        return jedis.eval(script, keys, args);
+    }
+
+    @Override
+    public Object eval(byte[] script, List<byte[]> keys, List<byte[]> args) {
+        return jedis.eval(script, keys, args);
+    }
+
+    @Override
+    public Long setnx(String key, String value) {
+        return jedis.setnx(key, value);
+    }
+
+    @Override
+    public Long expire(String key, int seconds) {
+        return jedis.expire(key, seconds);
+    }
+
+    @Override
+    public Long del(String... keys) {
+        return jedis.del(keys);
+    }
+
+    @Override
+    public Long zrem(String key, String... members) {
+        return jedis.zrem(key, members);
+    }
+
+    @Override
+    public List<byte[]> mget(byte[]... keys) {
+        return jedis.mget(keys);
+    }
+
+    @Override
+    public Long publish(String channel, String message) {
+        return jedis.publish(channel, message);
+    }
+
+    @Override
+    public void subscribe(final MessageListener listener, String channel) {
+        JedisPubSub subscriber = new JedisPubSub() {
+            @Override
+            public void onMessage(String channel, String message) {
+                listener.onMessage(channel, message);
+            }
+
+            @Override
+            public void onSubscribe(String channel, int subscribedChannels) {
+                listener.onSubscribe(channel);
+            }
+        };
+        pubSub = subscriber;
+        try {
+            jedis.subscribe(subscriber, channel);
+        } finally {
+            pubSub = null;
+        }
+    }
+
+    @Override
+    public void unsubscribe() {
+        JedisPubSub subscriber = pubSub;
+        //还没有订阅成功时jedis不能发送UNSUBSCRIBE
+        if (subscriber != null && subscriber.isSubscribed()) {
+            subscriber.unsubscribe();
+        }
+    }
+
+    public Jedis getJedis() {
+        return jedis;
+    }
+}
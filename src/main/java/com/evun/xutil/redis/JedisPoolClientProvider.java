@@ -0,0 +1,33 @@
+package com.evun.xutil.redis;
+
+import cn.evun.gap.common.utils.Assert;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * 使用独立JedisPool的连接提供者, 用于脱离平台spring容器运行的场景, 例如:
+ * <p>
+ * RedisUtils.setClientProvider(new JedisPoolClientProvider(new JedisPool("localhost", 6379)));
+ */
+public class JedisPoolClientProvider implements RedisClientProvider {
+    private final JedisPool pool;
+
+    public JedisPoolClientProvider(JedisPool pool) {
+        Assert.notNull(pool, "连接池不能为空!");
+        this.pool = pool;
+    }
+
+    @Override
+    public RedisConnection getResource() {
+        return new JedisConnection(pool.getResource());
+    }
+
+    @Override
+    public void returnResource(RedisConnection resource) {
+        //jedis 2.x 之后close会把连接归还到所属的连接池中
+        ((JedisConnection) resource).getJedis().close();
+    }
+
+    public JedisPool getPool() {
+        return pool;
+    }
+}
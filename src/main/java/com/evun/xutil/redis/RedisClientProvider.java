@@ -0,0 +1,24 @@
+package com.evun.xutil.redis;
+
+/**
+ * redis连接的提供者, 本包中的所有工具类都通过它获取和归还连接
+ * 默认实现使用平台的JedisClient(见SpringJedisClientProvider), 在没有平台spring容器的环境中(如单元测试, 基准测试),
+ * 可以通过 RedisUtils.setClientProvider 替换成 JedisPoolClientProvider, 连接本地redis;
+ * 也可以替换成返回进程内替身RedisConnection的实现, 不需要redis服务
+ */
+public interface RedisClientProvider {
+
+    /**
+     * 获取连接, 使用完毕后必须调用returnResource归还
+     *
+     * @return redis连接
+     */
+    RedisConnection getResource();
+
+    /**
+     * 归还连接
+     *
+     * @param resource 通过getResource获取的连接
+     */
+    void returnResource(RedisConnection resource);
+}
@@ -0,0 +1,79 @@
+package com.evun.xutil.redis;
+
+import java.util.List;
+
+/**
+ * 本包的工具类使用的redis命令, 只包含实际用到的命令, 由RedisClientProvider提供
+ * 默认实现是对Jedis的包装(见JedisConnection); 单元测试和基准测试可以提供进程内的替身实现, 不需要真实的redis服务
+ * 连接不是线程安全的, 一个连接同时只能在一个线程中使用
+ */
+public interface RedisConnection {
+
+    /**
+     * 执行lua脚本
+     *
+     * @param script 脚本
+     * @param keys   KEYS参数
+     * @param args   ARGV参数
+     * @return 脚本的返回值(整数为Long)
+     */
+    Object eval(String script, List<String> keys, List<String> args);
+
+    /**
+     * 执行lua脚本, 参数为二进制
+     *
+     * @param script 脚本
+     * @param keys   KEYS参数
+     * @param args   ARGV参数
+     * @return 脚本的返回值(整数为Long)
+     */
+    Object eval(byte[] script, List<byte[]> keys, List<byte[]> args);
+
+    Long setnx(String key, String value);
+
+    Long expire(String key, int seconds);
+
+    Long del(String... keys);
+
+    Long zrem(String key, String... members);
+
+    List<byte[]> mget(byte[]... keys);
+
+    /**
+     * @return 收到消息的订阅者数量
+     */
+    Long publish(String channel, String message);
+
+    /**
+     * 订阅频道, 一直阻塞到调用unsubscribe或者连接断开
+     *
+     * @param listener 消息监听器, 在订阅线程中回调
+     * @param channel  频道名称
+     */
+    void subscribe(MessageListener listener, String channel);
+
+    /**
+     * 取消本连接上的订阅, 可以在其他线程中调用, 之后subscribe返回
+     */
+    void unsubscribe();
+
+    /**
+     * 订阅的消息监听器
+     */
+    interface MessageListener {
+        /**
+         * 订阅成功
+         *
+         * @param channel 频道名称
+         */
+        void onSubscribe(String channel);
+
+        /**
+         * 收到消息
+         *
+         * @param channel 频道名称
+         * @param message 消息内容
+         */
+        void onMessage(String channel, String message);
+    }
+}
@@ -0,0 +1,183 @@
+package com.evun.xutil.redis;
+
+import cn.evun.gap.common.utils.Assert;
+import cn.evun.gap.common.utils.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 基于redis发布/订阅的失效通知通道, 用于在多实例(多个jvm实例)之间广播本地缓存的失效消息
+ * 特性:
+ * 1. 订阅占用一个独立的redis连接, 由后台守护线程维护, 连接断开后会不断尝试重连
+ * 2. 本实例发出的消息不会再回调给本实例的监听器(本地已经处理过)
+ * 3. 发布消息失败只记录日志, 不影响业务线程
+ */
+public final class RedisInvalidationChannel {
+    private static final Logger LOG = LoggerFactory.getLogger(RedisInvalidationChannel.class);
+
+    //重连间隔(毫秒)
+    private static final long RECONNECT_DELAY_MILLIS = 3000;
+    //消息格式为: 实例id + 分隔符 + 内容
+    private static final char SEPARATOR = '|';
+    //本实例id, 用于忽略自己发出的消息
+    private static final String INSTANCE_ID = UUID.randomUUID().toString();
+
+    private final String channel;
+    private final Listener listener;
+    private final RedisClientProvider clientProvider;
+    private final Subscriber subscriber = new Subscriber();
+    private volatile boolean running = true;
+    //正在订阅的连接, 没有订阅时为null
+    private volatile RedisConnection subscription;
+    //UNSUBSCRIBE只能发送一次, 多余的回复会留在连接中
+    private final AtomicBoolean unsubscribed = new AtomicBoolean();
+
+    /**
+     * 创建并立即开始订阅
+     *
+     * @param channel  频道名称
+     * @param listener 收到其他实例消息时的回调, 在订阅线程中执行, 不能阻塞
+     */
+    public RedisInvalidationChannel(String channel, Listener listener) {
+        Assert.isTrue(StringUtils.isNotEmpty(channel), "频道名称不能为空!");
+        Assert.notNull(listener, "监听器不能为空!");
+        this.channel = channel;
+        this.listener = listener;
+        this.clientProvider = RedisUtils.getClientProvider();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                doSubscribe();
+            }
+        }, "redis-invalidation-" + channel);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 向其他实例广播消息
+     *
+     * @param message 消息内容
+     */
+    public void publish(String message) {
+        RedisConnection resource = null;
+        try {
+            resource = clientProvider.getResource();
+            resource.publish(channel, INSTANCE_ID + SEPARATOR + message);
+        } catch (Exception e) {
+            LOG.error("向频道: " + channel + " 发布消息发生异常！", e);
+        } finally {
+            if (resource != null) {
+                clientProvider.returnResource(resource);
+            }
+        }
+    }
+
+    /**
+     * 停止订阅, 后台线程随之退出
+     * 订阅线程还没有完成订阅时, 由订阅线程在订阅成功后(onSubscribe)取消订阅
+     */
+    public void close() {
+        running = false;
+        if (subscriber.subscribed) {
+            unsubscribe();
+        }
+    }
+
+    private void unsubscribe() {
+        if (!unsubscribed.compareAndSet(false, true)) {
+            return;
+        }
+        RedisConnection connection = subscription;
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.unsubscribe();
+        } catch (Exception e) {
+            LOG.info("取消订阅频道: " + channel + " 发生异常", e);
+        }
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    //订阅会一直阻塞, 直到连接断开或者取消订阅
+    private void doSubscribe() {
+        while (running) {
+            RedisConnection resource = null;
+            try {
+                resource = clientProvider.getResource();
+                //已经关闭时不再订阅, 否则订阅会一直阻塞并占用连接
+                if (!running) {
+                    break;
+                }
+                subscription = resource;
+                resource.subscribe(subscriber, channel);
+            } catch (Exception e) {
+                LOG.error("订阅频道: " + channel + " 发生异常, " + RECONNECT_DELAY_MILLIS + "毫秒后重连!", e);
+            } finally {
+                subscription = null;
+                subscriber.subscribed = false;
+                if (resource != null) {
+                    clientProvider.returnResource(resource);
+                }
+            }
+            if (running) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 失效消息监听器
+     */
+    public interface Listener {
+        /**
+         * 收到其他实例发出的消息
+         *
+         * @param message 消息内容
+         */
+        void onMessage(String message);
+    }
+
+    private class Subscriber implements RedisConnection.MessageListener {
+        //订阅成功之后才能取消订阅
+        private volatile boolean subscribed;
+
+        @Override
+        public void onMessage(String channel, String message) {
+            int index = message.indexOf(SEPARATOR);
+            if (index < 0) {
+                return;
+            }
+            //忽略本实例发出的消息
+            if (message.startsWith(INSTANCE_ID) && index == INSTANCE_ID.length()) {
+                return;
+            }
+            try {
+                listener.onMessage(message.substring(index + 1));
+            } catch (Exception e) {
+                LOG.error("处理频道: " + channel + " 的消息发生异常！", e);
+            }
+        }
+
+        @Override
+        public void onSubscribe(String channel) {
+            LOG.info("成功订阅频道: {}", channel);
+            subscribed = true;
+            //订阅期间调用了close, close时还没有订阅成功, 没有取消订阅
+            if (!running) {
+                unsubscribe();
+            }
+        }
+    }
+}
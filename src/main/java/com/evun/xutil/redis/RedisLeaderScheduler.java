@@ -0,0 +1,397 @@
+package com.evun.xutil.redis;
+
+import cn.evun.gap.common.utils.Assert;
+import cn.evun.gap.common.utils.StringUtils;
+import com.evun.xutil.MathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于redis租约的选主组件, 以及只在主节点上运行的定时任务调度器
+ * 用于替代 "每个节点都用tryLockAndRun + minRunSecs争抢同一个定时任务" 的做法:
+ * 1. 所有节点中只有一个主节点(持有租约), 主节点每 leaseSecs/4 续约一次
+ * 2. 注册的定时任务只在主节点上运行, 从节点不运行任务, 只每 leaseSecs/2 检查一次租约是否空闲
+ * 3. 主节点正常关闭时主动释放租约并广播, 从节点立即接管; 主节点宕机时, 最多 leaseSecs 后被接管
+ * 4. 租约的本地有效期从发送续约请求之前开始计算, 并提前 leaseSecs/4 结束, 一定早于redis中租约的过期时间;
+ * 续约失败(包括redis不可用)时立即停止调度新的任务, 本地有效期结束时由独立的看门狗线程停止所有任务(不受续约请求阻塞的影响),
+ * 防止出现两个主节点同时运行任务
+ * <p>
+ * spring配置示例:
+ * <p>
+ * &lt;bean class="com.evun.xutil.redis.RedisLeaderScheduler"&gt;
+ * &lt;property name="electionName" value="eps-cron"/&gt;
+ * &lt;property name="leaseSecs" value="15"/&gt;
+ * &lt;/bean&gt;
+ * <p>
+ * 注册任务:
+ * <p>
+ * leaderScheduler.scheduleAtFixedRate("syncStock", new Runnable() {...}, 0, 5, TimeUnit.MINUTES);
+ */
+public class RedisLeaderScheduler implements InitializingBean, DisposableBean {
+    private static final Logger LOG = LoggerFactory.getLogger(RedisLeaderScheduler.class);
+
+    private static final String REDIS_LEADER_PREFIX = RedisLeaderScheduler.class.getName() + ".leader.";//租约key的前缀
+    private static final int DEFAULT_LEASE_SECS = 15;
+    private static final int DEFAULT_JOB_THREADS = 2;
+    /**
+     * 获取或续约的脚本, KEYS[1]: 租约key, ARGV[1]: 本节点id, ARGV[2]: 租约时长(毫秒)
+     * 租约空闲时获取, 被本节点持有时续约, 否则返回0
+     */
+    private static final String ACQUIRE_OR_RENEW_SCRIPT =
+            "local holder = redis.call('get', KEYS[1]) " +
+                    "if holder == false then " +
+                    "redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2]) " +
+                    "return 1 " +
+                    "end " +
+                    "if holder == ARGV[1] then " +
+                    "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+                    "return 1 " +
+                    "end " +
+                    "return 0";
+    /**
+     * 释放租约的脚本, 只有持有者才能释放
+     */
+    private static final String RELEASE_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                    "return redis.call('del', KEYS[1]) " +
+                    "end " +
+                    "return 0";
+
+    //选主名称, 同一个名称的所有节点之间选出一个主节点
+    private String electionName;
+    //租约时长(秒)
+    private int leaseSecs = DEFAULT_LEASE_SECS;
+    //运行定时任务的线程数
+    private int jobThreads = DEFAULT_JOB_THREADS;
+
+    private final String nodeId;
+    private final List<Job> jobs = new ArrayList<>();
+    private RedisClientProvider clientProvider;
+    private String leaderKey;
+    private ScheduledExecutorService electionExecutor;
+    //检查本地租约有效期的线程, 续约请求阻塞时也能按时停止任务
+    private ScheduledExecutorService leaseWatchdog;
+    private ScheduledExecutorService jobExecutor;
+    private RedisInvalidationChannel resignChannel;
+    private volatile boolean leader;
+    //本地租约有效期的结束时间(System.nanoTime)
+    private volatile long leaseValidUntilNanos;
+    //最后一次续约是否失败, 失败后不再调度新的任务
+    private volatile boolean renewFailed;
+    private ScheduledFuture<?> nextElection;
+
+    public RedisLeaderScheduler() {
+        String hostName = "";
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            //忽略错误
+        }
+        this.nodeId = hostName + ":" + UUID.randomUUID().toString();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Assert.isTrue(StringUtils.isNotEmpty(electionName), "选主名称不能为空!");
+        Assert.isTrue(leaseSecs >= 3, "租约时间不能小于3秒!");
+        Assert.isTrue(jobThreads > 0, "任务线程数必须大于0!");
+        this.clientProvider = RedisUtils.getClientProvider();
+        this.leaderKey = REDIS_LEADER_PREFIX + electionName;
+        this.electionExecutor = Executors.newSingleThreadScheduledExecutor(newThreadFactory("leader-election-" + electionName));
+        this.leaseWatchdog = Executors.newSingleThreadScheduledExecutor(newThreadFactory("leader-watchdog-" + electionName));
+        this.jobExecutor = Executors.newScheduledThreadPool(jobThreads, newThreadFactory("leader-job-" + electionName));
+        //主节点主动释放租约时, 从节点立即尝试接管
+        this.resignChannel = new RedisInvalidationChannel(leaderKey + ".resign", new RedisInvalidationChannel.Listener() {
+            @Override
+            public void onMessage(String message) {
+                scheduleElection(0);
+            }
+        });
+        scheduleElection(0);
+        LOG.info("选主组件启动成功! 选主名称: {}, 本节点: {}", electionName, nodeId);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        synchronized (this) {
+            if (nextElection != null) {
+                nextElection.cancel(false);
+            }
+        }
+        electionExecutor.shutdownNow();
+        leaseWatchdog.shutdownNow();
+        boolean wasLeader = leader;
+        stepDown();
+        jobExecutor.shutdownNow();
+        if (wasLeader) {
+            release();
+            resignChannel.publish(nodeId);
+        }
+        resignChannel.close();
+    }
+
+    /**
+     * 注册固定频率的定时任务, 只在主节点上运行
+     *
+     * @param jobName      任务名称, 用于日志
+     * @param job          任务
+     * @param initialDelay 成为主节点后第一次运行的延迟
+     * @param period       运行间隔
+     * @param unit         时间单位
+     */
+    public void scheduleAtFixedRate(String jobName, Runnable job, long initialDelay, long period, TimeUnit unit) {
+        addJob(new Job(jobName, job, initialDelay, period, unit, true));
+    }
+
+    /**
+     * 注册固定延迟的定时任务(上一次运行结束后延迟指定时间再运行), 只在主节点上运行
+     *
+     * @param jobName      任务名称, 用于日志
+     * @param job          任务
+     * @param initialDelay 成为主节点后第一次运行的延迟
+     * @param delay        两次运行之间的延迟
+     * @param unit         时间单位
+     */
+    public void scheduleWithFixedDelay(String jobName, Runnable job, long initialDelay, long delay, TimeUnit unit) {
+        addJob(new Job(jobName, job, initialDelay, delay, unit, false));
+    }
+
+    /**
+     * @return 当前节点是否为主节点
+     */
+    public boolean isLeader() {
+        return leader;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    private synchronized void addJob(Job job) {
+        Assert.isTrue(StringUtils.isNotEmpty(job.name), "任务名称不能为空!");
+        Assert.notNull(job.task, "任务不能为空!");
+        Assert.isTrue(job.period > 0, "任务间隔必须大于0!");
+        Assert.notNull(job.unit, "时间单位不能为空!");
+        jobs.add(job);
+        if (leader) {
+            startJob(job);
+        }
+    }
+
+    //在选主线程中执行, 安排下一次选主/续约
+    private synchronized void scheduleElection(long delayMillis) {
+        if (electionExecutor.isShutdown()) {
+            return;
+        }
+        if (nextElection != null) {
+            nextElection.cancel(false);
+        }
+        nextElection = electionExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                doElection();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void doElection() {
+        long leaseMillis = leaseSecs * 1000L;
+        //在发送请求之前取时间, redis中租约的过期时间一定晚于 requestNanos + 租约时长
+        long requestNanos = System.nanoTime();
+        try {
+            if (acquireOrRenew(leaseMillis)) {
+                //提前结束本地有效期, 留出停止任务和时钟误差的余量
+                long validNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis - leaseMillis / 4);
+                leaseValidUntilNanos = requestNanos + validNanos;
+                renewFailed = false;
+                if (!leader) {
+                    becomeLeader();
+                }
+                scheduleLeaseCheck(leaseValidUntilNanos - System.nanoTime());
+            } else if (leader) {
+                LOG.warn("租约: {} 已经被其他节点持有, 本节点: {} 停止运行所有任务!", leaderKey, nodeId);
+                stepDown();
+            }
+        } catch (Exception e) {
+            LOG.error("选主: " + leaderKey + " 发生异常！", e);
+            if (leader) {
+                //无法确认租约, 不再调度新的任务; 本地有效期结束时由看门狗停止所有任务
+                renewFailed = true;
+                checkLease();
+            }
+        }
+        //主节点续约要足够频繁, 保证有效期结束之前还能重试; 从节点只需要低频检查
+        scheduleElection(leader ? leaseMillis / 4 : leaseMillis / 2);
+    }
+
+    //每次续约成功都安排一次检查, 之前安排的检查到期时有效期已经延长, 不会误停
+    private void scheduleLeaseCheck(long delayNanos) {
+        try {
+            leaseWatchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    checkLease();
+                }
+            }, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            //已经关闭
+        }
+    }
+
+    private void checkLease() {
+        if (leader && !isLeaseValid()) {
+            LOG.warn("租约: {} 的本地有效期已经结束, 没有续约成功, 本节点: {} 停止运行所有任务!", leaderKey, nodeId);
+            stepDown();
+        }
+    }
+
+    private boolean isLeaseValid() {
+        return System.nanoTime() - leaseValidUntilNanos < 0;
+    }
+
+    private boolean acquireOrRenew(long leaseMillis) {
+        RedisConnection resource = null;
+        try {
+            resource = clientProvider.getResource();
+            Object result = resource.eval(ACQUIRE_OR_RENEW_SCRIPT,
+                    Collections.singletonList(leaderKey),
+                    Arrays.asList(nodeId, String.valueOf(leaseMillis)));
+            return MathUtils.eq(1, result);
+        } finally {
+            if (resource != null) {
+                clientProvider.returnResource(resource);
+            }
+        }
+    }
+
+    private void release() {
+        RedisConnection resource = null;
+        try {
+            resource = clientProvider.getResource();
+            resource.eval(RELEASE_SCRIPT, Collections.singletonList(leaderKey), Collections.singletonList(nodeId));
+        } catch (Exception e) {
+            LOG.error("释放租约: " + leaderKey + " 发生异常！", e);
+        } finally {
+            if (resource != null) {
+                clientProvider.returnResource(resource);
+            }
+        }
+    }
+
+    private synchronized void becomeLeader() {
+        leader = true;
+        LOG.info("本节点: {} 成为主节点, 开始运行 {} 个任务", nodeId, jobs.size());
+        for (Job job : jobs) {
+            startJob(job);
+        }
+    }
+
+    private synchronized void stepDown() {
+        if (!leader) {
+            return;
+        }
+        leader = false;
+        for (Job job : jobs) {
+            if (job.future != null) {
+                //打断正在运行的任务, 租约已经丢失, 其他节点可能马上开始运行同一个任务
+                job.future.cancel(true);
+                job.future = null;
+            }
+        }
+    }
+
+    private void startJob(final Job job) {
+        Runnable safeTask = new Runnable() {
+            @Override
+            public void run() {
+                //租约丢失, 续约失败或者本地有效期已经结束时, 已经排队的任务不再运行
+                if (!leader || renewFailed || !isLeaseValid()) {
+                    return;
+                }
+                try {
+                    job.task.run();
+                } catch (Exception e) {
+                    //不能抛出异常, 否则后续的定时运行都会被取消
+                    LOG.error("运行任务: " + job.name + " 发生异常！", e);
+                }
+            }
+        };
+        if (job.fixedRate) {
+            job.future = jobExecutor.scheduleAtFixedRate(safeTask, job.initialDelay, job.period, job.unit);
+        } else {
+            job.future = jobExecutor.scheduleWithFixedDelay(safeTask, job.initialDelay, job.period, job.unit);
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, namePrefix + "-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public String getElectionName() {
+        return electionName;
+    }
+
+    public void setElectionName(String electionName) {
+        this.electionName = electionName;
+    }
+
+    public int getLeaseSecs() {
+        return leaseSecs;
+    }
+
+    public void setLeaseSecs(int leaseSecs) {
+        this.leaseSecs = leaseSecs;
+    }
+
+    public int getJobThreads() {
+        return jobThreads;
+    }
+
+    public void setJobThreads(int jobThreads) {
+        this.jobThreads = jobThreads;
+    }
+
+    private static class Job {
+        private final String name;
+        private final Runnable task;
+        private final long initialDelay;
+        private final long period;
+        private final TimeUnit unit;
+        private final boolean fixedRate;
+        private ScheduledFuture<?> future;
+
+        Job(String name, Runnable task, long initialDelay, long period, TimeUnit unit, boolean fixedRate) {
+            this.name = name;
+            this.task = task;
+            this.initialDelay = initialDelay;
+            this.period = period;
+            this.unit = unit;
+            this.fixedRate = fixedRate;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.evun.xutil.redis;
+
+import com.evun.xutil.metrics.JmxUtils;
+import com.evun.xutil.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RedisUtils中锁的统计指标, 按锁名统计获取次数, 成功/失败次数, 获取耗时, 持有时间, 以及持有时间超过过期时间(锁提前失效)的次数
+ * 指标通过JMX暴露(com.evun.xutil:type=RedisLockMetrics), 用于调整过期时间和发现竞争热点
+ * 锁名中通常带有业务id(如 "order:10086"), 统计按锁的类型而不是锁名: 锁名中以 . : - _ / | 分隔的每一段, 只要含有数字就替换为#,
+ * 如 "order:10086" 和 "order:10087" 都统计在 "order:#" 中; 没有数字的锁名保持不变
+ * 为了防止内存无限增长, 锁的类型超过MAX_LOCK_NAMES个之后, 新出现的类型都合并到OTHER_LOCK_NAME中
+ */
+public final class RedisLockMetrics implements RedisLockMetricsMXBean {
+    //最多统计的锁名数量
+    private static final int MAX_LOCK_NAMES = 1024;
+    private static final String OTHER_LOCK_NAME = "<other>";
+    private static final RedisLockMetrics INSTANCE = new RedisLockMetrics();
+
+    private final ConcurrentMap<String, LockStats> statsMap = new ConcurrentHashMap<>();
+    //超过MAX_LOCK_NAMES之后共用的统计, 溢出时不再分配新的对象
+    private volatile LockStats otherStats = new LockStats();
+
+    static {
+        JmxUtils.register("RedisLockMetrics", null, INSTANCE);
+    }
+
+    public static RedisLockMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 记录一次获取锁的结果
+     *
+     * @param lockName     锁名
+     * @param success      是否获取成功
+     * @param elapsedNanos 获取耗时(纳秒)
+     */
+    static void recordAcquire(String lockName, boolean success, long elapsedNanos) {
+        LockStats stats = INSTANCE.getStats(lockName);
+        stats.attempts.increment();
+        if (success) {
+            stats.successes.increment();
+        } else {
+            stats.failures.increment();
+        }
+        stats.acquireLatency.record(elapsedNanos);
+    }
+
+    /**
+     * 记录一次释放锁, 持有时间超过过期时间时, 说明锁在释放前已经失效, 其他实例可能已经并发执行
+     *
+     * @param lockName   锁名
+     * @param holdNanos  持有时间(纳秒)
+     * @param expireSecs 锁的过期时间(秒)
+     */
+    static void recordRelease(String lockName, long holdNanos, int expireSecs) {
+        LockStats stats = INSTANCE.getStats(lockName);
+        stats.holdTime.record(holdNanos);
+        if (holdNanos > TimeUnit.SECONDS.toNanos(expireSecs)) {
+            stats.expiredBeforeRelease.increment();
+        }
+    }
+
+    @Override
+    public List<LockStatsView> getLockStats() {
+        List<LockStatsView> result = new ArrayList<>(statsMap.size() + 1);
+        for (Map.Entry<String, LockStats> entry : statsMap.entrySet()) {
+            result.add(new LockStatsView(entry.getKey(), entry.getValue()));
+        }
+        LockStats other = otherStats;
+        if (other.attempts.sum() > 0 || other.holdTime.getCount() > 0) {
+            result.add(new LockStatsView(OTHER_LOCK_NAME, other));
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        statsMap.clear();
+        otherStats = new LockStats();
+    }
+
+    private LockStats getStats(String lockName) {
+        String lockType = getLockType(lockName);
+        LockStats stats = statsMap.get(lockType);
+        if (stats != null) {
+            return stats;
+        }
+        if (statsMap.size() >= MAX_LOCK_NAMES) {
+            return otherStats;
+        }
+        stats = new LockStats();
+        LockStats existing = statsMap.putIfAbsent(lockType, stats);
+        return existing == null ? stats : existing;
+    }
+
+    /**
+     * 锁名对应的锁类型: 以 . : - _ / | 分隔的每一段, 含有数字时替换为#; 没有数字时直接返回锁名, 不分配新的字符串
+     *
+     * @param lockName 锁名
+     * @return 锁类型
+     */
+    static String getLockType(String lockName) {
+        if (!containsDigit(lockName)) {
+            return lockName;
+        }
+        int length = lockName.length();
+        StringBuilder type = new StringBuilder(length);
+        int segmentStart = 0;
+        boolean hasDigit = false;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || isSeparator(lockName.charAt(i))) {
+                if (hasDigit) {
+                    type.append('#');
+                } else {
+                    type.append(lockName, segmentStart, i);
+                }
+                if (i < length) {
+                    type.append(lockName.charAt(i));
+                }
+                segmentStart = i + 1;
+                hasDigit = false;
+            } else if (Character.isDigit(lockName.charAt(i))) {
+                hasDigit = true;
+            }
+        }
+        return type.toString();
+    }
+
+    private static boolean containsDigit(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.isDigit(value.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '.' || c == ':' || c == '-' || c == '_' || c == '/' || c == '|';
+    }
+
+    private static class LockStats {
+        private final LongAdder attempts = new LongAdder();
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder expiredBeforeRelease = new LongAdder();
+        private final LatencyHistogram acquireLatency = new LatencyHistogram();
+        private final LatencyHistogram holdTime = new LatencyHistogram();
+    }
+
+    /**
+     * 单个锁名统计指标的快照, JMX中以CompositeData的形式展示
+     */
+    public static class LockStatsView {
+        private final String lockName;
+        private final long attempts;
+        private final long successes;
+        private final long failures;
+        private final long expiredBeforeRelease;
+        private final double acquireP50Millis;
+        private final double acquireP99Millis;
+        private final double holdP50Millis;
+        private final double holdP99Millis;
+        private final double holdMaxMillis;
+
+        LockStatsView(String lockName, LockStats stats) {
+            this.lockName = lockName;
+            this.attempts = stats.attempts.sum();
+            this.successes = stats.successes.sum();
+            this.failures = stats.failures.sum();
+            this.expiredBeforeRelease = stats.expiredBeforeRelease.sum();
+            this.acquireP50Millis = stats.acquireLatency.getPercentileMillis(50);
+            this.acquireP99Millis = stats.acquireLatency.getPercentileMillis(99);
+            this.holdP50Millis = stats.holdTime.getPercentileMillis(50);
+            this.holdP99Millis = stats.holdTime.getPercentileMillis(99);
+            this.holdMaxMillis = stats.holdTime.getMaxMillis();
+        }
+
+        public String getLockName() {
+            return lockName;
+        }
+
+        public long getAttempts() {
+            return attempts;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getExpiredBeforeRelease() {
+            return expiredBeforeRelease;
+        }
+
+        public double getAcquireP50Millis() {
+            return acquireP50Millis;
+        }
+
+        public double getAcquireP99Millis() {
+            return acquireP99Millis;
+        }
+
+        public double getHoldP50Millis() {
+            return holdP50Millis;
+        }
+
+        public double getHoldP99Millis() {
+            return holdP99Millis;
+        }
+
+        public double getHoldMaxMillis() {
+            return holdMaxMillis;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.evun.xutil.redis;
+
+import java.util.List;
+
+/**
+ * RedisUtils锁指标的JMX接口, 注册名为 com.evun.xutil:type=RedisLockMetrics
+ */
+public interface RedisLockMetricsMXBean {
+
+    /**
+     * @return 所有锁名的统计指标
+     */
+    List<RedisLockMetrics.LockStatsView> getLockStats();
+
+    /**
+     * 清空所有统计指标
+     */
+    void reset();
+}
@@ -3,16 +3,29 @@ package com.evun.xutil.redis;
 import cn.evun.gap.common.utils.Assert;
 import cn.evun.gap.common.utils.ReflectionUtils;
 import cn.evun.gap.common.utils.StringUtils;
-import cn.evun.gap.core.cache.support.redis.jedis.JedisClient;
-import cn.evun.gap.core.spring.SpringContext;
 import cn.evun.gap.eps.ba.controller.MaterialController;
+import com.evun.xutil.MathUtils;
+import com.evun.xutil.concurrent.AsyncTaskExecutor;
+import com.evun.xutil.trace.Span;
+import com.evun.xutil.trace.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import redis.clients.jedis.Jedis;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Ｒｅｄｉｓ工具类，用于保证多实例(多个jvm实例)情况下的并发操作
@@ -48,6 +61,15 @@ import java.util.concurrent.Future;
  * } else {
  * //执行失败的操作
  * }
+ * <p>
+ * <p>
+ * 使用示例 (3), 最多3个任务跨实例并发执行:
+ * <p>
+ * boolean success = RedisUtils.tryAcquireAndRun("myexport", 3, new Runnable() {
+ * @Override public void run() {
+ * //业务逻辑代码, 必须是同步的
+ * }
+ * }
  */
 public abstract class RedisUtils {
     private static final Logger LOG = LoggerFactory.getLogger(MaterialController.class);
@@ -56,7 +78,67 @@ public abstract class RedisUtils {
     private static final int DEFAULT_MIN_EXPIRE_SECS = 60;
     private static final int DEFAULT_MIN_RUN_SECS = 0;
     private static final String REDIS_LOCK_PREFIX = RedisUtils.class.getName() + ".lock.";//锁名称的前缀, 所有锁都会加上此前缀
-    private static final JedisClient jedisClient = SpringContext.getBean(JedisClient.class);
+    private static final String LOCK_ALL_METRICS_NAME = "lockAll";//tryLockAllAndRun的统计名
+    private static final String REDIS_SEMAPHORE_PREFIX = RedisUtils.class.getName() + ".semaphore.";//信号量名称的前缀
+    //到达最小运行时间后释放锁或许可的线程, 不经过公共线程池, 线程池饱和时也能按时释放, 释放操作只有一次redis调用
+    private static final ScheduledExecutorService RELEASE_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "redis-lock-release");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /**
+     * 获取信号量许可的脚本, KEYS[1]: 信号量名, ARGV: 许可总数, 许可id, 租约时长(毫秒)
+     * 当前时间取redis服务器的时间(TIME), 不使用各个实例的本地时间, 实例之间的时钟偏差不会导致回收其他实例还在租约内的许可;
+     * 先删除已经过期的许可(分数小于当前时间), 再判断剩余数量; 整个key的过期时间只延长不缩短, 保证最后一个许可过期后key被删除
+     * TIME是非确定性命令, 之后还有写操作, redis 5之前需要先开启按命令复制(replicate_commands)
+     */
+    private static final String SEMAPHORE_ACQUIRE_SCRIPT =
+            "redis.replicate_commands() " +
+                    "local t = redis.call('time') " +
+                    "local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000) " +
+                    "redis.call('zremrangebyscore', KEYS[1], '-inf', now) " +
+                    "if redis.call('zcard', KEYS[1]) < tonumber(ARGV[1]) then " +
+                    "redis.call('zadd', KEYS[1], now + tonumber(ARGV[3]), ARGV[2]) " +
+                    "if redis.call('pttl', KEYS[1]) < tonumber(ARGV[3]) then " +
+                    "redis.call('pexpire', KEYS[1], ARGV[3]) " +
+                    "end " +
+                    "return 1 " +
+                    "end " +
+                    "return 0";
+    /**
+     * 同时获取多个锁的脚本, KEYS: 所有完整锁名, ARGV[1]: 过期时间(秒)
+     * 任何一个锁已经存在则直接返回0, 否则设置所有锁和过期时间并返回1
+     */
+    private static final String LOCK_ALL_SCRIPT =
+            "for i = 1, #KEYS do " +
+                    "if redis.call('exists', KEYS[i]) == 1 then return 0 end " +
+                    "end " +
+                    "for i = 1, #KEYS do " +
+                    "redis.call('setex', KEYS[i], ARGV[1], '1') " +
+                    "end " +
+                    "return 1";
+    //redis连接的提供者, 默认使用平台的JedisClient, 第一次使用时才从spring容器中获取, 因此加载本类不再依赖spring容器
+    private static volatile RedisClientProvider clientProvider = new SpringJedisClientProvider();
+
+    /**
+     * 替换redis连接的提供者, 用于脱离平台spring容器的场景(如单元测试, 基准测试), 应当在使用本包的工具类之前调用
+     *
+     * @param provider 连接提供者
+     */
+    public static void setClientProvider(RedisClientProvider provider) {
+        Assert.notNull(provider, "连接提供者不能为空!");
+        clientProvider = provider;
+    }
+
+    /**
+     * @return 当前的redis连接提供者, 本包中的其他工具类也通过它获取连接
+     */
+    public static RedisClientProvider getClientProvider() {
+        return clientProvider;
+    }
 
     /****** 以下为Runnable参数的多个重载方法 *****/
 
@@ -125,41 +207,28 @@ public abstract class RedisUtils {
 
         final String fullLockName = getfullLockName(lockName);
         final long deadline = System.currentTimeMillis() + minRunSecs * 1000;
-        boolean locked = lockAndSetExpireInternal(fullLockName, expireSecs);
+        final long acquireStart = System.nanoTime();
+        //不在跟踪中时不拼接span名称
+        Span acquireSpan = Tracer.currentSpan() == null ? Span.NOOP : Tracer.startSpan("redis lock acquire " + lockName);
+        boolean locked = false;
+        try {
+            locked = lockAndSetExpireInternal(fullLockName, expireSecs);
+        } finally {
+            RedisLockMetrics.recordAcquire(lockName, locked, System.nanoTime() - acquireStart);
+            acquireSpan.finish();
+        }
         if (locked) {
-            Future<T> future = AsyncTaskExecutor.submit(new Callable<T>() {
+            return submitAndRelease(task, deadline, lockName, expireSecs, new Releaser() {
                 @Override
-                public T call() throws Exception {
-                    try {
-                        return (T) ReflectionUtils.invokeMethodByName(task, "call", new Object[0]);
-                    } finally {
-                        long timeToWait = deadline - System.currentTimeMillis();
-                        try {
-                            //先休眠, 再释放资源, 如果执行有异常, 也会保证最小运行时间
-                            if (timeToWait > 0) {
-                                Thread.sleep(timeToWait);
-                            }
-                        } catch (InterruptedException e) {
-                            //在finally块中, 不应该抛出异常
-                            Thread.currentThread().interrupt();
-                        } finally {
-                            //释放锁和释放redis连接分别用try-catch包起来, 防止前者发生异常导致后者不执行, 导致连接泄露
-                            Jedis resource = null;
-                            try {
-                                resource = jedisClient.getResource();
-                                resource.del(fullLockName);
-                            } catch (Exception e) {
-                                LOG.error("释放锁： " + fullLockName + "　发生异常！", e);
-                            } finally {
-                                if (resource != null) {
-                                    jedisClient.returnResource(resource);
-                                }
-                            }
-                        }
-                    }
+                public String getName() {
+                    return fullLockName;
+                }
+
+                @Override
+                public void release(RedisConnection resource) {
+                    resource.del(fullLockName);
                 }
             });
-            return new Result<>(future, true);
         }
         return new CancelledResult<>();
     }
@@ -192,6 +261,344 @@ public abstract class RedisUtils {
         return tryLockAndRun(lockName, DEFAULT_EXPIRE_SECS, minRunSecs, task);
     }
 
+    /****** 以下为同时获取多个锁的多个重载方法 *****/
+
+    /**
+     * 使用指定过期时间尝试同时获取多个锁并执行任务, 只要有一个锁获取失败, 所有锁都不会被获取, 任务将不被执行, 并返回false
+     * 锁名与tryLockAndRun相同, 因此可以和单个锁互斥; 所有锁在一次redis调用中原子地获取, 在一次调用中全部释放
+     *
+     * @param lockNames  锁名称集合, 重复的锁名会被去除
+     * @param expireSecs 设置锁的过期时间(超过该时间,锁会自动释放)
+     * @param minRunSecs 最小运行时间, 含义同tryLockAndRun
+     * @param task       需要执行的任务
+     * @return 获取所有锁成功, 返回true； 否则返回false
+     */
+    public static boolean tryLockAllAndRun(Collection<String> lockNames, int expireSecs, int minRunSecs, final Runnable task) {
+        Result<Void> result = tryLockAllAndRun(lockNames, expireSecs, minRunSecs, new CallableAdapter(task));
+        return result.isDone();
+    }
+
+    /**
+     * 使用固定的过期时间(DEFAULT_MIN_EXPIRE_SECSs)尝试同时获取多个锁并执行任务, 一般用于执行时间较短(几秒)的任务
+     *
+     * @param lockNames 锁名称集合
+     * @param task      需要执行的任务
+     * @return 获取所有锁成功, 返回true； 否则返回false
+     */
+    public static boolean tryLockAllAndRun(Collection<String> lockNames, final Runnable task) {
+        Result<Void> result = tryLockAllAndRun(lockNames, DEFAULT_MIN_EXPIRE_SECS, DEFAULT_MIN_RUN_SECS, new CallableAdapter(task));
+        return result.isDone();
+    }
+
+    /**
+     * 使用默认过期时间(12小时)尝试同时获取多个锁并执行任务
+     *
+     * @param lockNames  锁名称集合
+     * @param minRunSecs 最小运行时间, 含义同tryLockAndRun
+     * @param task       需要执行的任务
+     * @return 获取所有锁成功, 返回true； 否则返回false
+     */
+    public static boolean tryLockAllAndRun(Collection<String> lockNames, int minRunSecs, final Runnable task) {
+        Result<Void> result = tryLockAllAndRun(lockNames, DEFAULT_EXPIRE_SECS, minRunSecs, new CallableAdapter(task));
+        return result.isDone();
+    }
+
+    /**
+     * 使用指定过期时间尝试同时获取多个锁并执行任务, 只要有一个锁获取失败, 任务将不被执行
+     * 锁名会先排序再获取, 避免不同调用者以不同顺序加锁; 获取和释放都只需要一次redis调用
+     *
+     * @param lockNames  锁名称集合, 重复的锁名会被去除
+     * @param expireSecs 过期时间(单位:秒), 超过这个时间,锁自动被释放
+     * @param minRunSecs 任务最小运行时间, 含义同tryLockAndRun
+     * @param task       需要执行的任务
+     * @return 获取所有锁成功，　isDone返回true, getResult返回执行结果；　获取锁失败, isDone返回false, getReuslt方法抛出异常
+     */
+    public static <T> Result<T> tryLockAllAndRun(Collection<String> lockNames, int expireSecs, int minRunSecs, final Callable<T> task) {
+        Assert.isTrue(lockNames != null && !lockNames.isEmpty(), "锁名集合不能为空！");
+        Assert.isTrue(expireSecs > 0, "过期时间必须大于0秒!");
+        Assert.isTrue(minRunSecs >= 0, "最小运行时间必须大于0秒!");
+        Assert.isTrue(expireSecs >= minRunSecs, "锁过期时间必须大于最短运行时间!");
+        Assert.isTrue(task != null, "任务不能为空!");
+
+        //排序并去重, 保证所有调用者使用相同的加锁顺序
+        Set<String> sortedLockNames = new TreeSet<>();
+        for (String lockName : lockNames) {
+            Assert.isTrue(StringUtils.isNotEmpty(lockName), "无效的空锁名！");
+            sortedLockNames.add(getfullLockName(lockName));
+        }
+        final String[] fullLockNames = sortedLockNames.toArray(new String[sortedLockNames.size()]);
+        final long deadline = System.currentTimeMillis() + minRunSecs * 1000;
+        //所有tryLockAllAndRun调用作为一个整体统计, 统计名和span名称不随锁名的组合变化
+        final String metricsName = LOCK_ALL_METRICS_NAME;
+        final long acquireStart = System.nanoTime();
+        //不在跟踪中时不拼接span名称, span名称中只有锁的数量
+        Span acquireSpan = Tracer.currentSpan() == null ? Span.NOOP : Tracer.startSpan("redis lockAll acquire " + fullLockNames.length + " keys");
+        boolean locked = false;
+        try {
+            locked = lockAllAndSetExpireInternal(fullLockNames, expireSecs);
+        } finally {
+            RedisLockMetrics.recordAcquire(metricsName, locked, System.nanoTime() - acquireStart);
+            acquireSpan.finish();
+        }
+        if (locked) {
+            return submitAndRelease(task, deadline, metricsName, expireSecs, new Releaser() {
+                @Override
+                public String getName() {
+                    return Arrays.toString(fullLockNames);
+                }
+
+                @Override
+                public void release(RedisConnection resource) {
+                    resource.del(fullLockNames);
+                }
+            });
+        }
+        return new CancelledResult<>();
+    }
+
+    /**
+     * 使用固定的过期时间(DEFAULT_MIN_EXPIRE_SECSs)尝试同时获取多个锁并执行任务
+     *
+     * @param lockNames 锁名称集合
+     * @param task      需要执行的任务
+     * @return 获取所有锁成功，　isDone返回true, getResult返回执行结果；　获取锁失败, isDone返回false, getReuslt方法抛出异常
+     */
+    public static <T> Result<T> tryLockAllAndRun(Collection<String> lockNames, Callable<T> task) {
+        return tryLockAllAndRun(lockNames, DEFAULT_MIN_EXPIRE_SECS, DEFAULT_MIN_RUN_SECS, task);
+    }
+
+    /**
+     * 使用默认过期时间(12小时)尝试同时获取多个锁并执行任务
+     *
+     * @param lockNames  锁名称集合
+     * @param minRunSecs 最小运行时间, 含义同tryLockAndRun
+     * @param task       需要执行的任务
+     * @return 获取所有锁成功，　isDone返回true, getResult返回执行结果；　获取锁失败, isDone返回false, getReuslt方法抛出异常
+     */
+    public static <T> Result<T> tryLockAllAndRun(Collection<String> lockNames, int minRunSecs, Callable<T> task) {
+        return tryLockAllAndRun(lockNames, DEFAULT_EXPIRE_SECS, minRunSecs, task);
+    }
+
+    /****** 以下为分布式信号量(最多permits个任务跨实例并发执行)的多个重载方法 *****/
+
+    /**
+     * 使用指定过期时间尝试获取信号量的一个许可并执行任务, 如果许可已经用完, 则任务将不被执行, 并返回false
+     * 与tryLockAndRun不同, 同一个信号量名称最多允许permits个任务同时(跨jvm实例)执行
+     *
+     * @param semaphoreName 信号量名称
+     * @param permits       许可总数, 同一个信号量的所有调用者应当使用相同的值
+     * @param expireSecs    许可的租约时间(超过该时间, 许可会被其他获取者回收, 防止实例宕机导致许可泄露)
+     * @param minRunSecs    最小运行时间, 含义同tryLockAndRun
+     * @param task          需要执行的任务
+     * @return 获取许可成功, 返回true； 否则返回false
+     */
+    public static boolean tryAcquireAndRun(String semaphoreName, int permits, int expireSecs, int minRunSecs, final Runnable task) {
+        Result<Void> result = tryAcquireAndRun(semaphoreName, permits, expireSecs, minRunSecs, new CallableAdapter(task));
+        return result.isDone();
+    }
+
+    /**
+     * 使用固定的租约时间(DEFAULT_MIN_EXPIRE_SECSs)尝试获取信号量的一个许可并执行任务, 一般用于执行时间较短(几秒)的任务
+     *
+     * @param semaphoreName 信号量名称
+     * @param permits       许可总数
+     * @param task          需要执行的任务
+     * @return 获取许可成功, 返回true； 否则返回false
+     */
+    public static boolean tryAcquireAndRun(String semaphoreName, int permits, final Runnable task) {
+        Result<Void> result = tryAcquireAndRun(semaphoreName, permits, DEFAULT_MIN_EXPIRE_SECS, DEFAULT_MIN_RUN_SECS, new CallableAdapter(task));
+        return result.isDone();
+    }
+
+    /**
+     * 使用默认租约时间(12小时)尝试获取信号量的一个许可并执行任务
+     *
+     * @param semaphoreName 信号量名称
+     * @param permits       许可总数
+     * @param minRunSecs    最小运行时间, 含义同tryLockAndRun
+     * @param task          需要执行的任务
+     * @return 获取许可成功, 返回true； 否则返回false
+     */
+    public static boolean tryAcquireAndRun(String semaphoreName, int permits, int minRunSecs, final Runnable task) {
+        Result<Void> result = tryAcquireAndRun(semaphoreName, permits, DEFAULT_EXPIRE_SECS, minRunSecs, new CallableAdapter(task));
+        return result.isDone();
+    }
+
+    /**
+     * 使用指定过期时间尝试获取信号量的一个许可并执行任务, 如果许可已经用完, 任务将不被执行
+     * 每个许可都是一个带租约的独立记录(有序集合中的成员, 分数为过期时间), 获取时会先回收已经过期的许可,
+     * 因此持有许可的实例宕机后, 许可最多在租约时间之后就能被再次获取
+     *
+     * @param semaphoreName 信号量名称
+     * @param permits       许可总数, 同一个信号量的所有调用者应当使用相同的值
+     * @param expireSecs    许可的租约时间(单位:秒)
+     * @param minRunSecs    任务最小运行时间, 含义同tryLockAndRun
+     * @param task          需要执行的任务
+     * @return 获取许可成功，　isDone返回true, getResult返回执行结果；　获取许可失败, isDone返回false, getReuslt方法抛出异常
+     */
+    public static <T> Result<T> tryAcquireAndRun(String semaphoreName, int permits, int expireSecs, int minRunSecs, final Callable<T> task) {
+        Assert.isTrue(StringUtils.isNotEmpty(semaphoreName), "无效的空信号量名！");
+        Assert.isTrue(permits > 0, "许可总数必须大于0!");
+        Assert.isTrue(expireSecs > 0, "过期时间必须大于0秒!");
+        Assert.isTrue(minRunSecs >= 0, "最小运行时间必须大于0秒!");
+        Assert.isTrue(expireSecs >= minRunSecs, "许可过期时间必须大于最短运行时间!");
+        Assert.isTrue(task != null, "任务不能为空!");
+
+        final String fullSemaphoreName = getFullSemaphoreName(semaphoreName);
+        final String permitId = UUID.randomUUID().toString();
+        final long deadline = System.currentTimeMillis() + minRunSecs * 1000;
+        final String metricsName = "semaphore:" + semaphoreName;
+        final long acquireStart = System.nanoTime();
+        //不在跟踪中时不拼接span名称
+        Span acquireSpan = Tracer.currentSpan() == null ? Span.NOOP : Tracer.startSpan("redis lock acquire " + metricsName);
+        boolean acquired = false;
+        try {
+            acquired = acquirePermitInternal(fullSemaphoreName, permitId, permits, expireSecs);
+        } finally {
+            RedisLockMetrics.recordAcquire(metricsName, acquired, System.nanoTime() - acquireStart);
+            acquireSpan.finish();
+        }
+        if (acquired) {
+            return submitAndRelease(task, deadline, metricsName, expireSecs, new Releaser() {
+                @Override
+                public String getName() {
+                    return fullSemaphoreName;
+                }
+
+                @Override
+                public void release(RedisConnection resource) {
+                    resource.zrem(fullSemaphoreName, permitId);
+                }
+            });
+        }
+        return new CancelledResult<>();
+    }
+
+    /**
+     * 使用固定的租约时间(DEFAULT_MIN_EXPIRE_SECSs)尝试获取信号量的一个许可并执行任务
+     *
+     * @param semaphoreName 信号量名称
+     * @param permits       许可总数
+     * @param task          需要执行的任务
+     * @return 获取许可成功，　isDone返回true, getResult返回执行结果；　获取许可失败, isDone返回false, getReuslt方法抛出异常
+     */
+    public static <T> Result<T> tryAcquireAndRun(String semaphoreName, int permits, Callable<T> task) {
+        return tryAcquireAndRun(semaphoreName, permits, DEFAULT_MIN_EXPIRE_SECS, DEFAULT_MIN_RUN_SECS, task);
+    }
+
+    /**
+     * 使用默认租约时间(12小时)尝试获取信号量的一个许可并执行任务
+     *
+     * @param semaphoreName 信号量名称
+     * @param permits       许可总数
+     * @param minRunSecs    最小运行时间, 含义同tryLockAndRun
+     * @param task          需要执行的任务
+     * @return 获取许可成功，　isDone返回true, getResult返回执行结果；　获取许可失败, isDone返回false, getReuslt方法抛出异常
+     */
+    public static <T> Result<T> tryAcquireAndRun(String semaphoreName, int permits, int minRunSecs, Callable<T> task) {
+        return tryAcquireAndRun(semaphoreName, permits, DEFAULT_EXPIRE_SECS, minRunSecs, task);
+    }
+
+    /**
+     * 在线程池中执行任务, 任务结束(含最小运行时间)后释放锁或许可
+     *
+     * @param task        需要执行的任务
+     * @param deadline    最早的释放时间(毫秒时间戳)
+     * @param metricsName 统计指标中使用的锁名
+     * @param expireSecs  锁或许可的过期时间, 用于统计锁是否在释放前失效
+     * @param releaser    释放锁或许可的操作
+     * @return
+     */
+    private static <T> Result<T> submitAndRelease(final Callable<T> task, final long deadline,
+                                                  final String metricsName, final int expireSecs,
+                                                  final Releaser releaser) {
+        final long acquiredAt = System.nanoTime();
+        //持有锁的时间, 在释放锁的线程中结束
+        final Span holdSpan = Tracer.currentSpan() == null ? Span.NOOP : Tracer.startDetachedSpan("redis lock hold " + metricsName);
+        final MinRunFuture<T> result = new MinRunFuture<>();
+        result.taskFuture = AsyncTaskExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    T value = (T) ReflectionUtils.invokeMethodByName(task, "call", new Object[0]);
+                    releaseAfterMinRun(result, value, null);
+                    return value;
+                } catch (Throwable e) {
+                    //如果执行有异常, 也会保证最小运行时间
+                    releaseAfterMinRun(result, null, e);
+                    throw e;
+                }
+            }
+
+            //到达最小运行时间后才释放锁并结束result, 等待期间不占用线程池线程
+            private void releaseAfterMinRun(final MinRunFuture<T> result, final T value, final Throwable error) {
+                Runnable finish = new Runnable() {
+                    @Override
+                    public void run() {
+                        //释放锁和释放redis连接分别用try-catch包起来, 防止前者发生异常导致后者不执行, 导致连接泄露
+                        RedisConnection resource = null;
+                        try {
+                            resource = clientProvider.getResource();
+                            releaser.release(resource);
+                            RedisLockMetrics.recordRelease(metricsName, System.nanoTime() - acquiredAt, expireSecs);
+                        } catch (Exception e) {
+                            LOG.error("释放锁： " + releaser.getName() + "　发生异常！", e);
+                        } finally {
+                            if (resource != null) {
+                                clientProvider.returnResource(resource);
+                            }
+                        }
+                        holdSpan.finish();
+                        if (error == null) {
+                            result.complete(value);
+                        } else {
+                            result.completeExceptionally(error);
+                        }
+                    }
+                };
+                long timeToWait = deadline - System.currentTimeMillis();
+                if (timeToWait <= 0) {
+                    finish.run();
+                    return;
+                }
+                try {
+                    RELEASE_SCHEDULER.schedule(finish, timeToWait, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    //不能按时释放时立即释放, 不能让锁一直被持有
+                    LOG.error("释放锁： " + releaser.getName() + " 的定时任务被拒绝, 提前释放!", e);
+                    finish.run();
+                }
+            }
+        });
+        return new Result<>(result, true);
+    }
+
+    /**
+     * 回收过期许可后, 如果剩余许可数量小于许可总数, 则加入新的许可并返回true
+     *
+     * @param fullSemaphoreName 完整的信号量名
+     * @param permitId          本次许可的唯一id
+     * @param permits           许可总数
+     * @param expireSecs        许可的租约时间
+     * @return
+     */
+    private static boolean acquirePermitInternal(String fullSemaphoreName, String permitId, int permits, int expireSecs) {
+        RedisConnection resource = null;
+        try {
+            resource = clientProvider.getResource();
+            long leaseMillis = expireSecs * 1000L;
+            //使用lua脚本保证回收, 计数和加入许可是一个原子操作
+            Object result = resource.eval(SEMAPHORE_ACQUIRE_SCRIPT,
+                    Collections.singletonList(fullSemaphoreName),
+                    Arrays.asList(String.valueOf(permits), permitId, String.valueOf(leaseMillis)));
+            return MathUtils.eq(1, result);
+        } finally {
+            if (resource != null) {
+                clientProvider.returnResource(resource);
+            }
+        }
+    }
+
     /**
      * 尝试获取锁, 如果成功则同时设置过期时间, 最后返回是否获取成功的结果
      *
@@ -201,9 +608,9 @@ public abstract class RedisUtils {
      * @return
      */
     private static boolean lockAndSetExpireInternal(String fullLockName, int expireSecs) {
-        Jedis resource = null;
+        RedisConnection resource = null;
         try {
-            resource = jedisClient.getResource();
+            resource = clientProvider.getResource();
             //使用redis的setnx原子操作, 设置某个值, 如果操作成功, 将返回1, 则认为获取锁成功
             boolean success = MathUtils.eq(1, resource.setnx(fullLockName, "1"));
             if (success) {
@@ -213,7 +620,29 @@ public abstract class RedisUtils {
             return success;
         } finally {
             if (resource != null) {
-                jedisClient.returnResource(resource);
+                clientProvider.returnResource(resource);
+            }
+        }
+    }
+
+    /**
+     * 在一次脚本调用中尝试获取所有锁, 全部成功才返回true, 否则一个锁也不获取
+     *
+     * @param fullLockNames 排序后的完整锁名
+     * @param expireSecs    过期时间
+     * @return
+     */
+    private static boolean lockAllAndSetExpireInternal(String[] fullLockNames, int expireSecs) {
+        RedisConnection resource = null;
+        try {
+            resource = clientProvider.getResource();
+            Object result = resource.eval(LOCK_ALL_SCRIPT,
+                    Arrays.asList(fullLockNames),
+                    Collections.singletonList(String.valueOf(expireSecs)));
+            return MathUtils.eq(1, result);
+        } finally {
+            if (resource != null) {
+                clientProvider.returnResource(resource);
             }
         }
     }
@@ -223,6 +652,21 @@ public abstract class RedisUtils {
         return REDIS_LOCK_PREFIX + lockName;
     }
 
+    //获取完整信号量名
+    private static String getFullSemaphoreName(String semaphoreName) {
+        return REDIS_SEMAPHORE_PREFIX + semaphoreName;
+    }
+
+    /**
+     * 锁或许可的释放操作
+     */
+    private interface Releaser {
+        //用于日志的名称
+        String getName();
+
+        void release(RedisConnection resource);
+    }
+
     /**
      * 将Runnable对象包装成Callable对象
      *
@@ -263,6 +707,25 @@ public abstract class RedisUtils {
         }
     }
 
+    /**
+     * 任务执行完成并且到达最小运行时间(锁已经释放)后才结束的Future, 取消时同时打断正在执行的任务
+     *
+     * @param <T>
+     */
+    private static class MinRunFuture<T> extends CompletableFuture<T> {
+        private volatile Future<T> taskFuture;
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Future<T> future = taskFuture;
+            if (future != null) {
+                future.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+    }
+
     private static class CancelledResult<T> extends Result<T> {
 
         public CancelledResult() {
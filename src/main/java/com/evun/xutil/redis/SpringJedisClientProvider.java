@@ -0,0 +1,30 @@
+package com.evun.xutil.redis;
+
+import cn.evun.gap.core.cache.support.redis.jedis.JedisClient;
+import cn.evun.gap.core.spring.SpringContext;
+
+/**
+ * 使用平台spring容器中JedisClient的连接提供者, 第一次获取连接时才从容器中查找JedisClient
+ */
+public class SpringJedisClientProvider implements RedisClientProvider {
+    private volatile JedisClient jedisClient;
+
+    @Override
+    public RedisConnection getResource() {
+        return new JedisConnection(getJedisClient().getResource());
+    }
+
+    @Override
+    public void returnResource(RedisConnection resource) {
+        getJedisClient().returnResource(((JedisConnection) resource).getJedis());
+    }
+
+    private JedisClient getJedisClient() {
+        JedisClient client = jedisClient;
+        if (client == null) {
+            client = SpringContext.getBean(JedisClient.class);
+            jedisClient = client;
+        }
+        return client;
+    }
+}
@@ -0,0 +1,395 @@
+package com.evun.xutil.redis;
+
+import cn.evun.gap.common.utils.Assert;
+import cn.evun.gap.common.utils.StringUtils;
+import cn.evun.gap.core.exception.GapRuntimeException;
+import com.evun.xutil.concurrent.ConcurrentLruCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 两级缓存: 本地(jvm内)近端缓存 + redis缓存, 读穿透方式加载
+ * 特性:
+ * 1. 本地缓存有容量上限(近似LRU淘汰)和过期时间, 防止占用过多内存和长期读到旧数据, 读取本地缓存不加锁
+ * 2. 多实例之间通过redis发布/订阅广播失效消息, 某个实例调用invalidate后, 所有实例的本地缓存都会失效
+ * 3. 同一个key的并发未命中只会触发一次加载, 其他线程等待并共享加载结果
+ * 4. 每个key在redis中有一个版本号, invalidate和put时增加; 加载结果只有在版本号没有变化时才写入redis,
+ * 加载期间本地发生过失效的结果不会留在本地缓存中, 因此并发的失效不会被旧数据覆盖
+ * 5. 统计本地命中, redis命中, 未命中等指标
+ * 使用示例:
+ * <p>
+ * private static final TwoLevelCache<MaterialDTO> CACHE = new TwoLevelCache<>("material", 10000, 60, 3600);
+ * <p>
+ * MaterialDTO material = CACHE.get(materialId, new TwoLevelCache.Loader<MaterialDTO>() {
+ * @Override public MaterialDTO load(String key) {
+ * return materialService.getById(key);
+ * }
+ * });
+ * <p>
+ * 注意: 本地缓存返回的是同一个对象, 调用者不能修改返回的对象; 加载结果为null时不缓存
+ */
+public class TwoLevelCache<V extends Serializable> {
+    private static final Logger LOG = LoggerFactory.getLogger(TwoLevelCache.class);
+
+    private static final String REDIS_CACHE_PREFIX = TwoLevelCache.class.getName() + ".";//缓存key的前缀
+    private static final String CHANNEL_SUFFIX = "invalidate";
+    private static final String VERSION_SUFFIX = ".version";
+    private static final byte[] NO_VERSION = new byte[0];
+    /**
+     * 版本号没有变化时才写入的脚本, KEYS[1]: 缓存key, KEYS[2]: 版本号key, ARGV: 过期时间(秒), 缓存值, 读取时的版本号(没有版本号时为空)
+     */
+    private static final byte[] WRITE_IF_VERSION_SCRIPT = bytes(
+            "local v = redis.call('get', KEYS[2]) " +
+                    "if (v or '') == ARGV[3] then " +
+                    "redis.call('setex', KEYS[1], ARGV[1], ARGV[2]) " +
+                    "return 1 " +
+                    "end " +
+                    "return 0");
+    /**
+     * 增加版本号并写入(ARGV[2]不为空时)或者删除缓存的脚本, KEYS[1]: 缓存key, KEYS[2]: 版本号key, ARGV: 过期时间(秒), 缓存值
+     */
+    private static final byte[] BUMP_VERSION_SCRIPT = bytes(
+            "redis.call('incr', KEYS[2]) " +
+                    "redis.call('expire', KEYS[2], ARGV[1]) " +
+                    "if string.len(ARGV[2]) > 0 then " +
+                    "redis.call('setex', KEYS[1], ARGV[1], ARGV[2]) " +
+                    "else " +
+                    "redis.call('del', KEYS[1]) " +
+                    "end " +
+                    "return 1");
+
+    private final String name;
+    private final String keyPrefix;
+    private final int redisTtlSecs;
+    private final ConcurrentLruCache<String, V> nearCache;
+    private final RedisClientProvider clientProvider;
+    private final RedisInvalidationChannel channel;
+    //正在加载中的key, 用于合并同一个key的并发加载, 以及标记加载期间发生的失效
+    private final ConcurrentMap<String, Load> loading = new ConcurrentHashMap<>();
+
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalescedLoads = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+
+    /**
+     * @param name          缓存名称, 不同缓存之间名称不能重复
+     * @param maxLocalSize  本地缓存最大条数
+     * @param localTtlSecs  本地缓存过期时间(秒)
+     * @param redisTtlSecs  redis缓存过期时间(秒)
+     */
+    public TwoLevelCache(String name, int maxLocalSize, int localTtlSecs, int redisTtlSecs) {
+        Assert.isTrue(StringUtils.isNotEmpty(name), "缓存名称不能为空!");
+        Assert.isTrue(maxLocalSize > 0, "本地缓存容量必须大于0!");
+        Assert.isTrue(localTtlSecs > 0, "本地缓存过期时间必须大于0秒!");
+        Assert.isTrue(redisTtlSecs > 0, "redis缓存过期时间必须大于0秒!");
+        this.name = name;
+        this.keyPrefix = REDIS_CACHE_PREFIX + name + ".";
+        this.redisTtlSecs = redisTtlSecs;
+        this.nearCache = new ConcurrentLruCache<>(maxLocalSize, localTtlSecs, TimeUnit.SECONDS);
+        this.clientProvider = RedisUtils.getClientProvider();
+        this.channel = new RedisInvalidationChannel(keyPrefix + CHANNEL_SUFFIX, new RedisInvalidationChannel.Listener() {
+            @Override
+            public void onMessage(String key) {
+                invalidateLocal(key);
+            }
+        });
+    }
+
+    /**
+     * 依次从本地缓存, redis中获取, 都没有时使用loader加载, 并写入redis和本地缓存
+     *
+     * @param key    缓存key
+     * @param loader 加载器
+     * @return 缓存值, 加载结果为null时返回null
+     */
+    public V get(final String key, final Loader<V> loader) {
+        Assert.isTrue(StringUtils.isNotEmpty(key), "缓存key不能为空!");
+        Assert.notNull(loader, "加载器不能为空!");
+        //最可能的代码路径
+        V value = nearCache.get(key);
+        if (value != null) {
+            localHits.increment();
+            return value;
+        }
+
+        Load load = new Load(key, loader);
+        Load existing = loading.putIfAbsent(key, load);
+        if (existing == null) {
+            try {
+                load.future.run();
+            } finally {
+                loading.remove(key, load);
+            }
+            existing = load;
+        } else {
+            coalescedLoads.increment();
+        }
+
+        try {
+            return existing.future.get();
+        } catch (ExecutionException e) {
+            throw new GapRuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GapRuntimeException(e);
+        }
+    }
+
+    /**
+     * 直接写入缓存, 并通知其他实例的本地缓存失效
+     *
+     * @param key   缓存key
+     * @param value 缓存值, 不能为空
+     */
+    public void put(String key, V value) {
+        Assert.notNull(value, "缓存值不能为空!");
+        markLoadInvalidated(key);
+        try {
+            bumpVersion(key, serialize(value));
+        } catch (IOException e) {
+            throw new GapRuntimeException(e);
+        }
+        nearCache.put(key, value);
+        channel.publish(key);
+    }
+
+    /**
+     * 删除redis和所有实例的本地缓存
+     *
+     * @param key 缓存key
+     */
+    public void invalidate(String key) {
+        invalidateLocal(key);
+        bumpVersion(key, NO_VERSION);
+        channel.publish(key);
+    }
+
+    /**
+     * 只删除本实例的本地缓存
+     *
+     * @param key 缓存key
+     */
+    public void invalidateLocal(String key) {
+        //先标记再删除, 与loadThrough中先写入再检查标记配合, 保证失效之后本地缓存中不会留下加载的旧数据
+        markLoadInvalidated(key);
+        nearCache.remove(key);
+    }
+
+    private void markLoadInvalidated(String key) {
+        Load load = loading.get(key);
+        if (load != null) {
+            load.invalidated = true;
+        }
+    }
+
+    /**
+     * 停止接收失效消息, 缓存不再使用时调用
+     */
+    public void close() {
+        channel.close();
+        nearCache.clear();
+    }
+
+    //从redis中读取, 没有时调用loader加载
+    @SuppressWarnings("unchecked")
+    private V loadThrough(Load load) throws Exception {
+        String key = load.key;
+        //同时读取缓存值和版本号, redis不可用时直接回源加载, 不影响业务
+        List<byte[]> values = readRedis(key);
+        byte[] bytes = values.get(0);
+        V value = bytes == null ? null : (V) deserialize(bytes);
+        if (value != null) {
+            redisHits.increment();
+        } else {
+            misses.increment();
+            try {
+                value = load.loader.load(key);
+            } catch (Exception e) {
+                loadFailures.increment();
+                throw e;
+            }
+            if (value == null) {
+                return null;
+            }
+            byte[] version = values.get(1);
+            //加载期间其他线程或者实例执行过invalidate/put时, 版本号已经变化, 旧数据不会写入redis
+            writeRedisIfVersion(key, value, version == null ? NO_VERSION : version);
+        }
+        nearCache.put(key, value);
+        //加载期间发生过失效, 结果可能是旧数据, 不留在本地缓存中
+        if (load.invalidated) {
+            nearCache.remove(key, value);
+        }
+        return value;
+    }
+
+    private List<byte[]> readRedis(String key) {
+        RedisConnection resource = null;
+        try {
+            resource = clientProvider.getResource();
+            return resource.mget(redisKey(key), versionKey(key));
+        } catch (Exception e) {
+            LOG.error("读取缓存: " + name + " key: " + key + " 发生异常！", e);
+            return Arrays.asList(null, null);
+        } finally {
+            if (resource != null) {
+                clientProvider.returnResource(resource);
+            }
+        }
+    }
+
+    private void writeRedisIfVersion(String key, V value, byte[] version) {
+        RedisConnection resource = null;
+        try {
+            resource = clientProvider.getResource();
+            resource.eval(WRITE_IF_VERSION_SCRIPT, Arrays.asList(redisKey(key), versionKey(key)),
+                    Arrays.asList(bytes(String.valueOf(redisTtlSecs)), serialize(value), version));
+        } catch (Exception e) {
+            LOG.error("写入缓存: " + name + " key: " + key + " 发生异常！", e);
+        } finally {
+            if (resource != null) {
+                clientProvider.returnResource(resource);
+            }
+        }
+    }
+
+    //增加版本号, 同时写入新值(value不为空时)或者删除缓存
+    private void bumpVersion(String key, byte[] value) {
+        RedisConnection resource = null;
+        try {
+            resource = clientProvider.getResource();
+            resource.eval(BUMP_VERSION_SCRIPT, Arrays.asList(redisKey(key), versionKey(key)),
+                    Arrays.asList(bytes(String.valueOf(redisTtlSecs)), value));
+        } finally {
+            if (resource != null) {
+                clientProvider.returnResource(resource);
+            }
+        }
+    }
+
+    private byte[] redisKey(String key) {
+        return bytes(keyPrefix + key);
+    }
+
+    private byte[] versionKey(String key) {
+        return bytes(keyPrefix + key + VERSION_SUFFIX);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    /****** 以下为统计指标 *****/
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLocalHits() {
+        return localHits.sum();
+    }
+
+    public long getRedisHits() {
+        return redisHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getCoalescedLoads() {
+        return coalescedLoads.sum();
+    }
+
+    public long getLoadFailures() {
+        return loadFailures.sum();
+    }
+
+    public long getEvictions() {
+        return nearCache.getEvictions();
+    }
+
+    public int getLocalSize() {
+        return nearCache.size();
+    }
+
+    /**
+     * 总命中率(本地命中 + redis命中) / 总请求数
+     *
+     * @return 没有请求时返回0
+     */
+    public double getHitRatio() {
+        long hits = getLocalHits() + getRedisHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * 缓存加载器
+     *
+     * @param <V>
+     */
+    public interface Loader<V> {
+        /**
+         * 加载缓存值, 在调用线程中同步执行
+         *
+         * @param key 缓存key
+         * @return 缓存值, 返回null时不缓存
+         */
+        V load(String key) throws Exception;
+    }
+
+    /**
+     * 一次加载, 同一个key的并发未命中共享同一次加载
+     */
+    private class Load implements Callable<V> {
+        private final String key;
+        private final Loader<V> loader;
+        private final FutureTask<V> future = new FutureTask<>(this);
+        //加载期间是否发生过失效
+        private volatile boolean invalidated;
+
+        Load(String key, Loader<V> loader) {
+            this.key = key;
+            this.loader = loader;
+        }
+
+        @Override
+        public V call() throws Exception {
+            return loadThrough(this);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.evun.xutil.springmvc;
+
+import com.evun.xutil.mybatis.NPlusOneDetector;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 以请求为范围检测N+1查询(见NPlusOneDetector), 需要同时配置MybatisStatsInterceptor
+ * 异步请求(Callable, DeferredResult)开始异步处理时结束请求线程中的范围, 异步结果分派时重新开始一个范围,
+ * 因此异步请求的请求线程部分和分派部分分别统计
+ * 在spring mvc配置中注册:
+ * <p>
+ * &lt;mvc:interceptors&gt;
+ * &lt;bean class="com.evun.xutil.springmvc.NPlusOneHandlerInterceptor"/&gt;
+ * &lt;/mvc:interceptors&gt;
+ */
+public class NPlusOneHandlerInterceptor extends HandlerInterceptorAdapter implements AsyncHandlerInterceptor {
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        NPlusOneDetector.begin(request.getMethod() + " " + request.getRequestURI());
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //请求线程即将返回容器, 不调用afterCompletion, 必须在这里清除线程中的范围
+        NPlusOneDetector.end();
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
+        NPlusOneDetector.end();
+    }
+}
@@ -0,0 +1,59 @@
+package com.evun.xutil.springmvc;
+
+import cn.evun.gap.core.context.NamedThreadLocalContext;
+import com.evun.xutil.trace.Span;
+import com.evun.xutil.trace.Tracer;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 为每个请求开始一个跟踪(见Tracer), 请求结束时结束跟踪, 耗时超过阈值的请求会输出各个span的耗时
+ * 请求结束时总是清除线程中的当前span, 防止容器线程复用时残留; 异步请求(Callable, DeferredResult)开始异步处理时
+ * 只解除与请求线程的绑定, 异步结果重新分派时继续同一个跟踪, 最终在afterCompletion中结束
+ * 在spring mvc配置中注册:
+ * <p>
+ * &lt;mvc:interceptors&gt;
+ * &lt;bean class="com.evun.xutil.springmvc.TraceHandlerInterceptor"/&gt;
+ * &lt;/mvc:interceptors&gt;
+ */
+public class TraceHandlerInterceptor extends HandlerInterceptorAdapter {
+    private static final String SPAN_ATTRIBUTE = TraceHandlerInterceptor.class.getName() + ".span";
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        Object started = request.getAttribute(SPAN_ATTRIBUTE);
+        if (started instanceof Span) {
+            //异步结果重新分派, 在当前线程中继续原来的跟踪
+            NamedThreadLocalContext.bindResource(Tracer.CONTEXT_KEY, started);
+            return true;
+        }
+        Span span = Tracer.startTrace(request.getMethod() + " " + request.getRequestURI());
+        request.setAttribute(SPAN_ATTRIBUTE, span);
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //请求线程即将返回容器, 跟踪在异步结果分派后结束
+        NamedThreadLocalContext.bindResource(Tracer.CONTEXT_KEY, null);
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
+        try {
+            Object span = request.getAttribute(SPAN_ATTRIBUTE);
+            if (span instanceof Span) {
+                if (ex != null) {
+                    ((Span) span).markError();
+                }
+                ((Span) span).finish();
+                request.removeAttribute(SPAN_ATTRIBUTE);
+            }
+        } finally {
+            //没有正确结束的子span也不能残留在容器线程中
+            NamedThreadLocalContext.bindResource(Tracer.CONTEXT_KEY, null);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.evun.xutil.trace;
+
+/**
+ * 一段被计时的操作, 如一次请求, 一个异步任务, 一次获取锁, 一条sql语句
+ * 通过Tracer创建, 必须在finally中调用finish结束; 不在跟踪中时Tracer返回NOOP, 所有操作都是空操作
+ */
+public final class Span {
+    /**
+     * 不在跟踪中时使用的空span
+     */
+    public static final Span NOOP = new Span(null, null, null, false);
+
+    private final Trace trace;
+    private final Span parent;
+    private final String name;
+    //是否绑定为当前线程的当前span, 结束时需要恢复为父span
+    private final boolean attached;
+    private final int depth;
+    private final long startNanos = System.nanoTime();
+    private volatile long durationNanos = -1;
+    private volatile boolean error;
+
+    Span(Trace trace, Span parent, String name, boolean attached) {
+        this.trace = trace;
+        this.parent = parent;
+        this.name = name;
+        this.attached = attached;
+        this.depth = parent == null ? 0 : parent.depth + 1;
+    }
+
+    /**
+     * 标记操作失败
+     */
+    public void markError() {
+        error = true;
+    }
+
+    /**
+     * 结束计时, 重复调用没有影响; 可以在创建span之外的线程中调用(如锁在其他线程中释放)
+     */
+    public void finish() {
+        if (trace == null || durationNanos >= 0) {
+            return;
+        }
+        durationNanos = System.nanoTime() - startNanos;
+        if (attached && Tracer.currentSpan() == this) {
+            Tracer.bindCurrent(parent);
+        }
+        trace.onFinish(this);
+    }
+
+    /**
+     * @return 跟踪id, NOOP返回null
+     */
+    public String getTraceId() {
+        return trace == null ? null : trace.getTraceId();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isNoop() {
+        return trace == null;
+    }
+
+    Trace getTrace() {
+        return trace;
+    }
+
+    Span getParent() {
+        return parent;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    long getDurationNanos() {
+        return durationNanos;
+    }
+
+    boolean isError() {
+        return error;
+    }
+}
@@ -0,0 +1,64 @@
+package com.evun.xutil.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一次跟踪(如一次请求)中所有已经结束的span, 可能被多个线程(异步任务)同时写入
+ */
+final class Trace {
+    //每个跟踪最多保留的span数量, 防止循环中的大量sql占用过多内存
+    private static final int MAX_SPANS = 512;
+
+    private final String traceId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final long startMillis = System.currentTimeMillis();
+    private final List<Span> spans = new ArrayList<>();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private Span root;
+
+    Span start(String name) {
+        root = new Span(this, null, name, true);
+        return root;
+    }
+
+    void onFinish(Span span) {
+        if (span == root) {
+            Tracer.onTraceFinish(this);
+            return;
+        }
+        synchronized (spans) {
+            if (spans.size() < MAX_SPANS) {
+                spans.add(span);
+                return;
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    String getTraceId() {
+        return traceId;
+    }
+
+    long getStartMillis() {
+        return startMillis;
+    }
+
+    Span getRoot() {
+        return root;
+    }
+
+    /**
+     * @return 已经结束的span的快照(不含根span)
+     */
+    List<Span> getSpans() {
+        synchronized (spans) {
+            return new ArrayList<>(spans);
+        }
+    }
+
+    int getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,176 @@
+package com.evun.xutil.trace;
+
+import cn.evun.gap.core.context.NamedThreadLocalContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 轻量级的请求内跟踪: 一个跟踪id加上span栈, 用于在没有外部APM的情况下, 查看一次慢请求的时间花在了哪里
+ * 1. 当前span保存在NamedThreadLocalContext中, AsyncTaskExecutor的任务包装会把它传递到异步线程, 异步任务作为子span记录
+ * 2. RedisUtils的获取锁/持有锁, MybatisStatsInterceptor的sql语句会自动记录子span(不在跟踪中时不拼接span名称)
+ * 3. 根span结束时, 耗时超过慢跟踪阈值的跟踪通过名为 com.evun.xutil.trace.SlowTrace 的logger以WARN级别输出,
+ * 进入logback(包括ElasticSearchAsyncAppender)的日志管道
+ * 不在跟踪中(没有调用startTrace)时, startSpan返回Span.NOOP, 几乎没有开销
+ * 使用示例:
+ * <p>
+ * Span span = Tracer.startTrace("同步物料");
+ * try {
+ * ...
+ * } finally {
+ * span.finish();
+ * }
+ */
+public abstract class Tracer {
+    //在NamedThreadLocalContext中保存当前span的key
+    public static final String CONTEXT_KEY = Tracer.class.getName();
+    private static final Logger SLOW_TRACE_LOG = LoggerFactory.getLogger("com.evun.xutil.trace.SlowTrace");
+
+    //是否开启跟踪: -Dxutil.trace.enabled=false 关闭
+    private static volatile boolean enabled = Boolean.parseBoolean(System.getProperty("xutil.trace.enabled", "true"));
+    //慢跟踪阈值(毫秒): -Dxutil.trace.slowMillis
+    private static volatile long slowThresholdMillis = Long.getLong("xutil.trace.slowMillis", 1000L);
+
+    private static final Comparator<Span> START_ORDER = new Comparator<Span>() {
+        @Override
+        public int compare(Span o1, Span o2) {
+            long diff = o1.getStartNanos() - o2.getStartNanos();
+            return diff == 0 ? 0 : (diff < 0 ? -1 : 1);
+        }
+    };
+
+    /**
+     * 开始一个新的跟踪, 并作为当前线程的当前span; 当前线程已经在跟踪中时, 作为子span
+     *
+     * @param name 名称, 如请求的url, 定时任务的名称
+     * @return 根span, 跟踪关闭时返回Span.NOOP
+     */
+    public static Span startTrace(String name) {
+        if (!enabled) {
+            return Span.NOOP;
+        }
+        Span current = currentSpan();
+        if (current != null) {
+            return startSpan(name);
+        }
+        Span root = new Trace().start(name);
+        bindCurrent(root);
+        return root;
+    }
+
+    /**
+     * 开始一个子span, 并作为当前线程的当前span, 结束时恢复为父span
+     *
+     * @param name 名称
+     * @return 子span, 不在跟踪中时返回Span.NOOP
+     */
+    public static Span startSpan(String name) {
+        Span current = currentSpan();
+        if (current == null) {
+            return Span.NOOP;
+        }
+        Span span = new Span(current.getTrace(), current, name, true);
+        bindCurrent(span);
+        return span;
+    }
+
+    /**
+     * 开始一个不绑定到当前线程的子span, 用于在其他线程中结束的操作(如锁在异步任务结束后释放)
+     *
+     * @param name 名称
+     * @return 子span, 不在跟踪中时返回Span.NOOP
+     */
+    public static Span startDetachedSpan(String name) {
+        Span current = currentSpan();
+        if (current == null) {
+            return Span.NOOP;
+        }
+        return new Span(current.getTrace(), current, name, false);
+    }
+
+    /**
+     * 在异步线程中开始父span(提交者线程的当前span)的子span, 并作为当前线程的当前span
+     *
+     * @param parent 提交者线程的当前span
+     * @param name   名称
+     * @return 子span
+     */
+    public static Span startSpan(Span parent, String name) {
+        if (parent == null || parent.isNoop()) {
+            return Span.NOOP;
+        }
+        Span span = new Span(parent.getTrace(), parent, name, true);
+        bindCurrent(span);
+        return span;
+    }
+
+    /**
+     * @return 当前线程的当前span, 不在跟踪中时返回null
+     */
+    public static Span currentSpan() {
+        return (Span) NamedThreadLocalContext.getResource(CONTEXT_KEY);
+    }
+
+    /**
+     * @return 当前线程的跟踪id, 不在跟踪中时返回null
+     */
+    public static String currentTraceId() {
+        Span current = currentSpan();
+        return current == null ? null : current.getTraceId();
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Tracer.enabled = enabled;
+    }
+
+    public static long getSlowThresholdMillis() {
+        return slowThresholdMillis;
+    }
+
+    public static void setSlowThresholdMillis(long slowThresholdMillis) {
+        Tracer.slowThresholdMillis = slowThresholdMillis;
+    }
+
+    static void bindCurrent(Span span) {
+        NamedThreadLocalContext.bindResource(CONTEXT_KEY, span);
+    }
+
+    //根span结束时调用, 根span结束之后才结束的span(如没有等待的异步任务)不会出现在输出中
+    static void onTraceFinish(Trace trace) {
+        Span root = trace.getRoot();
+        long costMillis = TimeUnit.NANOSECONDS.toMillis(root.getDurationNanos());
+        if (costMillis < slowThresholdMillis || !SLOW_TRACE_LOG.isWarnEnabled()) {
+            return;
+        }
+        List<Span> spans = trace.getSpans();
+        Collections.sort(spans, START_ORDER);
+        StringBuilder sb = new StringBuilder(128 + spans.size() * 64);
+        sb.append("慢跟踪: ").append(root.getName())
+                .append(", traceId: ").append(trace.getTraceId())
+                .append(", 耗时: ").append(costMillis).append(" ms");
+        for (Span span : spans) {
+            sb.append("\n");
+            for (int i = 0; i < span.getDepth(); i++) {
+                sb.append("  ");
+            }
+            sb.append("+").append(TimeUnit.NANOSECONDS.toMillis(span.getStartNanos() - root.getStartNanos())).append("ms ")
+                    .append(TimeUnit.NANOSECONDS.toMillis(span.getDurationNanos())).append("ms ")
+                    .append(span.getName());
+            if (span.isError()) {
+                sb.append(" [error]");
+            }
+        }
+        if (trace.getDropped() > 0) {
+            sb.append("\n  (超过上限, 丢弃了").append(trace.getDropped()).append("个span)");
+        }
+        SLOW_TRACE_LOG.warn(sb.toString());
+    }
+}
@@ -0,0 +1,107 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.core.exception.GapRuntimeException;
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class DeadlineTest extends TestCase {
+
+    public void testNoDeadline() {
+        assertNull(Deadline.current());
+        assertFalse(Deadline.hasDeadline());
+        assertEquals(Long.MAX_VALUE, Deadline.remainingNanos());
+        assertEquals(Long.MAX_VALUE, Deadline.remainingMillis());
+        assertFalse(Deadline.isExpired());
+        Deadline.checkNotExpired();
+    }
+
+    public void testCallWithinBindsAndRestores() throws Exception {
+        long remaining = Deadline.callWithin(1, TimeUnit.SECONDS, new Callable<Long>() {
+            @Override
+            public Long call() {
+                assertTrue(Deadline.hasDeadline());
+                return Deadline.remainingMillis();
+            }
+        });
+        assertTrue(remaining > 0 && remaining <= 1000);
+        assertNull(Deadline.current());
+    }
+
+    public void testNestedUsesEarliest() throws Exception {
+        Deadline.callWithin(100, TimeUnit.MILLISECONDS, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final Long outer = Deadline.current();
+                //内层的超时时间更长, 仍然使用外层的截止时间
+                Deadline.callWithin(10, TimeUnit.SECONDS, new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        assertEquals(outer, Deadline.current());
+                        return null;
+                    }
+                });
+                //内层的超时时间更短, 使用内层的截止时间
+                Deadline.callWithin(10, TimeUnit.MILLISECONDS, new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        assertTrue(Deadline.current() - outer < 0);
+                        assertTrue(Deadline.remainingMillis() <= 10);
+                        return null;
+                    }
+                });
+                assertEquals(outer, Deadline.current());
+                return null;
+            }
+        });
+        assertNull(Deadline.current());
+    }
+
+    public void testExpired() throws Exception {
+        Deadline.callWithin(1, TimeUnit.MILLISECONDS, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Thread.sleep(5);
+                assertTrue(Deadline.isExpired());
+                assertEquals(0, Deadline.remainingNanos());
+                try {
+                    Deadline.checkNotExpired();
+                    fail();
+                } catch (GapRuntimeException e) {
+                    assertTrue(e.getCause() instanceof TimeoutException);
+                }
+                return null;
+            }
+        });
+    }
+
+    public void testRestoreOnException() {
+        try {
+            Deadline.callWithin(1, TimeUnit.SECONDS, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    throw new IllegalStateException("test");
+                }
+            });
+            fail();
+        } catch (Exception e) {
+            assertTrue(e instanceof IllegalStateException);
+        }
+        assertNull(Deadline.current());
+    }
+
+    public void testAfterNotLaterThanCurrent() throws Exception {
+        long deadline = Deadline.after(1, TimeUnit.SECONDS);
+        long remaining = deadline - System.nanoTime();
+        assertTrue(remaining > 0 && remaining <= TimeUnit.SECONDS.toNanos(1));
+        Deadline.callWithin(10, TimeUnit.MILLISECONDS, new Callable<Void>() {
+            @Override
+            public Void call() {
+                assertEquals(Deadline.current().longValue(), Deadline.after(1, TimeUnit.SECONDS));
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,144 @@
+package com.evun.xutil.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class HashedWheelTimerTest extends TestCase {
+    private static final long TICK_MILLIS = 10;
+
+    private final List<HashedWheelTimer> timers = new ArrayList<>();
+
+    @Override
+    protected void tearDown() {
+        for (HashedWheelTimer timer : timers) {
+            timer.stop();
+        }
+    }
+
+    public void testExpireAfterDelay() throws Exception {
+        HashedWheelTimer timer = newTimer(TICK_MILLIS, 64);
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.newTimeout(countDown(latch), TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        //精度为一个tick
+        assertTrue(elapsedMillis(start) >= 50 - TICK_MILLIS);
+    }
+
+    public void testExpireAfterMultipleRounds() throws Exception {
+        //4个槽, 一圈40毫秒
+        HashedWheelTimer timer = newTimer(TICK_MILLIS, 4);
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.newTimeout(countDown(latch), TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(elapsedMillis(start) >= 150 - TICK_MILLIS);
+    }
+
+    public void testNonPositiveDelayExpiresOnNextTick() throws Exception {
+        HashedWheelTimer timer = newTimer(TICK_MILLIS, 64);
+        CountDownLatch latch = new CountDownLatch(2);
+        timer.newTimeout(countDown(latch), 0);
+        timer.newTimeout(countDown(latch), -1);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    public void testCancel() throws Exception {
+        HashedWheelTimer timer = newTimer(TICK_MILLIS, 64);
+        final AtomicBoolean expired = new AtomicBoolean();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                expired.set(true);
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, timer.getPendingTimeouts());
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertEquals(0, timer.getPendingTimeouts());
+        Thread.sleep(200);
+        assertFalse(expired.get());
+    }
+
+    public void testCancelAfterExpire() throws Exception {
+        HashedWheelTimer timer = newTimer(TICK_MILLIS, 64);
+        CountDownLatch latch = new CountDownLatch(1);
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(countDown(latch), 0);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+        assertEquals(0, timer.getPendingTimeouts());
+    }
+
+    public void testManyTimeouts() throws Exception {
+        HashedWheelTimer timer = newTimer(TICK_MILLIS, 8);
+        int count = 10000;
+        CountDownLatch latch = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            timer.newTimeout(countDown(latch), TimeUnit.MILLISECONDS.toNanos(i % 200));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, timer.getPendingTimeouts());
+    }
+
+    public void testActionExceptionDoesNotStopTimer() throws Exception {
+        HashedWheelTimer timer = newTimer(TICK_MILLIS, 64);
+        timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("test");
+            }
+        }, 0);
+        CountDownLatch latch = new CountDownLatch(1);
+        timer.newTimeout(countDown(latch), TimeUnit.MILLISECONDS.toNanos(30));
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    public void testStop() throws Exception {
+        HashedWheelTimer timer = newTimer(TICK_MILLIS, 64);
+        final AtomicBoolean expired = new AtomicBoolean();
+        timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                expired.set(true);
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(100));
+        timer.stop();
+        Thread.sleep(300);
+        assertFalse(expired.get());
+        try {
+            timer.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, 0);
+            fail();
+        } catch (RuntimeException e) {
+            //已经停止的定时器不能再添加定时任务
+        }
+    }
+
+    private HashedWheelTimer newTimer(long tickMillis, int wheelSize) {
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer", tickMillis, wheelSize);
+        timers.add(timer);
+        return timer;
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
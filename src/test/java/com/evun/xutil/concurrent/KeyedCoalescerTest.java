@@ -0,0 +1,166 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.common.model.UserContextDO;
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KeyedCoalescerTest extends TestCase {
+    //不恢复用户上下文, 不依赖公共线程池
+    private static final TaskWrapper DIRECT = new TaskWrapper() {
+        @Override
+        public Runnable wrap(Runnable task, UserContextDO context, Long deadline) {
+            return task;
+        }
+    };
+    private static final long DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private ExecutorService executor;
+    private HashedWheelTimer timer;
+    private KeyedCoalescer coalescer;
+
+    @Override
+    protected void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        timer = new HashedWheelTimer("test-timer", 10, 64);
+        coalescer = new KeyedCoalescer(timer, executor, DIRECT);
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdownNow();
+        timer.stop();
+    }
+
+    public void testOnlyLastSubmissionRuns() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger lastValue = new AtomicInteger(-1);
+        for (int i = 0; i < 10; i++) {
+            final int value = i;
+            coalescer.submit("key", DELAY_NANOS, new Runnable() {
+                @Override
+                public void run() {
+                    runs.incrementAndGet();
+                    lastValue.set(value);
+                }
+            }, null);
+        }
+        waitForIdle();
+        assertEquals(1, runs.get());
+        assertEquals(9, lastValue.get());
+    }
+
+    public void testKeysAreIndependent() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+        coalescer.submit("a", DELAY_NANOS, countDown(latch), null);
+        coalescer.submit("b", DELAY_NANOS, countDown(latch), null);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        waitForIdle();
+    }
+
+    public void testSubmitWhileRunningRunsAgainAfterwards() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                enter(running, maxRunning);
+                try {
+                    started.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                    runs.incrementAndGet();
+                }
+            }
+        };
+        Runnable second = new Runnable() {
+            @Override
+            public void run() {
+                enter(running, maxRunning);
+                running.decrementAndGet();
+                runs.incrementAndGet();
+            }
+        };
+        coalescer.submit("key", DELAY_NANOS, blocking, null);
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        coalescer.submit("key", DELAY_NANOS, second, null);
+        //执行期间的提交要等本次执行结束
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(DELAY_NANOS) * 2);
+        assertEquals(0, runs.get());
+        release.countDown();
+        waitForIdle();
+        assertEquals(2, runs.get());
+        assertEquals(1, maxRunning.get());
+    }
+
+    public void testContinuousSubmissionsRunWithinMaxDelay() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        //一直在安静期内提交, 最多推迟 delay * 10 就会执行一次
+        long end = System.nanoTime() + DELAY_NANOS * 10 * 3;
+        while (System.nanoTime() - end < 0) {
+            coalescer.submit("key", DELAY_NANOS, task, null);
+            Thread.sleep(5);
+        }
+        assertTrue(runs.get() >= 1);
+        waitForIdle();
+    }
+
+    public void testTaskExceptionDoesNotBlockKey() throws Exception {
+        coalescer.submit("key", DELAY_NANOS, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("test");
+            }
+        }, null);
+        waitForIdle();
+        CountDownLatch latch = new CountDownLatch(1);
+        coalescer.submit("key", DELAY_NANOS, countDown(latch), null);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        waitForIdle();
+    }
+
+    private void waitForIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coalescer.size() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("等待合并任务结束超时!");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void enter(AtomicInteger running, AtomicInteger maxRunning) {
+        int current = running.incrementAndGet();
+        while (true) {
+            int max = maxRunning.get();
+            if (current <= max || maxRunning.compareAndSet(max, current)) {
+                return;
+            }
+        }
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}
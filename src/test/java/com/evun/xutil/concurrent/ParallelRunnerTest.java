@@ -0,0 +1,153 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.common.model.UserContextDO;
+import cn.evun.gap.core.exception.GapRuntimeException;
+import junit.framework.TestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ParallelRunnerTest extends TestCase {
+    //不恢复用户上下文, 不依赖公共线程池
+    private static final TaskWrapper DIRECT = new TaskWrapper() {
+        @Override
+        public Runnable wrap(Runnable task, UserContextDO context, Long deadline) {
+            return task;
+        }
+    };
+    private ExecutorService executor;
+    private HashedWheelTimer timer;
+
+    @Override
+    protected void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        timer = new HashedWheelTimer("test-timer", 10, 64);
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdownNow();
+        timer.stop();
+    }
+
+    public void testRunEachIndexOnce() {
+        int count = 1000;
+        final AtomicIntegerArray runs = new AtomicIntegerArray(count);
+        ParallelRunner.run(executor, DIRECT, timer, null, count, 4, 10, 0, new ParallelRunner.IndexedTask() {
+            @Override
+            public void run(int index) {
+                runs.incrementAndGet(index);
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            assertEquals(1, runs.get(i));
+        }
+    }
+
+    public void testNoTasks() {
+        ParallelRunner.run(executor, DIRECT, timer, null, 0, 4, 1, 0, new ParallelRunner.IndexedTask() {
+            @Override
+            public void run(int index) {
+                fail();
+            }
+        });
+    }
+
+    public void testParallelismIsBounded() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        ParallelRunner.run(executor, DIRECT, timer, null, 40, 2, 1, 0, new ParallelRunner.IndexedTask() {
+            @Override
+            public void run(int index) throws Exception {
+                int current = running.incrementAndGet();
+                while (true) {
+                    int max = maxRunning.get();
+                    if (current <= max || maxRunning.compareAndSet(max, current)) {
+                        break;
+                    }
+                }
+                Thread.sleep(2);
+                running.decrementAndGet();
+            }
+        });
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    public void testFailurePropagates() {
+        final IllegalStateException error = new IllegalStateException("test");
+        try {
+            ParallelRunner.run(executor, DIRECT, timer, null, 100, 4, 1, 0, new ParallelRunner.IndexedTask() {
+                @Override
+                public void run(int index) {
+                    if (index == 5) {
+                        throw error;
+                    }
+                }
+            });
+            fail();
+        } catch (GapRuntimeException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    public void testTimeoutInterruptsCaller() {
+        long start = System.nanoTime();
+        try {
+            ParallelRunner.run(executor, DIRECT, timer, null, 4, 4, 1, TimeUnit.MILLISECONDS.toNanos(100),
+                    new ParallelRunner.IndexedTask() {
+                        @Override
+                        public void run(int index) throws Exception {
+                            Thread.sleep(10000);
+                        }
+                    });
+            fail();
+        } catch (GapRuntimeException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        //打断调用者线程的中断标记已经清除
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    public void testCallerDoesAllWorkWhenRejected() {
+        executor.shutdown();
+        int count = 100;
+        final AtomicIntegerArray runs = new AtomicIntegerArray(count);
+        final Thread caller = Thread.currentThread();
+        ParallelRunner.run(executor, DIRECT, timer, null, count, 4, 1, 0, new ParallelRunner.IndexedTask() {
+            @Override
+            public void run(int index) {
+                assertSame(caller, Thread.currentThread());
+                runs.incrementAndGet(index);
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            assertEquals(1, runs.get(i));
+        }
+    }
+
+    public void testWorkersGetDeadline() {
+        final AtomicReference<Long> deadline = new AtomicReference<>();
+        TaskWrapper recording = new TaskWrapper() {
+            @Override
+            public Runnable wrap(Runnable task, UserContextDO context, Long taskDeadline) {
+                deadline.set(taskDeadline);
+                return task;
+            }
+        };
+        long before = System.nanoTime();
+        ParallelRunner.run(executor, recording, timer, null, 10, 2, 1, TimeUnit.SECONDS.toNanos(1), new ParallelRunner.IndexedTask() {
+            @Override
+            public void run(int index) {
+            }
+        });
+        assertNotNull(deadline.get());
+        assertTrue(deadline.get() - before > 0);
+        assertTrue(deadline.get() - before <= TimeUnit.SECONDS.toNanos(1) + TimeUnit.MILLISECONDS.toNanos(100));
+    }
+}
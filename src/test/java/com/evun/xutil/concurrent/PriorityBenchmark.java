@@ -0,0 +1,168 @@
+package com.evun.xutil.concurrent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 优先级线程池的基准测试, 不在单元测试中运行
+ * 后台任务(BACKGROUND, 每个占用cpu约50us)保持队列中有指定数量的积压, 同时每10ms提交一个交互任务(INTERACTIVE),
+ * 测量交互任务从提交到开始执行的排队延迟, 与线程数相同的先进先出线程池(公共线程池的队列方式)对比
+ * 优先级线程池中交互任务的延迟应当不随积压增长, 先进先出线程池中延迟与积压成正比
+ * 使用普通线程而不是JMH(项目中没有JMH依赖)
+ * 运行示例:
+ * <p>
+ * java com.evun.xutil.concurrent.PriorityBenchmark [线程数] [每档交互任务数]
+ */
+public class PriorityBenchmark {
+    private static final int[] BACKLOGS = {0, 100, 1000, 10000};
+    private static final long BACKGROUND_WORK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long INTERACTIVE_INTERVAL_MILLIS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        System.out.printf("线程数: %d, 后台任务耗时: %dus, 交互任务间隔: %dms%n", threads,
+                TimeUnit.NANOSECONDS.toMicros(BACKGROUND_WORK_NANOS), INTERACTIVE_INTERVAL_MILLIS);
+        System.out.printf("%-12s %8s %12s %12s %12s %14s%n", "线程池", "积压", "p50(us)", "p99(us)", "最大(us)", "后台任务数");
+        //预热
+        run(new PriorityPool(threads), 1000, samples);
+        run(new FifoPool(threads), 1000, samples);
+        for (int backlog : BACKLOGS) {
+            print("优先级", backlog, run(new PriorityPool(threads), backlog, samples));
+            print("先进先出", backlog, run(new FifoPool(threads), backlog, samples));
+        }
+        System.exit(0);
+    }
+
+    private static void print(String pool, int backlog, Result result) {
+        System.out.printf("%-12s %8d %12.1f %12.1f %12.1f %14d%n", pool, backlog,
+                result.percentile(0.5) / 1e3, result.percentile(0.99) / 1e3, result.percentile(1) / 1e3, result.background);
+    }
+
+    private static Result run(final Pool pool, final int backlog, int samples) throws Exception {
+        final Callable<Object> background = new Callable<Object>() {
+            @Override
+            public Object call() {
+                long end = System.nanoTime() + BACKGROUND_WORK_NANOS;
+                while (System.nanoTime() - end < 0) {
+                    //占用cpu
+                }
+                return null;
+            }
+        };
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicBoolean stop = new AtomicBoolean();
+        //补充后台任务, 保持积压数量
+        Thread filler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stop.get()) {
+                    if (pool.getQueueSize() < backlog) {
+                        pool.submit(background, TaskPriority.BACKGROUND);
+                        submitted.incrementAndGet();
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        }, "benchmark-filler");
+        filler.start();
+        //等待积压到达指定数量
+        while (pool.getQueueSize() < backlog) {
+            Thread.sleep(1);
+        }
+
+        List<Future<Long>> waits = new ArrayList<>(samples);
+        for (int i = 0; i < samples; i++) {
+            final long submitNanos = System.nanoTime();
+            waits.add(pool.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return System.nanoTime() - submitNanos;
+                }
+            }, TaskPriority.INTERACTIVE));
+            Thread.sleep(INTERACTIVE_INTERVAL_MILLIS);
+        }
+        long[] nanos = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            nanos[i] = waits.get(i).get();
+        }
+        stop.set(true);
+        filler.join();
+        //等待积压的后台任务执行完, 不影响下一档的测量
+        while (pool.getQueueSize() > 0) {
+            Thread.sleep(1);
+        }
+        return new Result(nanos, submitted.get());
+    }
+
+    private interface Pool {
+        <T> Future<T> submit(Callable<T> task, TaskPriority priority);
+
+        int getQueueSize();
+    }
+
+    private static class PriorityPool implements Pool {
+        private final PriorityTaskExecutor executor;
+
+        PriorityPool(int threads) {
+            this.executor = new PriorityTaskExecutor(threads, 100000, new TaskMetrics(null));
+        }
+
+        @Override
+        public <T> Future<T> submit(Callable<T> task, TaskPriority priority) {
+            return executor.submit(task, priority);
+        }
+
+        @Override
+        public int getQueueSize() {
+            return executor.getQueueSize();
+        }
+    }
+
+    /**
+     * 先进先出的线程池, 忽略优先级
+     */
+    private static class FifoPool implements Pool {
+        private final ThreadPoolExecutor executor;
+
+        FifoPool(int threads) {
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public <T> Future<T> submit(Callable<T> task, TaskPriority priority) {
+            return executor.submit(task);
+        }
+
+        @Override
+        public int getQueueSize() {
+            return executor.getQueue().size();
+        }
+    }
+
+    private static class Result {
+        private final long[] nanos;
+        //测量期间提交的后台任务数
+        private final long background;
+
+        Result(long[] nanos, long background) {
+            Arrays.sort(nanos);
+            this.nanos = nanos;
+            this.background = background;
+        }
+
+        long percentile(double percentile) {
+            return nanos[(int) Math.min(nanos.length - 1, Math.ceil(percentile * nanos.length) - 1)];
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.evun.xutil.concurrent;
+
+import cn.evun.gap.core.RR;
+import cn.evun.gap.core.context.NamedThreadLocalContext;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 用户上下文包装的开销基准测试, 不在单元测试中运行
+ * 在当前线程中测量: 直接运行任务, captureContext, 捕获上下文 + 在当前线程中切换上下文运行任务(runWithContextSwap), 包装任务,
+ * 分别在没有上下文和有上下文(ticket, device)时测量, 报告每次操作的耗时和分配的字节数(jvm支持时)
+ * 使用普通循环而不是JMH(项目中没有JMH依赖), 每项先预热再测量
+ * 运行示例:
+ * <p>
+ * java com.evun.xutil.concurrent.TaskWrapperBenchmark [每项的次数]
+ */
+public class TaskWrapperBenchmark {
+    private static final AtomicLong COUNTER = new AtomicLong();
+    private static final Runnable TASK = new Runnable() {
+        @Override
+        public void run() {
+            COUNTER.incrementAndGet();
+        }
+    };
+    //防止JIT消除没有使用的结果
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        System.out.printf("%-28s %-10s %12s %14s%n", "操作", "上下文", "耗时(ns/次)", "分配(字节/次)");
+        for (int round = 0; round < 2; round++) {
+            //第一轮是预热, 不输出
+            boolean print = round == 1;
+            NamedThreadLocalContext.unBindAll();
+            runAll(iterations, "无", print);
+            NamedThreadLocalContext.bindResource(RR.Context.AUTH_TICKET, "ticket");
+            NamedThreadLocalContext.bindResource("device", "pc");
+            runAll(iterations, "ticket+device", print);
+            NamedThreadLocalContext.unBindAll();
+        }
+        System.exit(0);
+    }
+
+    private static void runAll(int iterations, String context, boolean print) {
+        measure("直接运行", context, iterations, print, new Operation() {
+            @Override
+            public void run() {
+                TASK.run();
+            }
+        });
+        measure("captureContext", context, iterations, print, new Operation() {
+            @Override
+            public void run() {
+                sink = AsyncTaskExecutor.captureContext();
+            }
+        });
+        measure("捕获 + runWithContextSwap", context, iterations, print, new Operation() {
+            @Override
+            public void run() {
+                //运行包装后的任务会在结束时清除当前线程的上下文, 使用同步执行的方式保留调用者的上下文
+                AsyncTaskExecutor.runWithContextSwap(TASK, AsyncTaskExecutor.captureContext());
+            }
+        });
+        measure("newTaskWrapper(不运行)", context, iterations, print, new Operation() {
+            @Override
+            public void run() {
+                sink = AsyncTaskExecutor.newTaskWrapper(TASK);
+            }
+        });
+    }
+
+    private static void measure(String name, String context, int iterations, boolean print, Operation operation) {
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = allocatedBytes() - startBytes;
+        if (print) {
+            System.out.printf("%-28s %-10s %12.1f %14s%n", name, context, elapsed / (double) iterations,
+                    startBytes < 0 ? "不支持" : String.format("%.1f", bytes / (double) iterations));
+        }
+    }
+
+    //当前线程已经分配的字节数, jvm不支持时返回-1
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private interface Operation {
+        void run();
+    }
+}
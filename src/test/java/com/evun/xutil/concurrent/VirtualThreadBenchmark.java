@@ -0,0 +1,101 @@
+package com.evun.xutil.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 虚拟线程与公共线程池执行io密集任务的吞吐量对比, 不在单元测试中运行
+ * 每档同时提交指定数量的任务, 每个任务sleep指定毫秒数模拟一次阻塞io(远程调用, 数据库查询), 等待全部结束,
+ * 报告总耗时和每秒完成的任务数
+ * 公共线程池通过AsyncTaskExecutor.submit提交(没有spring容器时是同样线程数的本地线程池), 虚拟线程使用
+ * Executors.newVirtualThreadPerTaskExecutor(与-Dxutil.async.virtualThreads=true时相同), jdk不支持时只测量公共线程池
+ * 线程池的吞吐量上限约为 线程数 * 1000 / sleep毫秒数, 虚拟线程不受线程数限制
+ * 使用普通线程而不是JMH(项目中没有JMH依赖), 每档先预热再测量
+ * 需要在没有开启虚拟线程模式时运行, 运行示例:
+ * <p>
+ * java com.evun.xutil.concurrent.VirtualThreadBenchmark [sleep毫秒数]
+ */
+public class VirtualThreadBenchmark {
+    //公共线程池的队列容量是10000, 每档的任务数不能超过
+    private static final int[] TASKS = {100, 1000, 5000};
+
+    public static void main(String[] args) throws Exception {
+        final long sleepMillis = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        if (AsyncTaskExecutor.isVirtualThreadMode()) {
+            System.out.println("请在没有开启虚拟线程模式(-Dxutil.async.virtualThreads)时运行!");
+            System.exit(1);
+        }
+        ExecutorService virtualExecutor = newVirtualExecutor();
+        Callable<Object> task = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                Thread.sleep(sleepMillis);
+                return null;
+            }
+        };
+        System.out.printf("任务耗时: %dms(sleep), jdk: %s%n", sleepMillis, System.getProperty("java.version"));
+        System.out.printf("%-12s %8s %12s %14s%n", "执行器", "任务数", "耗时(ms)", "任务数/秒");
+        for (int tasks : TASKS) {
+            run(new Submitter() {
+                @Override
+                public Future<Object> submit(Callable<Object> task) {
+                    return AsyncTaskExecutor.submit(task);
+                }
+            }, "公共线程池", tasks, task);
+            if (virtualExecutor != null) {
+                final ExecutorService executor = virtualExecutor;
+                run(new Submitter() {
+                    @Override
+                    public Future<Object> submit(Callable<Object> task) {
+                        return executor.submit(task);
+                    }
+                }, "虚拟线程", tasks, task);
+            }
+        }
+        if (virtualExecutor == null) {
+            System.out.println("当前jdk不支持虚拟线程, 只测量了公共线程池");
+        }
+        System.exit(0);
+    }
+
+    private static void run(Submitter submitter, String name, int tasks, Callable<Object> task) throws Exception {
+        //预热
+        submitAll(submitter, tasks, task);
+        long elapsed = submitAll(submitter, tasks, task);
+        System.out.printf("%-12s %8d %12.1f %14.0f%n", name, tasks, elapsed / 1e6, tasks * 1e9 / elapsed);
+    }
+
+    //提交全部任务并等待结束, 返回纳秒数
+    private static long submitAll(Submitter submitter, int tasks, Callable<Object> task) throws Exception {
+        long start = System.nanoTime();
+        List<Future<Object>> futures = new ArrayList<>(tasks);
+        for (int i = 0; i < tasks; i++) {
+            futures.add(submitter.submit(task));
+        }
+        for (Future<Object> future : futures) {
+            future.get(10, TimeUnit.MINUTES);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            throw new IllegalStateException("创建虚拟线程执行器失败!", e);
+        }
+    }
+
+    private interface Submitter {
+        Future<Object> submit(Callable<Object> task);
+    }
+}
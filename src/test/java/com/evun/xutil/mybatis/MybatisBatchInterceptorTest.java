@@ -0,0 +1,305 @@
+package com.evun.xutil.mybatis;
+
+import junit.framework.TestCase;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.SimpleExecutor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.mapping.ResultMapping;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.RowBounds;
+import org.apache.ibatis.transaction.jdbc.JdbcTransaction;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.interceptor.DefaultTransactionAttribute;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 使用记录调用的jdbc连接测试MybatisBatchInterceptor的合并, 自动执行, 丢弃和结果合并
+ */
+public class MybatisBatchInterceptorTest extends TestCase {
+    private static final String INSERT = "insert into t values (1)";
+    private static final String UPDATE = "update t set a = 1";
+    private static final String SELECT = "select a from t";
+
+    //jdbc调用记录: "batch:<sql>:<条数>", "execute:<sql>"
+    private final List<String> log = new ArrayList<>();
+    private Configuration configuration;
+    private MybatisBatchInterceptor interceptor;
+    private Executor executor;
+    private MappedStatement insert;
+    private MappedStatement update;
+    private MappedStatement select;
+
+    @Override
+    protected void setUp() throws Exception {
+        configuration = new Configuration();
+        interceptor = new MybatisBatchInterceptor();
+        interceptor.addStatement("test.insert", "test.update");
+        configuration.addInterceptor(interceptor);
+        insert = newStatement("test.insert", INSERT, SqlCommandType.INSERT);
+        update = newStatement("test.update", UPDATE, SqlCommandType.UPDATE);
+        select = newStatement("test.select", SELECT, SqlCommandType.SELECT);
+        executor = (Executor) configuration.getInterceptors().get(0).plugin(
+                new SimpleExecutor(configuration, new JdbcTransaction(newConnection())));
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TransactionSynchronizationManager.setActualTransactionActive(false);
+    }
+
+    public void testConsecutiveUpdatesAreBatched() throws Exception {
+        executor.update(insert, null);
+        executor.update(insert, null);
+        executor.update(insert, null);
+        assertTrue(log.isEmpty());
+        List<BatchResult> results = executor.flushStatements();
+        assertEquals(Collections.singletonList("batch:" + INSERT + ":3"), log);
+        assertEquals(1, results.size());
+        assertEquals(3, results.get(0).getUpdateCounts().length);
+    }
+
+    public void testDifferentStatementFlushesAndResultsAreMerged() throws Exception {
+        executor.update(insert, null);
+        executor.update(insert, null);
+        executor.update(update, null);
+        assertEquals(Collections.singletonList("batch:" + INSERT + ":2"), log);
+        //自动执行的结果与flushStatements执行的结果按顺序一起返回
+        List<BatchResult> results = executor.flushStatements();
+        assertEquals(Arrays.asList("batch:" + INSERT + ":2", "batch:" + UPDATE + ":1"), log);
+        assertEquals(2, results.size());
+        assertEquals(INSERT, results.get(0).getSql());
+        assertEquals(2, results.get(0).getUpdateCounts().length);
+        assertEquals(UPDATE, results.get(1).getSql());
+        //结果只返回一次
+        assertTrue(executor.flushStatements().isEmpty());
+    }
+
+    public void testBatchSizeFlushes() throws Exception {
+        interceptor.setBatchSize(2);
+        executor.update(insert, null);
+        executor.update(insert, null);
+        assertEquals(Collections.singletonList("batch:" + INSERT + ":2"), log);
+        executor.update(insert, null);
+        List<BatchResult> results = executor.flushStatements();
+        assertEquals(2, results.size());
+        assertEquals(2, results.get(0).getUpdateCounts().length);
+        assertEquals(1, results.get(1).getUpdateCounts().length);
+    }
+
+    public void testQueryFlushesFirst() throws Exception {
+        executor.update(insert, null);
+        executor.query(select, null, RowBounds.DEFAULT, Executor.NO_RESULT_HANDLER);
+        assertEquals(Arrays.asList("batch:" + INSERT + ":1", "execute:" + SELECT), log);
+    }
+
+    public void testQueryCursorFlushesFirst() throws Exception {
+        executor.update(insert, null);
+        Cursor<Object> cursor = executor.queryCursor(select, null, RowBounds.DEFAULT);
+        cursor.close();
+        assertEquals(Arrays.asList("batch:" + INSERT + ":1", "execute:" + SELECT), log);
+    }
+
+    public void testCommitFlushesAndClearsResults() throws Exception {
+        executor.update(insert, null);
+        executor.update(update, null);
+        executor.commit(false);
+        assertEquals(Arrays.asList("batch:" + INSERT + ":1", "batch:" + UPDATE + ":1"), log);
+        assertTrue(executor.flushStatements().isEmpty());
+    }
+
+    public void testRollbackDiscards() throws Exception {
+        executor.update(insert, null);
+        executor.update(update, null);
+        executor.rollback(false);
+        //已经自动执行的语句由事务回滚, 没有执行的语句直接丢弃, 结果也被清除
+        assertEquals(Collections.singletonList("batch:" + INSERT + ":1"), log);
+        assertTrue(executor.flushStatements().isEmpty());
+        assertEquals(1, log.size());
+    }
+
+    public void testNotBatchedOutsideTransaction() throws Exception {
+        TransactionSynchronizationManager.setActualTransactionActive(false);
+        assertEquals(1, executor.update(insert, null));
+        assertEquals(Collections.singletonList("execute:" + INSERT), log);
+    }
+
+    public void testNotConfiguredStatementFlushesAndRunsDirectly() throws Exception {
+        executor.update(insert, null);
+        MappedStatement delete = newStatement("test.delete", "delete from t", SqlCommandType.DELETE);
+        assertEquals(1, executor.update(delete, null));
+        assertEquals(Arrays.asList("batch:" + INSERT + ":1", "execute:delete from t"), log);
+    }
+
+    public void testNestedTransactionFlushesAndStopsBatching() throws Exception {
+        executor.update(insert, null);
+        NestedTransaction nested = new NestedTransaction();
+        nested.begin();
+        try {
+            assertEquals(1, executor.update(insert, null));
+        } finally {
+            nested.end();
+        }
+        assertEquals(Arrays.asList("batch:" + INSERT + ":1", "execute:" + INSERT), log);
+        //嵌套事务结束后继续合并
+        executor.update(insert, null);
+        assertEquals(2, log.size());
+    }
+
+    private MappedStatement newStatement(String id, String sql, SqlCommandType type) {
+        MappedStatement.Builder builder = new MappedStatement.Builder(configuration, id,
+                new StaticSqlSource(configuration, sql), type);
+        if (type == SqlCommandType.SELECT) {
+            builder.resultMaps(Collections.singletonList(
+                    new ResultMap.Builder(configuration, id + ".result", Map.class, new ArrayList<ResultMapping>()).build()));
+        }
+        MappedStatement mappedStatement = builder.build();
+        configuration.addMappedStatement(mappedStatement);
+        return mappedStatement;
+    }
+
+    private Connection newConnection() {
+        return proxy(Connection.class, new Jdbc() {
+            @Override
+            Object invoke(Object connection, String method, Object[] args) {
+                if ("prepareStatement".equals(method)) {
+                    return newStatement((Connection) connection, (String) args[0]);
+                }
+                if ("getMetaData".equals(method)) {
+                    return proxy(DatabaseMetaData.class, new Jdbc());
+                }
+                return null;
+            }
+        });
+    }
+
+    private PreparedStatement newStatement(final Connection connection, final String sql) {
+        return proxy(PreparedStatement.class, new Jdbc() {
+            private int batched;
+
+            @Override
+            Object invoke(Object statement, String method, Object[] args) {
+                boolean query = sql.startsWith("select");
+                if ("addBatch".equals(method)) {
+                    batched++;
+                } else if ("executeBatch".equals(method)) {
+                    log.add("batch:" + sql + ":" + batched);
+                    int[] counts = new int[batched];
+                    Arrays.fill(counts, 1);
+                    batched = 0;
+                    return counts;
+                } else if ("execute".equals(method)) {
+                    log.add("execute:" + sql);
+                    return query;
+                } else if ("getUpdateCount".equals(method)) {
+                    return query ? -1 : 1;
+                } else if ("getResultSet".equals(method)) {
+                    return query ? newResultSet() : null;
+                } else if ("getConnection".equals(method)) {
+                    return connection;
+                }
+                return null;
+            }
+        });
+    }
+
+    //没有列也没有行的结果集
+    private static ResultSet newResultSet() {
+        return proxy(ResultSet.class, new Jdbc() {
+            @Override
+            Object invoke(Object resultSet, String method, Object[] args) {
+                if ("getMetaData".equals(method)) {
+                    return proxy(ResultSetMetaData.class, new Jdbc());
+                }
+                if ("getType".equals(method)) {
+                    return ResultSet.TYPE_FORWARD_ONLY;
+                }
+                return null;
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Jdbc handler) {
+        return (T) Proxy.newProxyInstance(MybatisBatchInterceptorTest.class.getClassLoader(), new Class[]{type}, handler);
+    }
+
+    /**
+     * jdbc接口的代理, 没有特殊处理的方法返回默认值(false, 0, null)
+     */
+    private static class Jdbc implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("toString".equals(method.getName())) {
+                return method.getDeclaringClass().getSimpleName();
+            }
+            if ("hashCode".equals(method.getName())) {
+                return System.identityHashCode(proxy);
+            }
+            if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+            }
+            Object result = invoke(proxy, method.getName(), args);
+            if (result != null) {
+                return result;
+            }
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            }
+            if (type == int.class) {
+                return 0;
+            }
+            if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+
+        Object invoke(Object proxy, String method, Object[] args) {
+            return null;
+        }
+    }
+
+    /**
+     * 模拟@Transactional声明的嵌套事务(PROPAGATION_NESTED), 绑定一个持有保存点的事务状态
+     */
+    private static class NestedTransaction extends TransactionAspectSupport {
+        private TransactionInfo info;
+
+        void begin() {
+            info = prepareTransactionInfo(null, new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_NESTED),
+                    "nested", new SimpleTransactionStatus() {
+                        @Override
+                        public boolean hasSavepoint() {
+                            return true;
+                        }
+                    });
+        }
+
+        void end() {
+            cleanupTransactionInfo(info);
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package com.evun.xutil.redis;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 进程内的redis替身, 用于单元测试和基准测试, 不需要redis服务
+ * lua脚本由LuaJ解释执行, 脚本中的redis.call转发到本类用java实现的命令, 因此本包中脚本自身的逻辑会被真正执行
+ * 只实现本包用到的命令和参数; LuaJ与redis内置的lua5.1有细微差异, 替身也不模拟复制, 集群, 内存淘汰等行为,
+ * 这些仍然需要在真实的redis上验证(基准测试可以指定真实redis的地址)
+ * 与redis一样, 所有命令和脚本串行执行(对整个数据加锁); 发布的消息在订阅线程中异步回调
+ * 使用示例:
+ * <p>
+ * RedisUtils.setClientProvider(new InMemoryRedisClientProvider());
+ */
+public class InMemoryRedisClientProvider implements RedisClientProvider {
+    //status reply
+    private static final String OK = "OK";
+
+    private final Map<String, Entry> data = new HashMap<>();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    //以下两个字段只在持有锁时使用
+    private final Globals globals = JsePlatform.standardGlobals();
+    private final Map<String, LuaValue> compiledScripts = new HashMap<>();
+
+    public InMemoryRedisClientProvider() {
+        LuaTable redis = new LuaTable();
+        redis.set("call", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                String command = args.checkjstring(1);
+                List<byte[]> params = new ArrayList<>(args.narg() - 1);
+                for (int i = 2; i <= args.narg(); i++) {
+                    params.add(toBytes(args.checkstring(i)));
+                }
+                try {
+                    return toLua(execute(command, params));
+                } catch (RuntimeException e) {
+                    throw new LuaError(e);
+                }
+            }
+        });
+        redis.set("replicate_commands", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return LuaValue.TRUE;
+            }
+        });
+        globals.set("redis", redis);
+    }
+
+    @Override
+    public RedisConnection getResource() {
+        return new Connection();
+    }
+
+    @Override
+    public void returnResource(RedisConnection resource) {
+        //没有需要释放的资源
+    }
+
+    /**
+     * @return 当前没有过期的key的数量
+     */
+    public synchronized int size() {
+        Iterator<Map.Entry<String, Entry>> iterator = data.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().isExpired()) {
+                iterator.remove();
+            }
+        }
+        return data.size();
+    }
+
+    public synchronized boolean exists(String key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return 当前正在订阅的连接数, 用于等待订阅线程完成订阅
+     */
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    public synchronized void flushAll() {
+        data.clear();
+    }
+
+    //以下方法都在持有锁时调用
+
+    private Entry get(String key) {
+        Entry entry = data.get(key);
+        if (entry != null && entry.isExpired()) {
+            data.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private byte[] getString(String key) {
+        Entry entry = get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!(entry.value instanceof byte[])) {
+            throw wrongType();
+        }
+        return (byte[]) entry.value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Double> getZset(String key, boolean create) {
+        Entry entry = get(key);
+        if (entry == null) {
+            if (!create) {
+                return null;
+            }
+            entry = new Entry(new HashMap<String, Double>(), 0);
+            data.put(key, entry);
+        }
+        if (!(entry.value instanceof Map)) {
+            throw wrongType();
+        }
+        return (Map<String, Double>) entry.value;
+    }
+
+    private void set(String key, byte[] value, long ttlMillis) {
+        data.put(key, new Entry(value, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0));
+    }
+
+    private long expire(String key, long ttlMillis) {
+        Entry entry = get(key);
+        if (entry == null) {
+            return 0;
+        }
+        entry.expireAt = System.currentTimeMillis() + ttlMillis;
+        return 1;
+    }
+
+    private long del(String key) {
+        return get(key) != null && data.remove(key) != null ? 1 : 0;
+    }
+
+    /**
+     * 执行一条命令, 脚本中的redis.call和连接上的方法都通过这里执行
+     *
+     * @return Long, byte[], null, OK或者List
+     */
+    private Object execute(String command, List<byte[]> args) {
+        String name = command.toLowerCase();
+        long now = System.currentTimeMillis();
+        if ("get".equals(name)) {
+            return getString(string(args.get(0)));
+        }
+        if ("set".equals(name)) {
+            long ttlMillis = 0;
+            for (int i = 2; i + 1 < args.size(); i += 2) {
+                String option = string(args.get(i)).toUpperCase();
+                if ("PX".equals(option)) {
+                    ttlMillis = number(args.get(i + 1));
+                } else if ("EX".equals(option)) {
+                    ttlMillis = number(args.get(i + 1)) * 1000;
+                } else {
+                    throw new UnsupportedOperationException("redis替身不支持的set参数: " + option);
+                }
+            }
+            set(string(args.get(0)), args.get(1), ttlMillis);
+            return OK;
+        }
+        if ("setnx".equals(name)) {
+            String key = string(args.get(0));
+            if (get(key) != null) {
+                return 0L;
+            }
+            set(key, args.get(1), 0);
+            return 1L;
+        }
+        if ("setex".equals(name)) {
+            set(string(args.get(0)), args.get(2), number(args.get(1)) * 1000);
+            return OK;
+        }
+        if ("expire".equals(name)) {
+            return expire(string(args.get(0)), number(args.get(1)) * 1000);
+        }
+        if ("pexpire".equals(name)) {
+            return expire(string(args.get(0)), number(args.get(1)));
+        }
+        if ("pttl".equals(name)) {
+            Entry entry = get(string(args.get(0)));
+            if (entry == null) {
+                return -2L;
+            }
+            return entry.expireAt == 0 ? -1L : entry.expireAt - now;
+        }
+        if ("exists".equals(name)) {
+            long count = 0;
+            for (byte[] key : args) {
+                if (get(string(key)) != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        if ("del".equals(name)) {
+            long count = 0;
+            for (byte[] key : args) {
+                count += del(string(key));
+            }
+            return count;
+        }
+        if ("incr".equals(name)) {
+            String key = string(args.get(0));
+            Entry entry = get(key);
+            byte[] current = getString(key);
+            long next = current == null ? 1 : number(current) + 1;
+            if (entry == null) {
+                set(key, bytes(String.valueOf(next)), 0);
+            } else {
+                //incr不改变过期时间
+                data.put(key, new Entry(bytes(String.valueOf(next)), entry.expireAt));
+            }
+            return next;
+        }
+        if ("mget".equals(name)) {
+            List<Object> values = new ArrayList<>(args.size());
+            for (byte[] key : args) {
+                Entry entry = get(string(key));
+                values.add(entry != null && entry.value instanceof byte[] ? entry.value : null);
+            }
+            return values;
+        }
+        if ("time".equals(name)) {
+            long micros = System.nanoTime() / 1000 % 1000;
+            List<Object> time = new ArrayList<>(2);
+            time.add(bytes(String.valueOf(now / 1000)));
+            time.add(bytes(String.valueOf(now % 1000 * 1000 + micros)));
+            return time;
+        }
+        if ("zadd".equals(name)) {
+            Map<String, Double> zset = getZset(string(args.get(0)), true);
+            long added = 0;
+            for (int i = 1; i + 1 < args.size(); i += 2) {
+                if (zset.put(string(args.get(i + 1)), score(args.get(i))) == null) {
+                    added++;
+                }
+            }
+            return added;
+        }
+        if ("zcard".equals(name)) {
+            Map<String, Double> zset = getZset(string(args.get(0)), false);
+            return zset == null ? 0L : (long) zset.size();
+        }
+        if ("zrem".equals(name)) {
+            String key = string(args.get(0));
+            Map<String, Double> zset = getZset(key, false);
+            if (zset == null) {
+                return 0L;
+            }
+            long count = 0;
+            for (int i = 1; i < args.size(); i++) {
+                if (zset.remove(string(args.get(i))) != null) {
+                    count++;
+                }
+            }
+            removeIfEmpty(key, zset);
+            return count;
+        }
+        if ("zremrangebyscore".equals(name)) {
+            String key = string(args.get(0));
+            Map<String, Double> zset = getZset(key, false);
+            if (zset == null) {
+                return 0L;
+            }
+            String min = string(args.get(1));
+            String max = string(args.get(2));
+            long count = 0;
+            Iterator<Double> iterator = zset.values().iterator();
+            while (iterator.hasNext()) {
+                double score = iterator.next();
+                if (aboveMin(score, min) && belowMax(score, max)) {
+                    iterator.remove();
+                    count++;
+                }
+            }
+            removeIfEmpty(key, zset);
+            return count;
+        }
+        throw new UnsupportedOperationException("redis替身不支持的命令: " + command);
+    }
+
+    private void removeIfEmpty(String key, Map<String, Double> zset) {
+        //与redis一样, 空的有序集合不再存在
+        if (zset.isEmpty()) {
+            data.remove(key);
+        }
+    }
+
+    private Object eval(String script, List<byte[]> keys, List<byte[]> args, boolean binary) {
+        LuaValue function = compiledScripts.get(script);
+        if (function == null) {
+            function = globals.load(script, "script");
+            compiledScripts.put(script, function);
+        }
+        globals.set("KEYS", toLuaArray(keys));
+        globals.set("ARGV", toLuaArray(args));
+        try {
+            return fromLua(function.call(), binary);
+        } catch (LuaError e) {
+            throw new IllegalStateException("脚本执行出错: " + e.getMessage(), e);
+        }
+    }
+
+    private static LuaTable toLuaArray(List<byte[]> values) {
+        LuaTable table = new LuaTable(values.size(), 0);
+        for (int i = 0; i < values.size(); i++) {
+            table.set(i + 1, LuaValue.valueOf(values.get(i)));
+        }
+        return table;
+    }
+
+    //redis的返回值转换为lua值: 整数 -> number, 字符串 -> string, nil -> false, 多条 -> table, 状态 -> {ok = 状态}
+    private static LuaValue toLua(Object value) {
+        if (value == null) {
+            return LuaValue.FALSE;
+        }
+        if (value instanceof Long) {
+            return LuaValue.valueOf((double) (Long) value);
+        }
+        if (value instanceof byte[]) {
+            return LuaValue.valueOf((byte[]) value);
+        }
+        if (value == OK) {
+            LuaTable status = new LuaTable();
+            status.set("ok", OK);
+            return status;
+        }
+        List<?> values = (List<?>) value;
+        LuaTable table = new LuaTable(values.size(), 0);
+        for (int i = 0; i < values.size(); i++) {
+            table.set(i + 1, toLua(values.get(i)));
+        }
+        return table;
+    }
+
+    //lua的返回值转换为redis的返回值: number -> 整数(截断小数), true -> 1, false和nil -> null, table -> List
+    private static Object fromLua(LuaValue value, boolean binary) {
+        if (value.isnil() || value == LuaValue.FALSE) {
+            return null;
+        }
+        if (value == LuaValue.TRUE) {
+            return 1L;
+        }
+        if (value.type() == LuaValue.TNUMBER) {
+            return (long) value.todouble();
+        }
+        if (value.isstring()) {
+            return binary ? toBytes(value.checkstring()) : value.tojstring();
+        }
+        LuaTable table = value.checktable();
+        List<Object> values = new ArrayList<>();
+        for (int i = 1; !table.get(i).isnil(); i++) {
+            values.add(fromLua(table.get(i), binary));
+        }
+        return values;
+    }
+
+    private static byte[] toBytes(LuaString value) {
+        byte[] bytes = new byte[value.length()];
+        value.copyInto(0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    private static boolean aboveMin(double score, String min) {
+        if ("-inf".equals(min)) {
+            return true;
+        }
+        return min.startsWith("(") ? score > Double.parseDouble(min.substring(1)) : score >= Double.parseDouble(min);
+    }
+
+    private static boolean belowMax(double score, String max) {
+        if ("+inf".equals(max)) {
+            return true;
+        }
+        return max.startsWith("(") ? score < Double.parseDouble(max.substring(1)) : score <= Double.parseDouble(max);
+    }
+
+    private static long number(byte[] value) {
+        try {
+            return Long.parseLong(string(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("ERR value is not an integer or out of range");
+        }
+    }
+
+    private static double score(byte[] value) {
+        try {
+            return Double.parseDouble(string(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("ERR value is not a valid float");
+        }
+    }
+
+    private static IllegalStateException wrongType() {
+        return new IllegalStateException("WRONGTYPE Operation against a key holding the wrong kind of value");
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static List<byte[]> bytes(List<String> values) {
+        List<byte[]> result = new ArrayList<>(values.size());
+        for (String value : values) {
+            result.add(bytes(value));
+        }
+        return result;
+    }
+
+    private static List<byte[]> bytes(String... values) {
+        return bytes(Arrays.asList(values));
+    }
+
+    private static class Entry {
+        //字符串为byte[], 有序集合为 成员 -> 分数
+        private final Object value;
+        //过期时间(毫秒), 0表示不过期
+        private long expireAt;
+
+        Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+
+        boolean isExpired() {
+            return expireAt != 0 && System.currentTimeMillis() >= expireAt;
+        }
+    }
+
+    private static class Subscription {
+        //取消订阅的标记消息
+        private static final String[] UNSUBSCRIBE = new String[0];
+
+        private final String channel;
+        private final BlockingQueue<String[]> messages = new LinkedBlockingQueue<>();
+
+        Subscription(String channel) {
+            this.channel = channel;
+        }
+    }
+
+    private class Connection implements RedisConnection {
+        private volatile Subscription subscription;
+
+        @Override
+        public Object eval(String script, List<String> keys, List<String> args) {
+            synchronized (InMemoryRedisClientProvider.this) {
+                return InMemoryRedisClientProvider.this.eval(script, bytes(keys), bytes(args), false);
+            }
+        }
+
+        @Override
+        public Object eval(byte[] script, List<byte[]> keys, List<byte[]> args) {
+            synchronized (InMemoryRedisClientProvider.this) {
+                return InMemoryRedisClientProvider.this.eval(string(script), keys, args, true);
+            }
+        }
+
+        @Override
+        public Long setnx(String key, String value) {
+            synchronized (InMemoryRedisClientProvider.this) {
+                return (Long) execute("setnx", bytes(key, value));
+            }
+        }
+
+        @Override
+        public Long expire(String key, int seconds) {
+            synchronized (InMemoryRedisClientProvider.this) {
+                return (Long) execute("expire", bytes(key, String.valueOf(seconds)));
+            }
+        }
+
+        @Override
+        public Long del(String... keys) {
+            synchronized (InMemoryRedisClientProvider.this) {
+                return (Long) execute("del", bytes(keys));
+            }
+        }
+
+        @Override
+        public Long zrem(String key, String... members) {
+            List<byte[]> args = new ArrayList<>(members.length + 1);
+            args.add(bytes(key));
+            args.addAll(bytes(members));
+            synchronized (InMemoryRedisClientProvider.this) {
+                return (Long) execute("zrem", args);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<byte[]> mget(byte[]... keys) {
+            synchronized (InMemoryRedisClientProvider.this) {
+                return (List<byte[]>) (List<?>) execute("mget", Arrays.asList(keys));
+            }
+        }
+
+        @Override
+        public Long publish(String channel, String message) {
+            long count = 0;
+            for (Subscription subscription : subscriptions) {
+                if (subscription.channel.equals(channel)) {
+                    subscription.messages.add(new String[]{channel, message});
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void subscribe(MessageListener listener, String channel) {
+            Subscription current = new Subscription(channel);
+            subscription = current;
+            subscriptions.add(current);
+            try {
+                listener.onSubscribe(channel);
+                while (true) {
+                    String[] message = current.messages.take();
+                    if (message == Subscription.UNSUBSCRIBE) {
+                        return;
+                    }
+                    listener.onMessage(message[0], message[1]);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                subscriptions.remove(current);
+                subscription = null;
+            }
+        }
+
+        @Override
+        public void unsubscribe() {
+            Subscription current = subscription;
+            if (current != null) {
+                current.messages.add(Subscription.UNSUBSCRIBE);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.evun.xutil.redis;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 使用进程内的redis替身测试RedisLeaderScheduler的选主和故障转移, 替身会执行本类中的lua脚本
+ * 租约使用允许的最小值3秒, 主节点宕机后的接管最多需要 租约时长 + 从节点检查间隔(1.5秒)
+ */
+public class RedisLeaderSchedulerTest extends TestCase {
+    private static final int LEASE_SECS = 3;
+    private static final long WAIT_MILLIS = 10000;
+
+    private InMemoryRedisClientProvider redis;
+    private RedisClientProvider oldProvider;
+    private final List<Node> nodes = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        redis = new InMemoryRedisClientProvider();
+        oldProvider = RedisUtils.getClientProvider();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Node node : nodes) {
+            node.redisDown = false;
+            node.destroy();
+        }
+        RedisUtils.setClientProvider(oldProvider);
+    }
+
+    public void testOnlyLeaderRunsJobs() throws Exception {
+        final Node first = startNode();
+        waitFor(new Condition() {
+            @Override
+            public boolean test() {
+                return first.scheduler.isLeader() && first.runs.get() > 0;
+            }
+        });
+        Node second = startNode();
+        Thread.sleep(LEASE_SECS * 1000);
+        assertTrue(first.scheduler.isLeader());
+        assertFalse(second.scheduler.isLeader());
+        assertEquals(0, second.runs.get());
+    }
+
+    public void testFollowerTakesOverAfterDestroy() throws Exception {
+        final Node first = startNode();
+        waitFor(new Condition() {
+            @Override
+            public boolean test() {
+                return first.scheduler.isLeader();
+            }
+        });
+        final Node second = startNode();
+        first.destroy();
+        assertFalse(first.scheduler.isLeader());
+        //主节点释放了租约, 从节点最迟在下一次检查时接管
+        waitFor(new Condition() {
+            @Override
+            public boolean test() {
+                return second.scheduler.isLeader() && second.runs.get() > 0;
+            }
+        });
+    }
+
+    public void testFollowerTakesOverWhenLeaderLosesRedis() throws Exception {
+        final Node first = startNode();
+        waitFor(new Condition() {
+            @Override
+            public boolean test() {
+                return first.scheduler.isLeader();
+            }
+        });
+        final Node second = startNode();
+        //主节点与redis断开, 租约不再续约, 但是也没有被释放
+        first.redisDown = true;
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        waitFor(new Condition() {
+            @Override
+            public boolean test() {
+                boolean firstLeader = first.scheduler.isLeader();
+                boolean secondLeader = second.scheduler.isLeader();
+                if (firstLeader && secondLeader) {
+                    overlapped.set(true);
+                }
+                return secondLeader && second.runs.get() > 0;
+            }
+        });
+        assertFalse("两个节点不能同时是主节点!", overlapped.get());
+        assertFalse(first.scheduler.isLeader());
+        //原主节点已经停止运行任务
+        int runs = first.runs.get();
+        Thread.sleep(200);
+        assertEquals(runs, first.runs.get());
+    }
+
+    private Node startNode() throws Exception {
+        Node node = new Node(redis);
+        RedisUtils.setClientProvider(node.provider);
+        node.scheduler.setElectionName(getName());
+        node.scheduler.setLeaseSecs(LEASE_SECS);
+        node.scheduler.scheduleAtFixedRate("runs", node.counter, 0, 20, TimeUnit.MILLISECONDS);
+        node.scheduler.afterPropertiesSet();
+        nodes.add(node);
+        return node;
+    }
+
+    private static void waitFor(Condition condition) {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.test()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("等待超时!");
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("等待被打断!");
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean test();
+    }
+
+    /**
+     * 一个节点: 调度器和它使用的连接, 连接可以模拟与redis断开
+     */
+    private static class Node {
+        private final RedisLeaderScheduler scheduler = new RedisLeaderScheduler();
+        private final AtomicInteger runs = new AtomicInteger();
+        private volatile boolean redisDown;
+        private boolean destroyed;
+        private final Runnable counter = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        private final RedisClientProvider provider;
+
+        Node(final RedisClientProvider redis) {
+            this.provider = new RedisClientProvider() {
+                @Override
+                public RedisConnection getResource() {
+                    if (redisDown) {
+                        throw new IllegalStateException("redis不可用!");
+                    }
+                    return redis.getResource();
+                }
+
+                @Override
+                public void returnResource(RedisConnection resource) {
+                    redis.returnResource(resource);
+                }
+            };
+        }
+
+        void destroy() throws Exception {
+            if (!destroyed) {
+                destroyed = true;
+                scheduler.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.evun.xutil.redis;
+
+import redis.clients.jedis.JedisPool;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * tryLockAndRun, tryLockAllAndRun, tryAcquireAndRun的吞吐量和延迟基准测试, 不在单元测试中运行
+ * 线程数从1到256倍增, 每个线程循环: 获取锁 -> 在线程池中执行空任务 -> 等待任务结束和释放; 获取失败时立即进入下一次
+ * 延迟从调用开始计算到任务结束(获取失败时到调用返回), 报告成功次数/秒和p50, p99, 最大延迟
+ * 使用普通线程而不是JMH(项目中没有JMH依赖), 每一档先预热再测量
+ * 没有redis参数时使用进程内的redis替身, 只测量本包代码和线程池的开销; 指定host和port时连接真实的redis
+ * 运行示例:
+ * <p>
+ * java com.evun.xutil.redis.RedisLockBenchmark [每档秒数] [锁名数量] [redis host] [redis port]
+ */
+public class RedisLockBenchmark {
+    private static final int MAX_THREADS = 256;
+    private static final int WARMUP_SECS = 1;
+    //每个线程最多记录的延迟样本数
+    private static final int MAX_SAMPLES = 1 << 16;
+    //信号量的许可数
+    private static final int PERMITS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int names = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        if (args.length > 3) {
+            RedisUtils.setClientProvider(new JedisPoolClientProvider(new JedisPool(args[2], Integer.parseInt(args[3]))));
+        } else {
+            RedisUtils.setClientProvider(new InMemoryRedisClientProvider());
+        }
+        for (Operation operation : Operation.values()) {
+            System.out.printf("%n%s, 锁名数量: %d%n", operation.name, names);
+            System.out.printf("%8s %14s %14s %12s %12s %12s%n", "线程数", "调用次数/秒", "成功次数/秒", "p50(us)", "p99(us)", "最大(us)");
+            for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+                run(operation, threads, names, WARMUP_SECS);
+                Stats stats = run(operation, threads, names, seconds);
+                System.out.printf("%8d %14.0f %14.0f %12.1f %12.1f %12.1f%n", threads,
+                        stats.calls / (double) seconds, stats.acquired / (double) seconds,
+                        stats.percentile(0.5) / 1e3, stats.percentile(0.99) / 1e3, stats.percentile(1) / 1e3);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Stats run(final Operation operation, int threads, final int names, int seconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final Worker[] workers = new Worker[threads];
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final Worker worker = new Worker(i);
+            workers[i] = worker;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.nanoTime() - deadline < 0) {
+                            long start = System.nanoTime();
+                            if (operation.run(worker.random, names)) {
+                                worker.acquired++;
+                            }
+                            worker.record(System.nanoTime() - start);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "benchmark-" + i);
+            thread.start();
+        }
+        done.await();
+        return new Stats(workers);
+    }
+
+    private static final Callable<Void> EMPTY_TASK = new Callable<Void>() {
+        @Override
+        public Void call() {
+            return null;
+        }
+    };
+
+    private enum Operation {
+        LOCK("tryLockAndRun") {
+            @Override
+            RedisUtils.Result<Void> acquire(Random random, int names) {
+                return RedisUtils.tryLockAndRun("benchmark." + random.nextInt(names), 60, 0, EMPTY_TASK);
+            }
+        },
+        LOCK_ALL("tryLockAllAndRun(2个锁)") {
+            @Override
+            RedisUtils.Result<Void> acquire(Random random, int names) {
+                return RedisUtils.tryLockAllAndRun(Arrays.asList("benchmark." + random.nextInt(names),
+                        "benchmark." + random.nextInt(names)), 60, 0, EMPTY_TASK);
+            }
+        },
+        ACQUIRE("tryAcquireAndRun(" + PERMITS + "个许可)") {
+            @Override
+            RedisUtils.Result<Void> acquire(Random random, int names) {
+                //信号量比锁少, 保证有一定的竞争
+                return RedisUtils.tryAcquireAndRun("benchmark." + random.nextInt(Math.max(1, names / PERMITS)), PERMITS, 60, 0, EMPTY_TASK);
+            }
+        };
+
+        private final String name;
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        abstract RedisUtils.Result<Void> acquire(Random random, int names);
+
+        //获取成功时等待任务结束(锁已经释放)
+        boolean run(Random random, int names) throws Exception {
+            RedisUtils.Result<Void> result = acquire(random, names);
+            if (!result.isDone()) {
+                return false;
+            }
+            result.getResult().get();
+            return true;
+        }
+    }
+
+    private static class Worker {
+        private final Random random;
+        private final long[] samples = new long[MAX_SAMPLES];
+        private long calls;
+        private long acquired;
+
+        Worker(long seed) {
+            this.random = new Random(seed);
+        }
+
+        //超过样本容量后随机替换(蓄水池抽样), 保证样本覆盖整个测量时间
+        void record(long nanos) {
+            if (calls < MAX_SAMPLES) {
+                samples[(int) calls] = nanos;
+            } else {
+                long index = (long) (random.nextDouble() * (calls + 1));
+                if (index < MAX_SAMPLES) {
+                    samples[(int) index] = nanos;
+                }
+            }
+            calls++;
+        }
+    }
+
+    private static class Stats {
+        private final long calls;
+        private final long acquired;
+        private final long[] samples;
+
+        Stats(Worker[] workers) {
+            long calls = 0;
+            long acquired = 0;
+            int size = 0;
+            for (Worker worker : workers) {
+                calls += worker.calls;
+                acquired += worker.acquired;
+                size += (int) Math.min(worker.calls, MAX_SAMPLES);
+            }
+            long[] samples = new long[size];
+            int offset = 0;
+            for (Worker worker : workers) {
+                int count = (int) Math.min(worker.calls, MAX_SAMPLES);
+                System.arraycopy(worker.samples, 0, samples, offset, count);
+                offset += count;
+            }
+            Arrays.sort(samples);
+            this.calls = calls;
+            this.acquired = acquired;
+            this.samples = samples;
+        }
+
+        long percentile(double percentile) {
+            if (samples.length == 0) {
+                return 0;
+            }
+            return samples[(int) Math.min(samples.length - 1, Math.ceil(percentile * samples.length) - 1)];
+        }
+    }
+}
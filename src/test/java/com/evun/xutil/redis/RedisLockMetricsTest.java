@@ -0,0 +1,62 @@
+package com.evun.xutil.redis;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * RedisLockMetrics按锁类型统计和溢出合并的测试
+ */
+public class RedisLockMetricsTest extends TestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        RedisLockMetrics.getInstance().reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        RedisLockMetrics.getInstance().reset();
+    }
+
+    public void testLockType() {
+        assertEquals("order:#", RedisLockMetrics.getLockType("order:10086"));
+        assertEquals("stock.sync.#.#", RedisLockMetrics.getLockType("stock.sync.A001.2"));
+        assertEquals("semaphore:export", RedisLockMetrics.getLockType("semaphore:export"));
+        assertEquals("#-#-#-#-#", RedisLockMetrics.getLockType("3f2a9c1e-7b4d-4e21-9a0f-0c6d2b8e5f71"));
+        String plain = "lockAll";
+        assertSame(plain, RedisLockMetrics.getLockType(plain));
+    }
+
+    public void testSameTypeSharesStats() {
+        RedisLockMetrics.recordAcquire("order:1", true, 1000);
+        RedisLockMetrics.recordAcquire("order:2", false, 1000);
+        List<RedisLockMetrics.LockStatsView> stats = RedisLockMetrics.getInstance().getLockStats();
+        assertEquals(1, stats.size());
+        assertEquals("order:#", stats.get(0).getLockName());
+        assertEquals(2, stats.get(0).getAttempts());
+        assertEquals(1, stats.get(0).getFailures());
+    }
+
+    public void testOverflowMergedIntoOther() {
+        //字母组成的锁名不会被归类, 用来制造大量的锁类型
+        for (int i = 0; i < 1100; i++) {
+            RedisLockMetrics.recordAcquire("lock." + letters(i), true, 1000);
+        }
+        List<RedisLockMetrics.LockStatsView> stats = RedisLockMetrics.getInstance().getLockStats();
+        assertEquals(1025, stats.size());
+        RedisLockMetrics.LockStatsView other = stats.get(stats.size() - 1);
+        assertEquals("<other>", other.getLockName());
+        assertEquals(1100 - 1024, other.getAttempts());
+    }
+
+    //用字母表示的数字, 如 0 -> "a", 26 -> "ba"
+    private static String letters(int value) {
+        StringBuilder result = new StringBuilder();
+        do {
+            result.insert(0, (char) ('a' + value % 26));
+            value /= 26;
+        } while (value > 0);
+        return result.toString();
+    }
+}
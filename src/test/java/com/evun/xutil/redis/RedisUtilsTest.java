@@ -0,0 +1,230 @@
+package com.evun.xutil.redis;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用进程内的redis替身测试RedisUtils的锁和信号量, 替身会执行本包中的lua脚本
+ * 没有平台spring容器, 任务在AsyncTaskExecutor的本地线程池中执行
+ */
+public class RedisUtilsTest extends TestCase {
+    private static final long WAIT_MILLIS = 5000;
+    private static final String LOCK_PREFIX = RedisUtils.class.getName() + ".lock.";
+
+    private InMemoryRedisClientProvider redis;
+    private RedisClientProvider oldProvider;
+    //测试结束时放行所有阻塞的任务, 避免占用线程池线程
+    private final List<CountDownLatch> latches = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        redis = new InMemoryRedisClientProvider();
+        oldProvider = RedisUtils.getClientProvider();
+        RedisUtils.setClientProvider(redis);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (CountDownLatch latch : latches) {
+            latch.countDown();
+        }
+        //等待所有任务释放锁和许可之后再恢复连接提供者
+        waitFor(new Condition() {
+            @Override
+            public boolean test() {
+                return redis.size() == 0;
+            }
+        });
+        RedisUtils.setClientProvider(oldProvider);
+    }
+
+    public void testLockRunsTaskAndReleases() throws Exception {
+        RedisUtils.Result<String> result = RedisUtils.tryLockAndRun("a", 60, 0, new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        });
+        assertTrue(result.isDone());
+        assertEquals("done", result.getResult().get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(redis.exists(LOCK_PREFIX + "a"));
+    }
+
+    public void testLockExcludesOtherCallers() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = newLatch();
+        RedisUtils.Result<String> first = RedisUtils.tryLockAndRun("a", 60, 0, blockingTask(running, release));
+        assertTrue(first.isDone());
+        assertTrue(running.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+        RedisUtils.Result<String> second = RedisUtils.tryLockAndRun("a", 60, 0, blockingTask(null, null));
+        assertFalse(second.isDone());
+        try {
+            second.getResult();
+            fail("获取锁失败时getResult应当抛出异常!");
+        } catch (CancellationException e) {
+            //expected
+        }
+
+        release.countDown();
+        first.getResult().get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(RedisUtils.tryLockAndRun("a", 60, 0, blockingTask(null, null)).isDone());
+    }
+
+    public void testLockExpiresWhileTaskRuns() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        assertTrue(RedisUtils.tryLockAndRun("a", 1, 0, blockingTask(running, newLatch())).isDone());
+        assertTrue(running.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(RedisUtils.tryLockAndRun("a", 1, 0, blockingTask(null, null)).isDone());
+        //过期后其他调用者可以获取锁, 即使第一个任务还没有结束
+        waitFor(new Condition() {
+            @Override
+            public boolean test() {
+                return !redis.exists(LOCK_PREFIX + "a");
+            }
+        });
+        assertTrue(RedisUtils.tryLockAndRun("a", 1, 0, blockingTask(null, null)).isDone());
+    }
+
+    public void testMinRunKeepsLock() throws Exception {
+        long start = System.nanoTime();
+        RedisUtils.Result<String> result = RedisUtils.tryLockAndRun("a", 60, 1, blockingTask(null, null));
+        assertTrue(result.isDone());
+        //任务已经结束, 但是没有到达最小运行时间, 锁仍然被持有
+        assertFalse(RedisUtils.tryLockAndRun("a", 60, 0, blockingTask(null, null)).isDone());
+        result.getResult().get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+        assertFalse(redis.exists(LOCK_PREFIX + "a"));
+    }
+
+    public void testFailedTaskReleasesLock() throws Exception {
+        RedisUtils.Result<String> result = RedisUtils.tryLockAndRun("a", 60, 0, new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalStateException("失败");
+            }
+        });
+        assertTrue(result.isDone());
+        try {
+            result.getResult().get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("任务的异常应当抛给调用者!");
+        } catch (ExecutionException e) {
+            //expected
+        }
+        assertFalse(redis.exists(LOCK_PREFIX + "a"));
+    }
+
+    public void testLockAllIsAllOrNothing() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = newLatch();
+        RedisUtils.Result<String> holder = RedisUtils.tryLockAndRun("b", 60, 0, blockingTask(running, release));
+        assertTrue(running.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+        //b被占用, a也不能被获取
+        assertFalse(RedisUtils.tryLockAllAndRun(Arrays.asList("a", "b"), 60, 0, blockingTask(null, null)).isDone());
+        assertFalse(redis.exists(LOCK_PREFIX + "a"));
+
+        release.countDown();
+        holder.getResult().get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        RedisUtils.Result<String> all = RedisUtils.tryLockAllAndRun(Arrays.asList("b", "a", "a"), 60, 0, new Callable<String>() {
+            @Override
+            public String call() {
+                return redis.exists(LOCK_PREFIX + "a") && redis.exists(LOCK_PREFIX + "b") ? "both" : "missing";
+            }
+        });
+        assertTrue(all.isDone());
+        assertEquals("both", all.getResult().get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(redis.exists(LOCK_PREFIX + "a"));
+        assertFalse(redis.exists(LOCK_PREFIX + "b"));
+    }
+
+    public void testLockAllExcludesSingleLock() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = newLatch();
+        RedisUtils.Result<String> all = RedisUtils.tryLockAllAndRun(Arrays.asList("a", "b"), 60, 0, blockingTask(running, release));
+        assertTrue(all.isDone());
+        assertTrue(running.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(RedisUtils.tryLockAndRun("a", 60, 0, blockingTask(null, null)).isDone());
+        assertFalse(RedisUtils.tryLockAndRun("b", 60, 0, blockingTask(null, null)).isDone());
+        release.countDown();
+        all.getResult().get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(RedisUtils.tryLockAndRun("a", 60, 0, blockingTask(null, null)).isDone());
+    }
+
+    public void testSemaphoreLimitsPermits() throws Exception {
+        CountDownLatch running = new CountDownLatch(2);
+        CountDownLatch release = newLatch();
+        RedisUtils.Result<String> first = RedisUtils.tryAcquireAndRun("s", 2, 60, 0, blockingTask(running, release));
+        assertTrue(first.isDone());
+        assertTrue(RedisUtils.tryAcquireAndRun("s", 2, 60, 0, blockingTask(running, newLatch())).isDone());
+        assertTrue(running.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(RedisUtils.tryAcquireAndRun("s", 2, 60, 0, blockingTask(null, null)).isDone());
+
+        //归还一个许可后可以再获取
+        release.countDown();
+        first.getResult().get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(RedisUtils.tryAcquireAndRun("s", 2, 60, 0, blockingTask(null, null)).isDone());
+    }
+
+    public void testSemaphoreLeaseExpires() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        assertTrue(RedisUtils.tryAcquireAndRun("s", 1, 1, 0, blockingTask(running, newLatch())).isDone());
+        assertTrue(running.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(RedisUtils.tryAcquireAndRun("s", 1, 1, 0, blockingTask(null, null)).isDone());
+        //租约到期的许可在下一次获取时被回收, 即使持有者的任务还没有结束
+        Thread.sleep(1100);
+        assertTrue(RedisUtils.tryAcquireAndRun("s", 1, 1, 0, blockingTask(null, null)).isDone());
+    }
+
+    private CountDownLatch newLatch() {
+        CountDownLatch latch = new CountDownLatch(1);
+        latches.add(latch);
+        return latch;
+    }
+
+    /**
+     * @param running 任务开始时计数, 可以为null
+     * @param release 任务等待的门闩, 为null时立即结束
+     */
+    private static Callable<String> blockingTask(final CountDownLatch running, final CountDownLatch release) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (running != null) {
+                    running.countDown();
+                }
+                if (release != null) {
+                    release.await(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                return "done";
+            }
+        };
+    }
+
+    private static void waitFor(Condition condition) {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.test()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("等待超时!");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("等待被打断!");
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean test();
+    }
+}
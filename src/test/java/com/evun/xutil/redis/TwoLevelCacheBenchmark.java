@@ -0,0 +1,73 @@
+package com.evun.xutil.redis;
+
+import redis.clients.jedis.JedisPool;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TwoLevelCache的吞吐量基准测试, 不在单元测试中运行
+ * 没有参数时使用进程内的redis替身, 只测量本地缓存和本包代码的开销; 指定host和port时连接真实的redis
+ * 运行示例:
+ * <p>
+ * java com.evun.xutil.redis.TwoLevelCacheBenchmark [线程数] [key数量] [秒数] [redis host] [redis port]
+ */
+public class TwoLevelCacheBenchmark {
+    private static final int WARMUP_SECS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int keys = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        if (args.length > 4) {
+            RedisUtils.setClientProvider(new JedisPoolClientProvider(new JedisPool(args[3], Integer.parseInt(args[4]))));
+        } else {
+            RedisUtils.setClientProvider(new InMemoryRedisClientProvider());
+        }
+        //本地缓存只能容纳一半的key, 同时测量本地命中和redis命中
+        final TwoLevelCache<String> cache = new TwoLevelCache<>("benchmark", Math.max(1, keys / 2), 60, 600);
+        final TwoLevelCache.Loader<String> loader = new TwoLevelCache.Loader<String>() {
+            @Override
+            public String load(String key) {
+                return "value-" + key;
+            }
+        };
+
+        run(cache, loader, threads, keys, WARMUP_SECS);
+        long start = System.nanoTime();
+        long operations = run(cache, loader, threads, keys, seconds);
+        double elapsedSecs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("线程数: %d, key数量: %d, 吞吐量: %.0f 次/秒%n", threads, keys, operations / elapsedSecs);
+        System.out.printf("本地命中: %d, redis命中: %d, 未命中: %d%n", cache.getLocalHits(), cache.getRedisHits(), cache.getMisses());
+        cache.close();
+    }
+
+    private static long run(final TwoLevelCache<String> cache, final TwoLevelCache.Loader<String> loader,
+                            int threads, final int keys, int seconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final LongAdder operations = new LongAdder();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (System.nanoTime() - deadline < 0) {
+                            cache.get(String.valueOf(random.nextInt(keys)), loader);
+                            operations.increment();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "benchmark-" + i);
+            thread.start();
+        }
+        done.await();
+        return operations.sum();
+    }
+}
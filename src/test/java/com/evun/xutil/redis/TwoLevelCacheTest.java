@@ -0,0 +1,170 @@
+package com.evun.xutil.redis;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 使用进程内的redis替身测试TwoLevelCache
+ */
+public class TwoLevelCacheTest extends TestCase {
+    private static final long WAIT_MILLIS = 5000;
+
+    private InMemoryRedisClientProvider redis;
+    private RedisClientProvider oldProvider;
+    private TwoLevelCache<String> first;
+    private TwoLevelCache<String> second;
+
+    @Override
+    protected void setUp() throws Exception {
+        redis = new InMemoryRedisClientProvider();
+        oldProvider = RedisUtils.getClientProvider();
+        RedisUtils.setClientProvider(redis);
+        //同一个名称的两个实例, 模拟两个jvm实例
+        first = new TwoLevelCache<>(getName(), 100, 60, 60);
+        second = new TwoLevelCache<>(getName(), 100, 60, 60);
+        waitFor(new Condition() {
+            @Override
+            public boolean test() {
+                return redis.getSubscriptionCount() == 2;
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        first.close();
+        second.close();
+        RedisUtils.setClientProvider(oldProvider);
+    }
+
+    public void testLoadOnceThenHitLocal() {
+        CountingLoader loader = new CountingLoader("v1");
+        assertEquals("v1", first.get("k", loader));
+        assertEquals("v1", first.get("k", loader));
+        assertEquals(1, loader.count.get());
+        assertEquals(1, first.getMisses());
+        assertEquals(1, first.getLocalHits());
+    }
+
+    public void testHitRedisFromOtherInstance() {
+        first.get("k", new CountingLoader("v1"));
+        CountingLoader loader = new CountingLoader("v2");
+        assertEquals("v1", second.get("k", loader));
+        assertEquals(0, loader.count.get());
+        assertEquals(1, second.getRedisHits());
+    }
+
+    public void testInvalidateOtherInstances() {
+        first.get("k", new CountingLoader("v1"));
+        second.get("k", new CountingLoader("v1"));
+        second.invalidate("k");
+        //同一个jvm中的实例id相同, 需要模拟其他jvm实例发出的消息
+        publishFromOtherInstance("k");
+        final CountingLoader loader = new CountingLoader("v2");
+        waitFor(new Condition() {
+            @Override
+            public boolean test() {
+                return "v2".equals(first.get("k", loader));
+            }
+        });
+    }
+
+    public void testPutReplacesOtherInstances() {
+        first.get("k", new CountingLoader("v1"));
+        second.get("k", new CountingLoader("v1"));
+        second.put("k", "v2");
+        assertEquals("v2", second.get("k", new CountingLoader("v3")));
+        publishFromOtherInstance("k");
+        final CountingLoader loader = new CountingLoader("v3");
+        waitFor(new Condition() {
+            @Override
+            public boolean test() {
+                return "v2".equals(first.get("k", loader));
+            }
+        });
+        assertEquals(0, loader.count.get());
+    }
+
+    public void testIgnoreOwnMessages() {
+        first.get("k", new CountingLoader("v1"));
+        second.invalidate("k");
+        //本jvm发出的消息不会回调, first仍然使用本地缓存
+        CountingLoader loader = new CountingLoader("v2");
+        assertEquals("v1", first.get("k", loader));
+        assertEquals(0, loader.count.get());
+    }
+
+    public void testStaleLoadNotWrittenToRedis() {
+        //加载期间其他实例执行了invalidate, 加载的结果是旧数据, 不能写入redis
+        String value = first.get("k", new TwoLevelCache.Loader<String>() {
+            @Override
+            public String load(String key) {
+                second.invalidate(key);
+                return "stale";
+            }
+        });
+        assertEquals("stale", value);
+        CountingLoader loader = new CountingLoader("fresh");
+        assertEquals("fresh", second.get("k", loader));
+        assertEquals(1, loader.count.get());
+    }
+
+    public void testNullNotCached() {
+        CountingLoader loader = new CountingLoader(null);
+        assertNull(first.get("k", loader));
+        assertNull(first.get("k", loader));
+        assertEquals(2, loader.count.get());
+    }
+
+    public void testCloseUnsubscribes() {
+        first.close();
+        second.close();
+        waitFor(new Condition() {
+            @Override
+            public boolean test() {
+                return redis.getSubscriptionCount() == 0;
+            }
+        });
+    }
+
+    //频道名称与TwoLevelCache中的规则相同: 缓存key前缀 + "invalidate"
+    private void publishFromOtherInstance(String key) {
+        String channel = TwoLevelCache.class.getName() + "." + getName() + ".invalidate";
+        assertTrue(redis.getResource().publish(channel, "other-instance|" + key) > 0);
+    }
+
+    private static void waitFor(Condition condition) {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.test()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("等待超时!");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("等待被打断!");
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean test();
+    }
+
+    private static class CountingLoader implements TwoLevelCache.Loader<String> {
+        private final String value;
+        private final AtomicInteger count = new AtomicInteger();
+
+        CountingLoader(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String load(String key) {
+            count.incrementAndGet();
+            return value;
+        }
+    }
+}